@@ -0,0 +1,140 @@
+package io.github.orionlibs.orion_llm4j_llama_inference;
+
+import io.github.orionlibs.orion_llm4j_inference.core.inference.ChatFormat;
+import io.github.orionlibs.orion_llm4j_inference.core.io.LLMResponse;
+import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
+import io.github.orionlibs.orion_llm4j_inference.options.LLMOptions;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaChatFormat;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaLLMInferencer;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaStateSnapshot;
+import io.github.orionlibs.orion_llm4j_llama_inference.options.InvalidMaximumTokensOptionException;
+import io.github.orionlibs.orion_llm4j_llama_inference.options.InvalidUserPromptException;
+import io.github.orionlibs.orion_llm4j_llama_inference.options.MaximumTokenValidator;
+import io.github.orionlibs.orion_llm4j_llama_inference.options.UserPromptValidator;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Multi-turn conversation that keeps its key/value caches between turns.
+ * <p>
+ * The first turn sends the system prompt and the first user prompt, every later turn only encodes and forwards its
+ * own user prompt, after the previous turns. The session holds key/value cache pages of the model until it's closed.
+ * <p>
+ * With the {@code contextShift} option, a conversation that fills the context discards its oldest turns, except for
+ * the first {@code contextShiftSinkTokens} tokens, and goes on instead of failing.
+ */
+public final class LlamaChatSession implements AutoCloseable
+{
+    private final LlamaLLMInferencer model;
+    private final Sampler sampler;
+    private final LLMOptions options;
+    private final String systemPrompt;
+    private final MaximumTokenValidator maximumTokenValidator;
+    private final UserPromptValidator userPromptValidator;
+    private LlamaTokenGenerationState state;
+    // position of the latest token of the state, the next turn starts from it
+    private int position;
+
+
+    LlamaChatSession(LlamaLLMInferencer model, Sampler sampler, LLMOptions options, String systemPrompt)
+    {
+        this.model = model;
+        this.sampler = sampler;
+        this.options = options;
+        this.systemPrompt = systemPrompt;
+        this.maximumTokenValidator = new MaximumTokenValidator();
+        this.userPromptValidator = new UserPromptValidator();
+        this.state = model.createNewState();
+        if((boolean)options.getOptionValue("contextShift"))
+        {
+            state.numberOfSinkPositions = (int)options.getOptionValue("contextShiftSinkTokens");
+        }
+    }
+
+
+    /**
+     * Runs the next turn of the conversation.
+     *
+     * @param userPrompt             user prompt of this turn
+     * @param maximumTokensToProduce maximum number of tokens of this turn, prompt included
+     * @return the response of this turn
+     * @throws IllegalStateException if the session is closed or the turn does not fit in what is left of the context,
+     *                               when the context is not shifted
+     */
+    public synchronized LLMResponse chat(String userPrompt, int maximumTokensToProduce) throws InvalidMaximumTokensOptionException, InvalidUserPromptException
+    {
+        if(state == null)
+        {
+            throw new IllegalStateException("chat session is closed");
+        }
+        maximumTokenValidator.isValidWithException(options, maximumTokensToProduce);
+        userPromptValidator.isValidWithException(userPrompt);
+        LlamaLLMRunner runner = new LlamaLLMRunner(model, sampler, null, null, systemPrompt, userPrompt, maximumTokensToProduce);
+        ChatFormat chatFormat = new LlamaChatFormat(model.getTokenizer());
+        List<Integer> promptTokens = position == 0 ? runner.encodePrompt(chatFormat) : runner.encodeNextTurn(chatFormat, state.latestToken);
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        boolean contextShift = state.numberOfSinkPositions >= 0;
+        // a shifted context counts positions as if nothing had been discarded, so the turn is only bounded by its maximum
+        int maxTokens = (int)Math.min(contextShift ? Integer.MAX_VALUE : model.getConfiguration().contextLength, (long)position + maximumTokensToProduce);
+        // the latest token and the prompt have to fit, so that there is a response to continue from
+        if(position + promptTokens.size() + 1 > maxTokens)
+        {
+            throw new IllegalStateException("the turn needs " + (promptTokens.size() + 1) + " positions, but only " + (maxTokens - position) + " are left");
+        }
+        int numberOfDiscardedPositions = state.numberOfDiscardedPositions;
+        LLMResponse response = model.generateTokens(state, position, promptTokens, stopTokens, maxTokens, sampler, runner::printToken);
+        List<Integer> responseTokens = response.getResponseTokens();
+        // the last response token, the stop token or the one generation was cut at, has not been forwarded,
+        // the next turn starts with it
+        position += promptTokens.size() + responseTokens.size() - (state.numberOfDiscardedPositions - numberOfDiscardedPositions);
+        state.latestToken = responseTokens.getLast();
+        return runner.decodeResponse(response, stopTokens);
+    }
+
+
+    /**
+     * Saves the conversation so far, {@link LlamaLLM#resumeChatSession} continues it e.g. after a restart.
+     *
+     * @param path file to write
+     */
+    public synchronized void save(Path path) throws IOException
+    {
+        if(state == null)
+        {
+            throw new IllegalStateException("chat session is closed");
+        }
+        LlamaStateSnapshot.save(path, model, state, position);
+    }
+
+
+    synchronized void restore(Path path) throws IOException
+    {
+        position = LlamaStateSnapshot.restore(path, model, state);
+    }
+
+
+    /**
+     * @return number of positions of the context that the conversation occupies
+     */
+    public synchronized int getPosition()
+    {
+        return position;
+    }
+
+
+    /**
+     * Ends the conversation and returns its key/value cache pages to the model.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if(state != null)
+        {
+            state.close();
+            state = null;
+        }
+    }
+}
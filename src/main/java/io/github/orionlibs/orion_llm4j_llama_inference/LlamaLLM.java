@@ -4,7 +4,11 @@ import io.github.orionlibs.orion_llm4j_inference.config.ConfigurationService;
 import io.github.orionlibs.orion_llm4j_inference.core.io.LLMResponse;
 import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
 import io.github.orionlibs.orion_llm4j_inference.options.LLMOptions;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaBatchScheduler;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaLLMInferencer;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaPrefixCache;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaSpeculativeDecoder;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.sampler.SimpleSamplerSelector;
 import io.github.orionlibs.orion_llm4j_llama_inference.model.LlamaModelLoader;
 import io.github.orionlibs.orion_llm4j_llama_inference.options.InvalidMaximumTokensOptionException;
@@ -19,6 +23,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.random.RandomGeneratorFactory;
 
 public class LlamaLLM
 {
@@ -26,6 +31,9 @@ public class LlamaLLM
     private LLMOptions options;
     private Sampler sampler;
     private LlamaLLMInferencer model;
+    private LlamaBatchScheduler batchScheduler;
+    private LlamaPrefixCache prefixCache;
+    private LlamaSpeculativeDecoder speculativeDecoder;
     private boolean isModelLoaded;
     private MaximumTokenValidator maximumTokenValidator;
     private UserPromptValidator userPromptValidator;
@@ -81,6 +89,42 @@ public class LlamaLLM
     }
 
 
+    /**
+     * Starts a conversation whose turns reuse the key/value caches of the earlier turns.
+     *
+     * @param systemPrompt system prompt of the conversation, can be null
+     * @return the session, it should be closed when the conversation ends
+     */
+    public LlamaChatSession startChatSession(String systemPrompt) throws IOException
+    {
+        loadModel();
+        return new LlamaChatSession(model, sampler, options, systemPrompt);
+    }
+
+
+    /**
+     * Continues a conversation that {@link LlamaChatSession#save} has saved, without forwarding its turns again.
+     *
+     * @param snapshot file of the saved conversation, it has to come from the same model
+     * @return the session, it should be closed when the conversation ends
+     */
+    public LlamaChatSession resumeChatSession(Path snapshot) throws IOException
+    {
+        loadModel();
+        LlamaChatSession session = new LlamaChatSession(model, sampler, options, null);
+        try
+        {
+            session.restore(snapshot);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            session.close();
+            throw e;
+        }
+        return session;
+    }
+
+
     private void reloadModelIfOptionsChanged() throws IOException
     {
         if(options.haveOptionsChanged)
@@ -106,6 +150,37 @@ public class LlamaLLM
             float randomness = (float)options.getOptionValue("randomness");
             model = new LlamaModelLoader().loadModel(llmModelPath, (int)options.getOptionValue("maximumTokensToProduce"));
             sampler = new SimpleSamplerSelector().selectSampler(model.getConfiguration().vocabularySize, temperature, randomness);
+            if(batchScheduler != null)
+            {
+                batchScheduler.close();
+                batchScheduler = null;
+            }
+            if((boolean)options.getOptionValue("continuousBatching"))
+            {
+                int maximumNumberOfSequences = (int)options.getOptionValue("maximumConcurrentSequences");
+                batchScheduler = new LlamaBatchScheduler(model, maximumNumberOfSequences, maximumNumberOfSequences + LlamaTokenGenerationState.DEFAULT_BATCH_SIZE);
+            }
+            prefixCache = null;
+            if((boolean)options.getOptionValue("prefixCache"))
+            {
+                long maximumNumberOfBytes = (int)options.getOptionValue("prefixCacheMaximumMegabytes") * 1024L * 1024L;
+                prefixCache = new LlamaPrefixCache(model.getConfiguration(), model.getKVCachePagePool().getType(), maximumNumberOfBytes);
+            }
+            speculativeDecoder = null;
+            String draftModelPath = (String)options.getOptionValue("draftModelPath");
+            if(draftModelPath != null && !draftModelPath.isBlank())
+            {
+                // the draft model proposes the tokens of the requests that are not continuously batched
+                LlamaLLMInferencer draftModel = new LlamaModelLoader().loadModel(Paths.get(draftModelPath), model.getConfiguration().contextLength);
+                speculativeDecoder = new LlamaSpeculativeDecoder(model, draftModel, (int)options.getOptionValue("speculativeDraftTokens"), temperature, randomness,
+                                RandomGeneratorFactory.getDefault().create(System.nanoTime()));
+            }
+            else if((boolean)options.getOptionValue("promptLookup"))
+            {
+                // the draft tokens are looked up in the prompt and the response so far
+                speculativeDecoder = new LlamaSpeculativeDecoder(model, (int)options.getOptionValue("promptLookupNgramSize"), (int)options.getOptionValue("speculativeDraftTokens"), temperature, randomness,
+                                RandomGeneratorFactory.getDefault().create(System.nanoTime()));
+            }
             isModelLoaded = true;
         }
     }
@@ -113,8 +188,13 @@ public class LlamaLLM
 
     private LLMResponse runPrompt(LlamaLLMInferencer model, Sampler sampler, String systemPrompt, String userPrompt, int maximumTokensToProduce)
     {
-        LlamaLLMRunner runner = new LlamaLLMRunner(model, sampler, systemPrompt, userPrompt, maximumTokensToProduce);
-        if((boolean)options.getOptionValue("asynchronousInference"))
+        LlamaLLMRunner runner = new LlamaLLMRunner(model, sampler, prefixCache, speculativeDecoder, systemPrompt, userPrompt, maximumTokensToProduce);
+        LlamaBatchScheduler scheduler = batchScheduler;
+        if(scheduler != null)
+        {
+            return runner.runPrompt(scheduler);
+        }
+        else if((boolean)options.getOptionValue("asynchronousInference"))
         {
             try
             {
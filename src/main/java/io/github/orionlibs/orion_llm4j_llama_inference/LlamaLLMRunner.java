@@ -6,18 +6,63 @@ import io.github.orionlibs.orion_llm4j_inference.core.io.LLMResponse;
 import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
 import io.github.orionlibs.orion_llm4j_inference.options.Role;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaBatchScheduler;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaChatFormat;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaLLMInferencer;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaPrefixCache;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaSpeculativeDecoder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
-record LlamaLLMRunner(LlamaLLMInferencer model, Sampler sampler, String systemPrompt, String userPrompt, int maximumTokensToProduce)
+record LlamaLLMRunner(LlamaLLMInferencer model, Sampler sampler, LlamaPrefixCache prefixCache, LlamaSpeculativeDecoder speculativeDecoder, String systemPrompt, String userPrompt, int maximumTokensToProduce)
 {
     LLMResponse runPrompt()
     {
-        LlamaTokenGenerationState state = model.createNewState();
         ChatFormat chatFormat = new LlamaChatFormat(model.getTokenizer());
+        List<Integer> promptTokens = encodePrompt(chatFormat);
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        try(LlamaTokenGenerationState state = model.createNewState())
+        {
+            if(speculativeDecoder != null)
+            {
+                // a draft model forwards the whole prompt too, so the prefix cache is not used
+                LLMResponse response = speculativeDecoder.generateTokens(state, 0, promptTokens, stopTokens, maximumTokensToProduce, this::printToken);
+                return decodeResponse(response, stopTokens);
+            }
+            if(prefixCache == null)
+            {
+                LLMResponse response = model.generateTokens(state, 0, promptTokens, stopTokens, maximumTokensToProduce, sampler, this::printToken);
+                return decodeResponse(response, stopTokens);
+            }
+            // the latest token of the state is forwarded first, followed by the prompt tokens
+            List<Integer> tokens = new ArrayList<>();
+            tokens.add(state.latestToken);
+            tokens.addAll(promptTokens);
+            int startPosition = prefixCache.restore(tokens, state);
+            state.latestToken = tokens.get(startPosition);
+            // the restored prompt tokens are not forwarded again, but they are still reported
+            promptTokens.subList(0, startPosition).forEach(this::printToken);
+            LLMResponse response = model.generateTokens(state, startPosition, promptTokens.subList(startPosition, promptTokens.size()), stopTokens, maximumTokensToProduce, sampler, this::printToken);
+            int numberOfForwardedTokens = maximumTokensToProduce < 0 ? tokens.size() : Math.min(tokens.size(), maximumTokensToProduce);
+            prefixCache.store(tokens.subList(0, numberOfForwardedTokens), state);
+            return decodeResponse(response, stopTokens);
+        }
+    }
+
+
+    LLMResponse runPrompt(LlamaBatchScheduler scheduler)
+    {
+        ChatFormat chatFormat = new LlamaChatFormat(model.getTokenizer());
+        List<Integer> promptTokens = encodePrompt(chatFormat);
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        LLMResponse response = scheduler.submit(promptTokens, stopTokens, maximumTokensToProduce, sampler, this::printToken).join();
+        return decodeResponse(response, stopTokens);
+    }
+
+
+    List<Integer> encodePrompt(ChatFormat chatFormat)
+    {
         List<Integer> promptTokens = new ArrayList<>();
         promptTokens.add(chatFormat.getBeginOfText());
         if(systemPrompt != null)
@@ -26,13 +71,40 @@ record LlamaLLMRunner(LlamaLLMInferencer model, Sampler sampler, String systemPr
         }
         promptTokens.addAll(chatFormat.encodeMessage(new LLMRequest(Role.USER, userPrompt)));
         promptTokens.addAll(chatFormat.encodeHeader(new LLMRequest(Role.ASSISTANT, "")));
-        Set<Integer> stopTokens = chatFormat.getStopTokens();
-        LLMResponse response = model.generateTokens(state, 0, promptTokens, stopTokens, maximumTokensToProduce, sampler, token -> {
-            if(!model.getTokenizer().isSpecialToken(token))
-            {
-                System.out.print(model.getTokenizer().decode(List.of(token)));
-            }
-        });
+        return promptTokens;
+    }
+
+
+    /**
+     * Encodes the user prompt as the next turn of a conversation, without the begin of text and the system prompt.
+     * A previous response that was cut before its stop token is ended first, so that the turns stay well-formed.
+     *
+     * @param latestToken last token of the previous response, which is forwarded before the returned tokens
+     */
+    List<Integer> encodeNextTurn(ChatFormat chatFormat, int latestToken)
+    {
+        List<Integer> promptTokens = new ArrayList<>();
+        if(!chatFormat.getStopTokens().contains(latestToken))
+        {
+            promptTokens.add(model.getTokenizer().getSpecialTokens().get("<|eot_id|>"));
+        }
+        promptTokens.addAll(chatFormat.encodeMessage(new LLMRequest(Role.USER, userPrompt)));
+        promptTokens.addAll(chatFormat.encodeHeader(new LLMRequest(Role.ASSISTANT, "")));
+        return promptTokens;
+    }
+
+
+    void printToken(int token)
+    {
+        if(!model.getTokenizer().isSpecialToken(token))
+        {
+            System.out.print(model.getTokenizer().decode(List.of(token)));
+        }
+    }
+
+
+    LLMResponse decodeResponse(LLMResponse response, Set<Integer> stopTokens)
+    {
         if(!response.getResponseTokens().isEmpty() && stopTokens.contains(response.getResponseTokens().getLast()))
         {
             response.getResponseTokens().removeLast();
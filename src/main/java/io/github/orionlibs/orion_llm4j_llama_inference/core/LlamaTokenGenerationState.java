@@ -1,43 +1,223 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core;
 
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
 import io.github.orionlibs.orion_llm4j_inference.core.inference.LLMConfiguration;
 import io.github.orionlibs.orion_llm4j_inference.core.token.TokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaTokenBatch;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.ArraySimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.PagedSimpleFloatTensor;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensorPagePool;
 import java.util.stream.Stream;
 
-public final class LlamaTokenGenerationState extends TokenGenerationState
+/**
+ * Activations and key/value caches of a sequence.
+ * <p>
+ * The key/value caches are paged, pages are taken from a pool as positions are written and {@link #close()} returns
+ * them to the pool, so a state should be closed once its sequence is finished. A state of a
+ * {@link LlamaTokenGenerationStatePool} goes back to that pool too, it must not be used after it's closed.
+ */
+public final class LlamaTokenGenerationState extends TokenGenerationState implements AutoCloseable
 {
+    // number of prompt tokens that are pushed through the layers together during prompt ingestion
+    public static final int DEFAULT_BATCH_SIZE = Integer.parseInt(System.getProperty("llama.BatchSize", "16"));
+    // precision of the key/value caches, one of F32, F16 or Q8_0
+    public static final GGUFType DEFAULT_KV_CACHE_TYPE = GGUFType.valueOf(System.getProperty("llama.KVCacheType", "F32"));
+    // number of timesteps of a key/value cache page
+    public static final int DEFAULT_KV_CACHE_PAGE_SIZE = Integer.parseInt(System.getProperty("llama.KVCachePageSize", "64"));
+    // maximum number of key/value cache pages of a model, shared by all its states
+    public static final int DEFAULT_KV_CACHE_MAXIMUM_PAGES = Integer.parseInt(System.getProperty("llama.KVCacheMaximumPages", String.valueOf(Integer.MAX_VALUE)));
+    // maximum number of released key/value cache pages of a model that are kept for reuse, by default the pages of one sequence of the full context length
+    public static final int DEFAULT_KV_CACHE_MAXIMUM_FREE_PAGES = Integer.parseInt(System.getProperty("llama.KVCacheMaximumFreePages", "-1"));
+    // maximum number of closed states of a model that are kept for reuse
+    public static final int DEFAULT_MAXIMUM_FREE_STATES = Integer.parseInt(System.getProperty("llama.MaximumFreeStates", "8"));
+    // number of timesteps of the key/value caches that the attention processes together
+    public static final int ATTENTION_TILE_SIZE = 64;
     // current wave of activations
     public final SimpleFloatTensor x; // activation at current time stamp (dim,)
     public final SimpleFloatTensor xb; // same, but inside a residual branch (dim,)
     public final SimpleFloatTensor xb2; // an additional buffer just for convenience (dim,)
     public final SimpleFloatTensor hb; // buffer for hidden dimension in the ffn (hidden_dim,)
-    public final SimpleFloatTensor hb2; // buffer for hidden dimension in the ffn (hidden_dim,)
     public final SimpleFloatTensor q; // query (dim,)
     public final SimpleFloatTensor k; // key (dim,)
     public final SimpleFloatTensor v; // value (dim,)
-    public final SimpleFloatTensor att; // buffer for scores/attention values (n_heads, seq_len)
     public final SimpleFloatTensor logits; // output logits
     // kv cache
-    public final SimpleFloatTensor[] keyCache;   // (n_layer, seq_len, kv_dim)
-    public final SimpleFloatTensor[] valueCache; // (n_layer, seq_len, kv_dim)
+    public final PagedSimpleFloatTensor[] keyCache;   // (n_layer, seq_len, kv_dim)
+    public final PagedSimpleFloatTensor[] valueCache; // (n_layer, seq_len, kv_dim)
+    private final int kvDim;
+    // batch of activations, one slot per token of a prompt chunk, slot 0 is the single token buffer above
+    public final int batchSize;
+    public final SimpleFloatTensor[] xBatch; // (batch_size, dim)
+    public final SimpleFloatTensor[] xbBatch; // (batch_size, dim)
+    public final SimpleFloatTensor[] xb2Batch; // (batch_size, dim)
+    public final SimpleFloatTensor[] hbBatch; // (batch_size, hidden_dim)
+    public final SimpleFloatTensor[] qBatch; // (batch_size, dim)
+    public final SimpleFloatTensor[] kBatch; // (batch_size, dim)
+    public final SimpleFloatTensor[] vBatch; // (batch_size, dim)
+    public final float[][] attentionScoresBatch; // (batch_size, n_heads * attention_tile_size)
+    private SimpleFloatTensor[] logitsBatch; // (batch_size, vocabulary_size), allocated when first needed
+    private LlamaTokenBatch tokenBatch; // rows of the forward passes of this state alone, allocated when first needed
+    // context shifting, the number of positions kept at the start of the context when it's full, off when negative
+    public int numberOfSinkPositions = -1;
+    // number of positions that context shifting has discarded so far
+    public int numberOfDiscardedPositions;
+    // pool the state goes back to when it's closed, null if it's not pooled
+    private final LlamaTokenGenerationStatePool pool;
+    boolean isReleased;
 
 
     public LlamaTokenGenerationState(LLMConfiguration config)
     {
+        this(config, DEFAULT_BATCH_SIZE);
+    }
+
+
+    public LlamaTokenGenerationState(LLMConfiguration config, int batchSize)
+    {
+        this(config, batchSize, DEFAULT_KV_CACHE_TYPE);
+    }
+
+
+    public LlamaTokenGenerationState(LLMConfiguration config, int batchSize, GGUFType kvCacheType)
+    {
+        this(config, batchSize, createKVCachePagePool(config, kvCacheType, DEFAULT_KV_CACHE_MAXIMUM_PAGES));
+    }
+
+
+    /**
+     * @param config          configuration of the model
+     * @param batchSize       number of tokens that can be forwarded together
+     * @param kvCachePagePool pool of the key/value cache pages, made by {@link #createKVCachePagePool} for the same configuration
+     */
+    public LlamaTokenGenerationState(LLMConfiguration config, int batchSize, SimpleFloatTensorPagePool kvCachePagePool)
+    {
+        this(config, batchSize, kvCachePagePool, null);
+    }
+
+
+    LlamaTokenGenerationState(LLMConfiguration config, int batchSize, SimpleFloatTensorPagePool kvCachePagePool, LlamaTokenGenerationStatePool pool)
+    {
+        if(batchSize < 1)
+        {
+            throw new IllegalArgumentException("batch size must be positive, but got " + batchSize);
+        }
         this.x = ArraySimpleFloatTensor.allocate(config.dim);
         this.xb = ArraySimpleFloatTensor.allocate(config.dim);
         this.xb2 = ArraySimpleFloatTensor.allocate(config.dim);
         this.hb = ArraySimpleFloatTensor.allocate(config.hiddenDim);
-        this.hb2 = ArraySimpleFloatTensor.allocate(config.hiddenDim);
         this.q = ArraySimpleFloatTensor.allocate(config.dim);
         this.k = ArraySimpleFloatTensor.allocate(config.dim);
         this.v = ArraySimpleFloatTensor.allocate(config.dim);
-        this.att = ArraySimpleFloatTensor.allocate(config.numberOfHeads, config.contextLength);
         this.logits = ArraySimpleFloatTensor.allocate(config.vocabularySize);
+        this.kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        this.keyCache = Stream.generate(() -> new PagedSimpleFloatTensor(kvCachePagePool, config.contextLength * kvDim)).limit(config.numberOfLayers).toArray(PagedSimpleFloatTensor[]::new);
+        this.valueCache = Stream.generate(() -> new PagedSimpleFloatTensor(kvCachePagePool, config.contextLength * kvDim)).limit(config.numberOfLayers).toArray(PagedSimpleFloatTensor[]::new);
+        this.batchSize = batchSize;
+        this.xBatch = allocateBatch(x, batchSize, config.dim);
+        this.xbBatch = allocateBatch(xb, batchSize, config.dim);
+        this.xb2Batch = allocateBatch(xb2, batchSize, config.dim);
+        this.hbBatch = allocateBatch(hb, batchSize, config.hiddenDim);
+        this.qBatch = allocateBatch(q, batchSize, config.dim);
+        this.kBatch = allocateBatch(k, batchSize, config.dim);
+        this.vBatch = allocateBatch(v, batchSize, config.dim);
+        this.attentionScoresBatch = new float[batchSize][config.numberOfHeads * ATTENTION_TILE_SIZE];
+        this.pool = pool;
+    }
+
+
+    /**
+     * @return logits of every batch slot e.g. to verify draft tokens with a single forward pass, slot 0 is {@link #logits}
+     */
+    public SimpleFloatTensor[] getLogitsBatch()
+    {
+        if(logitsBatch == null)
+        {
+            logitsBatch = allocateBatch(logits, batchSize, logits.size());
+        }
+        return logitsBatch;
+    }
+
+
+    /**
+     * @return an empty batch of {@link #batchSize} rows, for the forward passes of this state alone, the same one every time
+     */
+    public LlamaTokenBatch getTokenBatch()
+    {
+        if(tokenBatch == null)
+        {
+            tokenBatch = new LlamaTokenBatch(batchSize);
+        }
+        tokenBatch.clear();
+        return tokenBatch;
+    }
+
+
+    /**
+     * Takes the key/value cache pages of positions {@code 0 ... numberOfPositions - 1} of every layer that have not
+     * been taken yet, so that forwarding these positions cannot run out of pages.
+     *
+     * @throws IllegalStateException if the pool of the pages runs out of pages, the pages taken until then are returned by {@link #close()}
+     */
+    public void reserveKVCachePages(int numberOfPositions)
+    {
+        for(int l = 0; l < keyCache.length; l++)
+        {
+            keyCache[l].reservePages(numberOfPositions * kvDim);
+            valueCache[l].reservePages(numberOfPositions * kvDim);
+        }
+    }
+
+
+    /**
+     * @param config               configuration of the model
+     * @param kvCacheType          precision of the key/value caches, one of F32, F16 or Q8_0
+     * @param maximumNumberOfPages maximum number of pages shared by the states of the pool
+     * @return a pool of pages of {@link #DEFAULT_KV_CACHE_PAGE_SIZE} timesteps, that keeps {@link #DEFAULT_KV_CACHE_MAXIMUM_FREE_PAGES} released pages
+     */
+    public static SimpleFloatTensorPagePool createKVCachePagePool(LLMConfiguration config, GGUFType kvCacheType, int maximumNumberOfPages)
+    {
         int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
-        this.keyCache = Stream.generate(() -> ArraySimpleFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(SimpleFloatTensor[]::new);
-        this.valueCache = Stream.generate(() -> ArraySimpleFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(SimpleFloatTensor[]::new);
+        int maximumNumberOfFreePages = DEFAULT_KV_CACHE_MAXIMUM_FREE_PAGES >= 0 ? DEFAULT_KV_CACHE_MAXIMUM_FREE_PAGES
+                        : 2 * config.numberOfLayers * ((config.contextLength + DEFAULT_KV_CACHE_PAGE_SIZE - 1) / DEFAULT_KV_CACHE_PAGE_SIZE);
+        return new SimpleFloatTensorPagePool(kvCacheType, DEFAULT_KV_CACHE_PAGE_SIZE * kvDim, maximumNumberOfPages, maximumNumberOfFreePages);
+    }
+
+
+    /**
+     * Returns the pages of the key/value caches to their pool and the state to its own pool, if any.
+     * Closing a state again does nothing.
+     */
+    @Override
+    public void close()
+    {
+        if(isReleased)
+        {
+            return;
+        }
+        isReleased = true;
+        for(int l = 0; l < keyCache.length; l++)
+        {
+            keyCache[l].releasePages();
+            valueCache[l].releasePages();
+        }
+        numberOfSinkPositions = -1;
+        numberOfDiscardedPositions = 0;
+        if(pool != null)
+        {
+            pool.release(this);
+        }
+    }
+
+
+    private static SimpleFloatTensor[] allocateBatch(SimpleFloatTensor firstSlot, int batchSize, int size)
+    {
+        SimpleFloatTensor[] batch = new SimpleFloatTensor[batchSize];
+        batch[0] = firstSlot;
+        for(int i = 1; i < batchSize; i++)
+        {
+            batch[i] = ArraySimpleFloatTensor.allocate(size);
+        }
+        return batch;
     }
 }
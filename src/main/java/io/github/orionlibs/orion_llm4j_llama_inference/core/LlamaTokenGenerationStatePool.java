@@ -0,0 +1,82 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core;
+
+import io.github.orionlibs.orion_llm4j_inference.core.inference.LLMConfiguration;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensorPagePool;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of the states of a model, so that the activation buffers of a state are reused by the next request rather than
+ * allocated again.
+ * <p>
+ * A state of the pool goes back to it when it's {@link LlamaTokenGenerationState#close() closed}, after its key/value
+ * cache pages are returned to their own pool. Nothing is zero-filled, the next request overwrites the activations and
+ * only reads the positions it has written. At most {@code maximumNumberOfFreeStates} states are kept, the others are
+ * left to the garbage collector, so the pool is bounded by the load it has seen rather than by its peak.
+ * The pool is thread-safe.
+ */
+public final class LlamaTokenGenerationStatePool
+{
+    private final LLMConfiguration config;
+    private final int batchSize;
+    private final SimpleFloatTensorPagePool kvCachePagePool;
+    private final int maximumNumberOfFreeStates;
+    private final ArrayDeque<LlamaTokenGenerationState> freeStates;
+
+
+    /**
+     * @param config                    configuration of the model
+     * @param batchSize                 number of tokens that the states can forward together
+     * @param kvCachePagePool           pool of the key/value cache pages of the states
+     * @param maximumNumberOfFreeStates maximum number of closed states that are kept for reuse
+     */
+    public LlamaTokenGenerationStatePool(LLMConfiguration config, int batchSize, SimpleFloatTensorPagePool kvCachePagePool, int maximumNumberOfFreeStates)
+    {
+        if(maximumNumberOfFreeStates < 0)
+        {
+            throw new IllegalArgumentException("maximum number of free states must not be negative, but got " + maximumNumberOfFreeStates);
+        }
+        this.config = config;
+        this.batchSize = batchSize;
+        this.kvCachePagePool = kvCachePagePool;
+        this.maximumNumberOfFreeStates = maximumNumberOfFreeStates;
+        this.freeStates = new ArrayDeque<>();
+    }
+
+
+    /**
+     * @return a free state or a new one if there is none, with no key/value cache pages and no context shifting
+     */
+    public LlamaTokenGenerationState acquire()
+    {
+        LlamaTokenGenerationState state;
+        synchronized(this)
+        {
+            state = freeStates.poll();
+        }
+        if(state == null)
+        {
+            // allocated out of the lock, other requests keep reusing the free states meanwhile
+            state = new LlamaTokenGenerationState(config, batchSize, kvCachePagePool, this);
+        }
+        state.isReleased = false;
+        return state;
+    }
+
+
+    /**
+     * Called by {@link LlamaTokenGenerationState#close()} once the state has returned its pages.
+     */
+    synchronized void release(LlamaTokenGenerationState state)
+    {
+        if(freeStates.size() < maximumNumberOfFreeStates)
+        {
+            freeStates.push(state);
+        }
+    }
+
+
+    public synchronized int getNumberOfFreeStates()
+    {
+        return freeStates.size();
+    }
+}
@@ -20,6 +20,7 @@ public final class GGUFModel
     private Map<String, Object> metadata;
     private Map<String, GGUFTensorInfo> tensorInfos;
     private long tensorDataOffset;
+    private MemorySegment header;
     private MemorySegment tensorData;
     private Map<String, GGUFTensorEntry> tensorEntries;
     private GGUFModelPrimitiveReader primitiveReader;
@@ -39,25 +40,28 @@ public final class GGUFModel
     {
         try(FileChannel fileChannel = FileChannel.open(modelPath))
         {
+            // the whole file is mapped once, the header is parsed from the mapped pages and the tensors are slices of them
+            MemorySegment model = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), Arena.ofAuto());
             GGUFModel gguf = new GGUFModel();
-            gguf.loadModelImpl(fileChannel);
+            gguf.loadModelImpl(new GGUFModelCursor(model));
             return gguf;
         }
     }
 
 
-    private void loadModelImpl(FileChannel fileChannel) throws IOException
+    private void loadModelImpl(GGUFModelCursor cursor)
     {
-        headerReader.readHeader(fileChannel);
+        headerReader.readHeader(cursor);
         this.tensorCount = headerReader.getTensorCount();
         this.metadata = headerReader.getMetadata();
         this.tensorInfos = HashMap.newHashMap(tensorCount);
-        populateTensorInfos(fileChannel);
-        long _padding = getAlignment() - (fileChannel.position() % getAlignment());
-        fileChannel.position(fileChannel.position() + _padding);
-        this.tensorDataOffset = fileChannel.position();
-        Arena arena = Arena.ofAuto();
-        this.tensorData = fileChannel.map(FileChannel.MapMode.READ_ONLY, tensorDataOffset, fileChannel.size() - tensorDataOffset, arena);
+        populateTensorInfos(cursor);
+        // no padding if the tensor infos end on the alignment
+        long _padding = (getAlignment() - cursor.getPosition() % getAlignment()) % getAlignment();
+        cursor.setPosition(cursor.getPosition() + _padding);
+        this.tensorDataOffset = cursor.getPosition();
+        this.header = cursor.getMemorySegment().asSlice(0, tensorDataOffset);
+        this.tensorData = cursor.getMemorySegment().asSlice(tensorDataOffset);
         this.tensorEntries = HashMap.newHashMap(tensorInfos.size());
         populateTensorEntries();
     }
@@ -76,37 +80,37 @@ public final class GGUFModel
     }
 
 
-    private void populateTensorInfos(FileChannel fileChannel) throws IOException
+    private void populateTensorInfos(GGUFModelCursor cursor)
     {
         for(int i = 0; i < tensorCount; i++)
         {
-            GGUFTensorInfo ti = readTensorInfo(fileChannel);
+            GGUFTensorInfo ti = readTensorInfo(cursor);
             assert !tensorInfos.containsKey(ti.name());
             tensorInfos.put(ti.name(), ti);
         }
     }
 
 
-    private GGUFType readGGMLType(FileChannel fileChannel) throws IOException
+    private GGUFType readGGMLType(GGUFModelCursor cursor)
     {
-        int ggmlTypeId = primitiveReader.readInt(fileChannel);
+        int ggmlTypeId = primitiveReader.readInt(cursor);
         return GGUFType.fromId(ggmlTypeId);
     }
 
 
-    private GGUFTensorInfo readTensorInfo(FileChannel fileChannel) throws IOException
+    private GGUFTensorInfo readTensorInfo(GGUFModelCursor cursor)
     {
-        String name = stringReader.readString(fileChannel);
+        String name = stringReader.readString(cursor);
         assert name.length() <= 64;
-        int n_dimensions = primitiveReader.readInt(fileChannel);
+        int n_dimensions = primitiveReader.readInt(cursor);
         assert n_dimensions <= 4;
         int[] dimensions = new int[n_dimensions];
         for(int i = 0; i < n_dimensions; i++)
         {
-            dimensions[i] = Math.toIntExact(primitiveReader.readLong(fileChannel));
+            dimensions[i] = Math.toIntExact(primitiveReader.readLong(cursor));
         }
-        GGUFType ggmlType = readGGMLType(fileChannel);
-        long offset = primitiveReader.readLong(fileChannel);
+        GGUFType ggmlType = readGGMLType(cursor);
+        long offset = primitiveReader.readLong(cursor);
         assert offset % getAlignment() == 0;
         return new GGUFTensorInfo(name, dimensions, ggmlType, offset);
     }
@@ -124,6 +128,15 @@ public final class GGUFModel
     }
 
 
+    /**
+     * @return the mapped bytes of the file before the tensor data: the header, the metadata and the tensor infos
+     */
+    public MemorySegment getHeader()
+    {
+        return header;
+    }
+
+
     public Map<String, Object> getMetadata()
     {
         return metadata;
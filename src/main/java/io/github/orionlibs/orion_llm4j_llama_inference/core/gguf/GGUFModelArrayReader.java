@@ -1,9 +1,12 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
 
 import io.github.orionlibs.orion_llm4j_inference.core.utils.MetadataValueType;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 
+/**
+ * Reads array values. Arrays of numbers are copied from the mapped model in bulk, rather than one value at a time.
+ */
 final class GGUFModelArrayReader
 {
     private GGUFModelPrimitiveReader primitiveReader;
@@ -19,118 +22,107 @@ final class GGUFModelArrayReader
     }
 
 
-    Object readArray(FileChannel fileChannel) throws IOException
+    Object readArray(GGUFModelCursor cursor)
     {
-        MetadataValueType value_type = metadataValueTypeReader.readMetadataValueType(fileChannel);
-        int len = Math.toIntExact(primitiveReader.readLong(fileChannel));
+        MetadataValueType value_type = metadataValueTypeReader.readMetadataValueType(cursor);
+        int len = Math.toIntExact(primitiveReader.readLong(cursor));
         switch(value_type)
         {
             case UINT8, INT8 ->
             {
-                return readBytes(fileChannel, len);
+                return readBytes(cursor, len);
             }
             case UINT16, INT16 ->
             {
-                return readShorts(fileChannel, len);
+                return readShorts(cursor, len);
             }
             case UINT32, INT32 ->
             {
-                return readIntegers(fileChannel, len);
+                return readIntegers(cursor, len);
             }
             case FLOAT32 ->
             {
-                return readFloats(fileChannel, len);
+                return readFloats(cursor, len);
             }
             case BOOL ->
             {
-                return readBooleans(fileChannel, len);
+                return readBooleans(cursor, len);
             }
             case STRING ->
             {
-                return readStrings(fileChannel, len);
+                return readStrings(cursor, len);
             }
             case ARRAY ->
             {
-                return readArrays(fileChannel, len);
+                return readArrays(cursor, len);
             }
             default -> throw new UnsupportedOperationException("read array of " + value_type);
         }
     }
 
 
-    private Object[] readArrays(FileChannel fileChannel, int len) throws IOException
+    private Object[] readArrays(GGUFModelCursor cursor, int len)
     {
         Object[] arrays = new Object[len];
         for(int i = 0; i < len; i++)
         {
-            arrays[i] = readArray(fileChannel);
+            arrays[i] = readArray(cursor);
         }
         return arrays;
     }
 
 
-    private String[] readStrings(FileChannel fileChannel, int len) throws IOException
+    private String[] readStrings(GGUFModelCursor cursor, int len)
     {
         String[] strings = new String[len];
         for(int i = 0; i < len; i++)
         {
-            strings[i] = stringReader.readString(fileChannel);
+            strings[i] = stringReader.readString(cursor);
         }
         return strings;
     }
 
 
-    private boolean[] readBooleans(FileChannel fileChannel, int len) throws IOException
+    private boolean[] readBooleans(GGUFModelCursor cursor, int len)
     {
+        byte[] bytes = readBytes(cursor, len);
         boolean[] booleans = new boolean[len];
         for(int i = 0; i < len; i++)
         {
-            booleans[i] = primitiveReader.readBoolean(fileChannel);
+            booleans[i] = bytes[i] != 0;
         }
         return booleans;
     }
 
 
-    private float[] readFloats(FileChannel fileChannel, int len) throws IOException
+    private float[] readFloats(GGUFModelCursor cursor, int len)
     {
         float[] floats = new float[len];
-        for(int i = 0; i < len; i++)
-        {
-            floats[i] = primitiveReader.readFloat(fileChannel);
-        }
+        MemorySegment.copy(cursor.getMemorySegment(), GGUFModelPrimitiveReader.JAVA_FLOAT_LE, cursor.advance((long)len * Float.BYTES), floats, 0, len);
         return floats;
     }
 
 
-    private int[] readIntegers(FileChannel fileChannel, int len) throws IOException
+    private int[] readIntegers(GGUFModelCursor cursor, int len)
     {
         int[] ints = new int[len];
-        for(int i = 0; i < len; i++)
-        {
-            ints[i] = primitiveReader.readInt(fileChannel);
-        }
+        MemorySegment.copy(cursor.getMemorySegment(), GGUFModelPrimitiveReader.JAVA_INT_LE, cursor.advance((long)len * Integer.BYTES), ints, 0, len);
         return ints;
     }
 
 
-    private short[] readShorts(FileChannel fileChannel, int len) throws IOException
+    private short[] readShorts(GGUFModelCursor cursor, int len)
     {
         short[] shorts = new short[len];
-        for(int i = 0; i < len; i++)
-        {
-            shorts[i] = primitiveReader.readShort(fileChannel);
-        }
+        MemorySegment.copy(cursor.getMemorySegment(), GGUFModelPrimitiveReader.JAVA_SHORT_LE, cursor.advance((long)len * Short.BYTES), shorts, 0, len);
         return shorts;
     }
 
 
-    private byte[] readBytes(FileChannel fileChannel, int len) throws IOException
+    private byte[] readBytes(GGUFModelCursor cursor, int len)
     {
         byte[] bytes = new byte[len];
-        for(int i = 0; i < len; i++)
-        {
-            bytes[i] = primitiveReader.readByte(fileChannel);
-        }
+        MemorySegment.copy(cursor.getMemorySegment(), ValueLayout.JAVA_BYTE, cursor.advance(len), bytes, 0, len);
         return bytes;
     }
 }
@@ -0,0 +1,54 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Read position in a memory-mapped model file. The readers decode values straight from the mapped pages and move the
+ * position past them, without a system call per value.
+ */
+public final class GGUFModelCursor
+{
+    private final MemorySegment memorySegment;
+    private long position;
+
+
+    public GGUFModelCursor(MemorySegment memorySegment)
+    {
+        this.memorySegment = memorySegment;
+    }
+
+
+    /**
+     * Moves the position {@code byteSize} bytes forward.
+     *
+     * @return the position before the move, where the skipped bytes start
+     */
+    public long advance(long byteSize)
+    {
+        if(byteSize < 0 || position + byteSize > memorySegment.byteSize())
+        {
+            throw new IllegalArgumentException("cannot read " + byteSize + " bytes at " + position + " of a model of " + memorySegment.byteSize() + " bytes");
+        }
+        long start = position;
+        position += byteSize;
+        return start;
+    }
+
+
+    public MemorySegment getMemorySegment()
+    {
+        return memorySegment;
+    }
+
+
+    public long getPosition()
+    {
+        return position;
+    }
+
+
+    public void setPosition(long position)
+    {
+        this.position = position;
+    }
+}
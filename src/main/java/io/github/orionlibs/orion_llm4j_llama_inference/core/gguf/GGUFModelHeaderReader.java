@@ -1,8 +1,6 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
 
 import io.github.orionlibs.orion_llm4j_inference.core.utils.Pair;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,24 +25,24 @@ final class GGUFModelHeaderReader
     }
 
 
-    void readHeader(FileChannel fileChannel) throws IOException
+    void readHeader(GGUFModelCursor cursor)
     {
-        this.magic = primitiveReader.readInt(fileChannel);
+        this.magic = primitiveReader.readInt(cursor);
         if(magic != GGUF_MAGIC)
         {
             throw new IllegalArgumentException("unsupported header.magic " + magic);
         }
-        this.version = primitiveReader.readInt(fileChannel);
+        this.version = primitiveReader.readInt(cursor);
         if(!SUPPORTED_GGUF_VERSIONS.contains(version))
         {
             throw new IllegalArgumentException("unsupported header.version " + version);
         }
-        this.tensorCount = Math.toIntExact(primitiveReader.readLong(fileChannel));
-        this.metadata_kv_count = Math.toIntExact(primitiveReader.readLong(fileChannel));
+        this.tensorCount = Math.toIntExact(primitiveReader.readLong(cursor));
+        this.metadata_kv_count = Math.toIntExact(primitiveReader.readLong(cursor));
         this.metadata = HashMap.newHashMap(metadata_kv_count);
         for(int i = 0; i < metadata_kv_count; i++)
         {
-            Pair<String, Object> keyValue = keyValuePairReader.readKeyValuePair(fileChannel);
+            Pair<String, Object> keyValue = keyValuePairReader.readKeyValuePair(cursor);
             assert !metadata.containsKey(keyValue.first());
             metadata.put(keyValue.first(), keyValue.second());
         }
@@ -1,8 +1,6 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
 
 import io.github.orionlibs.orion_llm4j_inference.core.utils.Pair;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
 
 final class GGUFModelKeyValuePairReader
 {
@@ -17,12 +15,12 @@ final class GGUFModelKeyValuePairReader
     }
 
 
-    Pair<String, Object> readKeyValuePair(FileChannel fileChannel) throws IOException
+    Pair<String, Object> readKeyValuePair(GGUFModelCursor cursor)
     {
-        String key = stringReader.readString(fileChannel);
+        String key = stringReader.readString(cursor);
         assert key.length() < (1 << 16);
         assert key.codePoints().allMatch(cp -> ('a' <= cp && cp <= 'z') || ('0' <= cp && cp <= '9') || cp == '_' || cp == '.');
-        Object value = metadataReader.readMetadataValue(fileChannel);
+        Object value = metadataReader.readMetadataValue(cursor);
         return new Pair<>(key, value);
     }
 }
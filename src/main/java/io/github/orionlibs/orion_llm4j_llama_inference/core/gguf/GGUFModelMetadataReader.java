@@ -1,8 +1,6 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
 
 import io.github.orionlibs.orion_llm4j_inference.core.utils.MetadataValueType;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
 
 final class GGUFModelMetadataReader
 {
@@ -21,26 +19,26 @@ final class GGUFModelMetadataReader
     }
 
 
-    Object readMetadataValue(FileChannel fileChannel) throws IOException
+    Object readMetadataValue(GGUFModelCursor cursor)
     {
-        MetadataValueType value_type = metadataValueTypeReader.readMetadataValueType(fileChannel);
-        return readMetadataValueBasedOnType(value_type, fileChannel);
+        MetadataValueType value_type = metadataValueTypeReader.readMetadataValueType(cursor);
+        return readMetadataValueBasedOnType(value_type, cursor);
     }
 
 
-    private Object readMetadataValueBasedOnType(MetadataValueType valueType, FileChannel fileChannel) throws IOException
+    private Object readMetadataValueBasedOnType(MetadataValueType valueType, GGUFModelCursor cursor)
     {
         return switch(valueType)
         {
-            case UINT8, INT8 -> primitiveReader.readByte(fileChannel);
-            case UINT16, INT16 -> primitiveReader.readShort(fileChannel);
-            case UINT32, INT32 -> primitiveReader.readInt(fileChannel);
-            case FLOAT32 -> primitiveReader.readFloat(fileChannel);
-            case UINT64, INT64 -> primitiveReader.readLong(fileChannel);
-            case FLOAT64 -> primitiveReader.readDouble(fileChannel);
-            case BOOL -> primitiveReader.readBoolean(fileChannel);
-            case STRING -> stringReader.readString(fileChannel);
-            case ARRAY -> arrayReader.readArray(fileChannel);
+            case UINT8, INT8 -> primitiveReader.readByte(cursor);
+            case UINT16, INT16 -> primitiveReader.readShort(cursor);
+            case UINT32, INT32 -> primitiveReader.readInt(cursor);
+            case FLOAT32 -> primitiveReader.readFloat(cursor);
+            case UINT64, INT64 -> primitiveReader.readLong(cursor);
+            case FLOAT64 -> primitiveReader.readDouble(cursor);
+            case BOOL -> primitiveReader.readBoolean(cursor);
+            case STRING -> stringReader.readString(cursor);
+            case ARRAY -> arrayReader.readArray(cursor);
         };
     }
 }
@@ -1,8 +1,6 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
 
 import io.github.orionlibs.orion_llm4j_inference.core.utils.MetadataValueType;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
 
 final class GGUFModelMetadataValueTypeReader
 {
@@ -15,9 +13,9 @@ final class GGUFModelMetadataValueTypeReader
     }
 
 
-    MetadataValueType readMetadataValueType(FileChannel fileChannel) throws IOException
+    MetadataValueType readMetadataValueType(GGUFModelCursor cursor)
     {
-        int index = primitiveReader.readInt(fileChannel);
+        int index = primitiveReader.readInt(cursor);
         return MetadataValueType.fromIndex(index);
     }
 }
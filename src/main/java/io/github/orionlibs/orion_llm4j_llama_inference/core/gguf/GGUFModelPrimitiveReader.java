@@ -1,64 +1,55 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 
 public final class GGUFModelPrimitiveReader
 {
-    private final ByteBuffer BB_1 = ByteBuffer.allocate(Byte.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_2 = ByteBuffer.allocate(Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_4 = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_8 = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfInt JAVA_INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfLong JAVA_LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfFloat JAVA_FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfDouble JAVA_DOUBLE_LE = ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
 
 
-    public byte readByte(FileChannel fileChannel) throws IOException
+    public byte readByte(GGUFModelCursor cursor)
     {
-        int bytesRead = fileChannel.read(BB_1);
-        assert bytesRead == 1;
-        return BB_1.clear().get(0);
+        return cursor.getMemorySegment().get(ValueLayout.JAVA_BYTE, cursor.advance(Byte.BYTES));
     }
 
 
-    public boolean readBoolean(FileChannel fileChannel) throws IOException
+    public boolean readBoolean(GGUFModelCursor cursor)
     {
-        return readByte(fileChannel) != 0;
+        return readByte(cursor) != 0;
     }
 
 
-    public short readShort(FileChannel fileChannel) throws IOException
+    public short readShort(GGUFModelCursor cursor)
     {
-        int bytesRead = fileChannel.read(BB_2);
-        assert bytesRead == 2;
-        return BB_2.clear().getShort(0);
+        return cursor.getMemorySegment().get(JAVA_SHORT_LE, cursor.advance(Short.BYTES));
     }
 
 
-    public int readInt(FileChannel fileChannel) throws IOException
+    public int readInt(GGUFModelCursor cursor)
     {
-        int bytesRead = fileChannel.read(BB_4);
-        assert bytesRead == 4;
-        return BB_4.clear().getInt(0);
+        return cursor.getMemorySegment().get(JAVA_INT_LE, cursor.advance(Integer.BYTES));
     }
 
 
-    public long readLong(FileChannel fileChannel) throws IOException
+    public long readLong(GGUFModelCursor cursor)
     {
-        int bytesRead = fileChannel.read(BB_8);
-        assert bytesRead == 8;
-        return BB_8.clear().getLong(0);
+        return cursor.getMemorySegment().get(JAVA_LONG_LE, cursor.advance(Long.BYTES));
     }
 
 
-    public float readFloat(FileChannel fileChannel) throws IOException
+    public float readFloat(GGUFModelCursor cursor)
     {
-        return Float.intBitsToFloat(readInt(fileChannel));
+        return cursor.getMemorySegment().get(JAVA_FLOAT_LE, cursor.advance(Float.BYTES));
     }
 
 
-    public double readDouble(FileChannel fileChannel) throws IOException
+    public double readDouble(GGUFModelCursor cursor)
     {
-        return Double.longBitsToDouble(readLong(fileChannel));
+        return cursor.getMemorySegment().get(JAVA_DOUBLE_LE, cursor.advance(Double.BYTES));
     }
 }
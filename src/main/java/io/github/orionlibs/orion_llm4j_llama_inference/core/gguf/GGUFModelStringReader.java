@@ -1,8 +1,7 @@
 package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.charset.StandardCharsets;
 
 final class GGUFModelStringReader
@@ -16,12 +15,11 @@ final class GGUFModelStringReader
     }
 
 
-    String readString(FileChannel fileChannel) throws IOException
+    String readString(GGUFModelCursor cursor)
     {
-        int len = Math.toIntExact(primitiveReader.readLong(fileChannel));
+        int len = Math.toIntExact(primitiveReader.readLong(cursor));
         byte[] bytes = new byte[len];
-        int bytesRead = fileChannel.read(ByteBuffer.wrap(bytes));
-        assert len == bytesRead;
+        MemorySegment.copy(cursor.getMemorySegment(), ValueLayout.JAVA_BYTE, cursor.advance(len), bytes, 0, len);
         return new String(bytes, StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,356 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import io.github.orionlibs.orion_llm4j_inference.core.io.LLMResponse;
+import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * Continuous batching scheduler on top of a {@link LlamaLLMInferencer}.
+ * <p>
+ * Keeps a set of active sequences and advances all of them with one forward pass per step, so that the weights are
+ * read once per step no matter how many sequences are served. Sequences that are still ingesting their prompt
+ * contribute a chunk of prompt tokens to the step, the others contribute their latest token.
+ * New requests are admitted and finished ones are retired between steps.
+ * <p>
+ * Every request behaves like {@link LlamaLLMInferencer#generateTokens generateTokens} with a new state and
+ * a start position of 0. Samplers and callbacks are always called from the scheduler thread.
+ * The key/value cache pages of a request are returned to the pool of the model as soon as the request is finished.
+ * The pages of a step are taken before its forward pass, so when a bounded pool runs out of pages, the requests that
+ * need new pages fail with an {@link IllegalStateException} and the others go on.
+ */
+public final class LlamaBatchScheduler implements AutoCloseable
+{
+    private final LlamaLLMInferencer model;
+    private final int maximumNumberOfSequences;
+    private final LlamaTokenBatch batch;
+    private final LinkedBlockingQueue<Sequence> pendingSequences;
+    private final List<Sequence> activeSequences;
+    private final Thread worker;
+    private volatile boolean isRunning;
+
+
+    /**
+     * @param model                    the model to run
+     * @param maximumNumberOfSequences maximum number of sequences advanced together, requests beyond it wait for a free place
+     * @param maximumBatchSize         maximum number of tokens forwarded in one step, it has to be at least {@code maximumNumberOfSequences}
+     */
+    public LlamaBatchScheduler(LlamaLLMInferencer model, int maximumNumberOfSequences, int maximumBatchSize)
+    {
+        if(maximumNumberOfSequences < 1 || maximumBatchSize < maximumNumberOfSequences)
+        {
+            throw new IllegalArgumentException("invalid number of sequences " + maximumNumberOfSequences + " for batch size " + maximumBatchSize);
+        }
+        this.model = model;
+        this.maximumNumberOfSequences = maximumNumberOfSequences;
+        this.batch = new LlamaTokenBatch(maximumBatchSize);
+        this.pendingSequences = new LinkedBlockingQueue<>();
+        this.activeSequences = new ArrayList<>();
+        this.isRunning = true;
+        this.worker = Thread.ofPlatform().name("llama-batch-scheduler").daemon().start(this::run);
+    }
+
+
+    /**
+     * Queues a request.
+     *
+     * @param promptTokens     prompt tokens to ingest
+     * @param stopTokens       set of tokens that abort generation during inference
+     * @param maxTokens        maximum number of tokens, prompt included, negative means up to the context length
+     * @param sampler          {@link Sampler strategy} used to select tokens
+     * @param onTokenGenerated callback, if non-null, it's called for every prompt token and every inferred token
+     * @return the response, completed when a stop token is sampled or the maximum number of tokens is reached
+     */
+    public CompletableFuture<LLMResponse> submit(List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, IntConsumer onTokenGenerated)
+    {
+        if(!isRunning)
+        {
+            throw new IllegalStateException("scheduler is closed");
+        }
+        if(maxTokens < 0)
+        {
+            maxTokens = model.getConfiguration().contextLength;
+        }
+        Sequence sequence = new Sequence(List.copyOf(promptTokens), stopTokens, maxTokens, sampler, onTokenGenerated);
+        pendingSequences.add(sequence);
+        // the scheduler may have been closed after the check above and drained the queue before the add
+        if(!isRunning && pendingSequences.remove(sequence))
+        {
+            sequence.fail(new IllegalStateException("scheduler is closed"));
+        }
+        return sequence.future;
+    }
+
+
+    @Override
+    public void close()
+    {
+        isRunning = false;
+        worker.interrupt();
+    }
+
+
+    private void run()
+    {
+        try
+        {
+            while(isRunning)
+            {
+                admitPendingSequences();
+                // the admitted requests may all have failed or finished without a forward pass
+                if(!activeSequences.isEmpty())
+                {
+                    step();
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // no new requests after this, submit fails the ones it adds from now on
+            isRunning = false;
+            IllegalStateException closed = new IllegalStateException("scheduler is closed");
+            activeSequences.forEach(sequence -> sequence.fail(closed));
+            activeSequences.clear();
+            for(Sequence sequence = pendingSequences.poll(); sequence != null; sequence = pendingSequences.poll())
+            {
+                sequence.fail(closed);
+            }
+        }
+    }
+
+
+    private void admitPendingSequences() throws InterruptedException
+    {
+        if(activeSequences.isEmpty())
+        {
+            admit(pendingSequences.take());
+        }
+        while(activeSequences.size() < maximumNumberOfSequences && !pendingSequences.isEmpty())
+        {
+            admit(pendingSequences.poll());
+        }
+    }
+
+
+    private void admit(Sequence sequence)
+    {
+        try
+        {
+            sequence.state = model.createNewState();
+        }
+        catch(RuntimeException e)
+        {
+            sequence.fail(e);
+            return;
+        }
+        sequence.numberOfTokensToIngest = Math.min(sequence.promptTokens.size() + 1, sequence.maxTokens);
+        sequence.startNanos = System.nanoTime();
+        if(sequence.numberOfTokensToIngest <= 0)
+        {
+            sequence.complete();
+        }
+        else
+        {
+            activeSequences.add(sequence);
+        }
+    }
+
+
+    private void step()
+    {
+        batch.clear();
+        // every active sequence gets one row, the rows left over go to the prompt chunks
+        int rowsLeft = batch.capacity() - activeSequences.size();
+        for(Iterator<Sequence> iterator = activeSequences.iterator(); iterator.hasNext(); )
+        {
+            Sequence sequence = iterator.next();
+            int chunkSize = 1;
+            if(sequence.isIngestingPrompt())
+            {
+                chunkSize = Math.min(sequence.state.batchSize, Math.min(1 + rowsLeft, sequence.numberOfTokensToIngest - sequence.position));
+            }
+            try
+            {
+                // the pages are taken before the forward pass, so that a pool that runs out of them fails this sequence alone
+                sequence.state.reserveKVCachePages(sequence.position + chunkSize);
+            }
+            catch(IllegalStateException e)
+            {
+                sequence.fail(e);
+                iterator.remove();
+                continue;
+            }
+            if(sequence.isIngestingPrompt())
+            {
+                rowsLeft -= chunkSize - 1;
+                for(int b = 0; b < chunkSize; b++)
+                {
+                    int ingested = sequence.position + b;
+                    int token = ingested == 0 ? sequence.state.latestToken : sequence.promptTokens.get(ingested - 1);
+                    // the classifier is only needed by the chunk that ends with the last prompt token
+                    boolean computeLogits = ingested == sequence.promptTokens.size();
+                    batch.add(sequence.state, token, ingested, computeLogits);
+                }
+            }
+            else
+            {
+                batch.add(sequence.state, sequence.state.latestToken, sequence.position, true);
+            }
+            sequence.chunkSize = chunkSize;
+        }
+        if(batch.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            model.getNextTokenGenerator().forward(model, batch);
+        }
+        catch(RuntimeException e)
+        {
+            activeSequences.forEach(sequence -> sequence.fail(e));
+            activeSequences.clear();
+            return;
+        }
+        for(Iterator<Sequence> iterator = activeSequences.iterator(); iterator.hasNext(); )
+        {
+            Sequence sequence = iterator.next();
+            try
+            {
+                if(sequence.advance())
+                {
+                    sequence.complete();
+                    iterator.remove();
+                }
+            }
+            catch(RuntimeException e)
+            {
+                sequence.fail(e);
+                iterator.remove();
+            }
+        }
+    }
+
+
+    private static final class Sequence
+    {
+        final List<Integer> promptTokens;
+        final Set<Integer> stopTokens;
+        final int maxTokens;
+        final Sampler sampler;
+        final IntConsumer onTokenGenerated;
+        final CompletableFuture<LLMResponse> future;
+        final LLMResponse response;
+        LlamaTokenGenerationState state;
+        // latest token + prompt tokens
+        int numberOfTokensToIngest;
+        int promptIndex;
+        int position;
+        int chunkSize;
+        long startNanos;
+
+
+        Sequence(List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, IntConsumer onTokenGenerated)
+        {
+            this.promptTokens = promptTokens;
+            this.stopTokens = stopTokens;
+            this.maxTokens = maxTokens;
+            this.sampler = sampler;
+            this.onTokenGenerated = onTokenGenerated;
+            this.future = new CompletableFuture<>();
+            this.response = new LLMResponse(maxTokens);
+        }
+
+
+        boolean isIngestingPrompt()
+        {
+            return position < numberOfTokensToIngest;
+        }
+
+
+        /**
+         * Consumes the result of a step.
+         *
+         * @return true if the sequence is finished
+         */
+        boolean advance()
+        {
+            boolean wasIngestingPrompt = isIngestingPrompt();
+            position += chunkSize;
+            if(wasIngestingPrompt)
+            {
+                for(int b = 0; b < chunkSize && promptIndex < promptTokens.size(); b++)
+                {
+                    // Force-pick token from prompt.
+                    int nextToken = promptTokens.get(promptIndex++);
+                    if(onTokenGenerated != null)
+                    {
+                        onTokenGenerated.accept(nextToken);
+                    }
+                    state.latestToken = nextToken;
+                }
+                if(isIngestingPrompt())
+                {
+                    return false;
+                }
+                if(numberOfTokensToIngest < promptTokens.size() + 1)
+                {
+                    // the prompt did not fit, there is nothing to sample from
+                    return true;
+                }
+            }
+            int nextToken = sampler.sampleToken(state.logits);
+            response.addResponseToken(nextToken);
+            if(onTokenGenerated != null)
+            {
+                onTokenGenerated.accept(nextToken);
+            }
+            if(stopTokens.contains(nextToken))
+            {
+                return true;
+            }
+            state.latestToken = nextToken;
+            return position >= maxTokens;
+        }
+
+
+        void complete()
+        {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            int numberOfTokensGenerated = promptIndex + response.getResponseTokens().size();
+            double tokenGenerationRate = numberOfTokensGenerated / (elapsedNanos / 1_000_000_000.0);
+            response.setTokenGenerationRate(tokenGenerationRate);
+            response.setNumberOfTokensGenerated(numberOfTokensGenerated);
+            response.setStatsFormatted(String.format("%.2f tokens/s (%d)%n", tokenGenerationRate, numberOfTokensGenerated));
+            releaseState();
+            future.complete(response);
+        }
+
+
+        void fail(Throwable cause)
+        {
+            releaseState();
+            future.completeExceptionally(cause);
+        }
+
+
+        private void releaseState()
+        {
+            if(state != null)
+            {
+                state.close();
+                state = null;
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import io.github.orionlibs.orion_llm4j_inference.core.model.Weights;
 import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
 import io.github.orionlibs.orion_llm4j_inference.core.token.TokenGenerationState;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationStatePool;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensorPagePool;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.token.LlamaTokenizer;
 import java.util.List;
 import java.util.Set;
@@ -14,18 +16,26 @@ import java.util.function.IntConsumer;
 
 public class LlamaLLMInferencer extends LLMInferencer
 {
+    private final SimpleFloatTensorPagePool kvCachePagePool;
+    private final LlamaTokenGenerationStatePool statePool;
     private LLMResponse response;
 
 
     public LlamaLLMInferencer(LLMConfiguration configuration, LlamaTokenizer tokenizer, Weights weights)
     {
         super(configuration, tokenizer, weights, new LlamaNextTokenGenerator());
+        this.kvCachePagePool = LlamaTokenGenerationState.createKVCachePagePool(configuration, LlamaTokenGenerationState.DEFAULT_KV_CACHE_TYPE, LlamaTokenGenerationState.DEFAULT_KV_CACHE_MAXIMUM_PAGES);
+        this.statePool = new LlamaTokenGenerationStatePool(configuration, LlamaTokenGenerationState.DEFAULT_BATCH_SIZE, kvCachePagePool, LlamaTokenGenerationState.DEFAULT_MAXIMUM_FREE_STATES);
     }
 
 
+    /**
+     * @return a state from the state pool of this model, whose key/value cache pages come from the page pool of this model,
+     * it should be closed once it's not needed, which returns it to the state pool
+     */
     public LlamaTokenGenerationState createNewState()
     {
-        LlamaTokenGenerationState state = new LlamaTokenGenerationState(getConfiguration());
+        LlamaTokenGenerationState state = statePool.acquire();
         state.latestToken = getTokenizer().getSpecialTokens().get("<|begin_of_text|>");
         return state;
     }
@@ -36,7 +46,14 @@ public class LlamaLLMInferencer extends LLMInferencer
      *
      * <p>
      * All prompt tokens are ingested first, then inference starts, until a stop token is found.
+     * Prompt tokens are forwarded in chunks of {@link LlamaTokenGenerationState#batchSize} tokens, so that every weight
+     * matrix is read once per chunk.
      * The returned tokens only include generated/inferred tokens.
+     * <p>
+     * When the state has {@link LlamaTokenGenerationState#numberOfSinkPositions sink positions}, a full context is shifted
+     * instead of stopping: half of the positions after the sink positions are discarded and the rest are moved down,
+     * so generation goes on with bounded memory. The positions of {@code maxTokens} are then counted as if nothing
+     * had been discarded and {@link LlamaTokenGenerationState#numberOfDiscardedPositions} tells how many positions were.
      *
      * @param state            state of the model e.g. key/value caches ... this is mutated by this call
      * @param startPosition    start prompt ingestion + inference at this position in the context e.g. useful if state was kept across calls (chained generation). 0 implies run with no previous context.
@@ -44,9 +61,12 @@ public class LlamaLLMInferencer extends LLMInferencer
      * @param stopTokens       set of tokens that abort generation during inference, stop tokens do not affect prompt ingestion
      * @param maxTokens        maximum number of tokens (can go up to {@link LLMConfiguration#contextLength context length}
      *                         if this value is negative or greater than {@link LLMConfiguration#contextLength context length}
+     *                         or unbounded if this value is negative and the context is shifted
      * @param sampler          {@link Sampler strategy} used to select tokens
      * @param onTokenGenerated callback, if non-null, it's called every time a token is inferred e.g. it's not called when ingesting prompt tokens
      * @return Response including the actual model response and list of generated/inferred tokens, including the stop token, if any e.g. does not include any token from the prompt
+     * @throws IllegalStateException if the key/value cache page pool of the model is bounded and runs out of pages,
+     *                               the state keeps the positions before the ones that were being forwarded
      */
     @Override
     public LLMResponse generateTokens(TokenGenerationState state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, IntConsumer onTokenGenerated)
@@ -58,31 +78,65 @@ public class LlamaLLMInferencer extends LLMInferencer
         {
             maxTokens = model.getConfiguration().contextLength;
         }*/
+        int contextLength = getConfiguration().contextLength;
+        boolean contextShift = simpleState.numberOfSinkPositions >= 0;
+        if(contextShift && simpleState.numberOfSinkPositions > contextLength - 2)
+        {
+            throw new IllegalArgumentException(simpleState.numberOfSinkPositions + " sink positions leave nothing to shift in a context of " + contextLength);
+        }
         if(maxTokens < 0)
         {
-            maxTokens = getConfiguration().contextLength;
+            maxTokens = contextShift ? Integer.MAX_VALUE : contextLength;
         }
-        int token = simpleState.latestToken; // BOS?
-        int nextToken = 0;
         int promptIndex = 0;
-        for(int position = startPosition; position < maxTokens; position++)
+        int position = startPosition;
+        // number of positions discarded by context shifting during this call
+        int numberOfDiscardedPositions = 0;
+        // ingest the latest token followed by the prompt tokens, in chunks of the batch size
+        int numberOfTokensToIngest = Math.min(promptTokens.size() + 1, maxTokens - startPosition);
+        int[] chunk = new int[simpleState.batchSize];
+        int ingested = 0;
+        while(ingested < numberOfTokensToIngest)
         {
-            nextTokenGenerator.generate(this, simpleState, token, position);
+            if(contextShift && position == contextLength)
+            {
+                int shiftedPosition = shiftContext(simpleState, position);
+                numberOfDiscardedPositions += position - shiftedPosition;
+                position = shiftedPosition;
+            }
+            int chunkSize = Math.min(simpleState.batchSize, numberOfTokensToIngest - ingested);
+            if(contextShift)
+            {
+                chunkSize = Math.min(chunkSize, contextLength - position);
+            }
+            for(int b = 0; b < chunkSize; b++)
+            {
+                chunk[b] = ingested + b == 0 ? simpleState.latestToken : promptTokens.get(ingested + b - 1);
+            }
+            // the classifier is only needed by the chunk that ends with the last prompt token
+            boolean computeLogits = ingested + chunkSize == promptTokens.size() + 1;
+            getNextTokenGenerator().forward(this, simpleState, chunk, chunkSize, position, computeLogits);
+            position += chunkSize;
+            ingested += chunkSize;
             //this is the prompt itself
-            if(promptIndex < promptTokens.size())
+            for(int b = 0; b < chunkSize && promptIndex < promptTokens.size(); b++)
             {
                 // Force-pick token from prompt.
-                nextToken = promptTokens.get(promptIndex++);
+                int nextToken = promptTokens.get(promptIndex++);
                 if(onTokenGenerated != null)
                 {
                     onTokenGenerated.accept(nextToken);
                 }
+                simpleState.latestToken = nextToken;
                 //System.err.print(Tokenizer.replaceControlCharacters(getTokenizer().decode(List.of(nextToken))));
             }
-            //this is the LLM response itself
-            else
+        }
+        //this is the LLM response itself, the logits of the last ingested token predict the first response token
+        if(numberOfTokensToIngest == promptTokens.size() + 1)
+        {
+            while(true)
             {
-                nextToken = sampler.sampleToken(simpleState.logits);
+                int nextToken = sampler.sampleToken(simpleState.logits);
                 response.addResponseToken(nextToken);
                 //System.err.print(Tokenizer.replaceControlCharacters(getTokenizer().decode(List.of(nextToken))));
                 if(onTokenGenerated != null)
@@ -93,8 +147,19 @@ public class LlamaLLMInferencer extends LLMInferencer
                 {
                     break;
                 }
+                simpleState.latestToken = nextToken;
+                if(position + numberOfDiscardedPositions >= maxTokens)
+                {
+                    break;
+                }
+                if(contextShift && position == contextLength)
+                {
+                    int shiftedPosition = shiftContext(simpleState, position);
+                    numberOfDiscardedPositions += position - shiftedPosition;
+                    position = shiftedPosition;
+                }
+                nextTokenGenerator.generate(this, simpleState, nextToken, position++);
             }
-            simpleState.latestToken = token = nextToken;
         }
         long elapsedNanos = System.nanoTime() - startNanos;
         int numberOfTokensGenerated = promptIndex + response.getResponseTokens().size();
@@ -106,6 +171,37 @@ public class LlamaLLMInferencer extends LLMInferencer
     }
 
 
+    /**
+     * Discards half of the positions after the sink positions of a full context.
+     *
+     * @return the position that follows the positions left
+     */
+    private int shiftContext(LlamaTokenGenerationState state, int numberOfPositions)
+    {
+        int numberOfDiscardedPositions = (numberOfPositions - state.numberOfSinkPositions) / 2;
+        state.numberOfDiscardedPositions += numberOfDiscardedPositions;
+        return getNextTokenGenerator().shiftContext(this, state, state.numberOfSinkPositions, numberOfPositions, numberOfDiscardedPositions);
+    }
+
+
+    public SimpleFloatTensorPagePool getKVCachePagePool()
+    {
+        return kvCachePagePool;
+    }
+
+
+    public LlamaTokenGenerationStatePool getStatePool()
+    {
+        return statePool;
+    }
+
+
+    LlamaNextTokenGenerator getNextTokenGenerator()
+    {
+        return (LlamaNextTokenGenerator)nextTokenGenerator;
+    }
+
+
     @Override
     public LlamaTokenizer getTokenizer()
     {
@@ -7,6 +7,7 @@ import io.github.orionlibs.orion_llm4j_inference.core.model.Weights;
 import io.github.orionlibs.orion_llm4j_inference.core.token.TokenGenerationState;
 import io.github.orionlibs.orion_llm4j_inference.core.utils.Parallel;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.ArraySimpleFloatTensor;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
 import java.nio.FloatBuffer;
 
@@ -14,21 +15,174 @@ public class LlamaNextTokenGenerator implements NextTokenGenerator
 {
     private void rmsnorm(SimpleFloatTensor out, SimpleFloatTensor x, FloatBuffer weight, int size, float rmsNormEps)
     {
-        // calculate sum of squares
-        float ss = x.reduce(0, size, 0f, (acc, xi) -> acc + xi * xi);
-        ss /= size;
-        ss += rmsNormEps;
-        ss = (float)(1.0 / Math.sqrt(ss));
-        // normalize and scale
-        final float finalss = ss; // for the lambda
-        out.mapWithIndexInPlace(0, size, (value, index) -> weight.get(index) * (finalss * x.getFloat(index)));
+        x.rmsnorm(out, weight, size, rmsNormEps);
+    }
+
+
+    /**
+     * Attention of one head over the key/value caches, with online softmax.
+     * <p>
+     * The caches are walked in tiles of {@link LlamaTokenGenerationState#ATTENTION_TILE_SIZE} timesteps. A running maximum and a running sum of
+     * the exponentiated scores are kept, so the output is accumulated directly with a single pass over the keys and
+     * values and without a buffer for the scores of all timesteps.
+     * The caches are read by their own kernels, so they can be stored in any precision.
+     *
+     * @param q                 query vectors
+     * @param qOffset           offset of the query of this head
+     * @param keyCache          key cache of the layer (seq_len, kv_dim)
+     * @param valueCache        value cache of the layer (seq_len, kv_dim)
+     * @param kvOffset          offset of the key/value head within every timestep
+     * @param kvDim             size of a timestep in the caches
+     * @param numberOfPositions number of timesteps to attend to, starting from timestep 0
+     * @param headSize          size of a head
+     * @param sqrtHeadSize      square root of the head size that the scores are divided by
+     * @param out               output vectors
+     * @param outOffset         offset of the output of this head
+     * @param scores            where the scores of a tile are kept, from {@code scoresOffset}
+     * @param scoresOffset      offset of the scores of this head
+     */
+    private void attention(SimpleFloatTensor q, int qOffset, SimpleFloatTensor keyCache, SimpleFloatTensor valueCache, int kvOffset, int kvDim,
+                    int numberOfPositions, int headSize, float sqrtHeadSize, SimpleFloatTensor out, int outOffset, float[] scores, int scoresOffset)
+    {
+        float runningMax = Float.NEGATIVE_INFINITY;
+        float runningSum = 0f;
+        out.fillInPlace(outOffset, headSize, 0f);
+        for(int tileStart = 0; tileStart < numberOfPositions; tileStart += LlamaTokenGenerationState.ATTENTION_TILE_SIZE)
+        {
+            int tileSize = Math.min(LlamaTokenGenerationState.ATTENTION_TILE_SIZE, numberOfPositions - tileStart);
+            // attention scores of the tile, as the dot product of q and k
+            float tileMax = runningMax;
+            for(int t = 0; t < tileSize; t++)
+            {
+                float score = keyCache.dot((tileStart + t) * kvDim + kvOffset, q, qOffset, headSize) / sqrtHeadSize;
+                scores[scoresOffset + t] = score;
+                tileMax = Math.max(tileMax, score);
+            }
+            // rescale what has been accumulated so far to the new maximum
+            if(tileMax > runningMax)
+            {
+                float correction = (float)Math.exp(runningMax - tileMax);
+                runningSum *= correction;
+                out.scaleInPlace(outOffset, headSize, correction);
+                runningMax = tileMax;
+            }
+            // accumulate the weighted values of the tile
+            for(int t = 0; t < tileSize; t++)
+            {
+                float weight = (float)Math.exp(scores[scoresOffset + t] - runningMax);
+                runningSum += weight;
+                valueCache.saxpyTo((tileStart + t) * kvDim + kvOffset, out, outOffset, headSize, weight);
+            }
+        }
+        // normalise by the sum of the weights
+        out.divideInPlace(outOffset, headSize, runningSum);
+    }
+
+
+    /**
+     * Discards positions of the key/value caches to make room for new ones e.g. to generate beyond the context length.
+     * <p>
+     * The first {@code numberOfSinkPositions} positions are kept, attention keeps attending to the first tokens whatever
+     * they are (attention sinks) and it degrades without them. The next {@code numberOfDiscardedPositions} positions are
+     * discarded and the rest are moved down to follow the sink positions.
+     * Keys carry their position through RoPE, which is a rotation, so the moved keys are rotated back by the number of
+     * discarded positions and they are the keys of their new positions.
+     *
+     * @param model                      the model of the state
+     * @param state                      state whose key/value caches are shifted
+     * @param numberOfSinkPositions      number of positions to keep at the start of the caches
+     * @param numberOfPositions          number of positions in the caches
+     * @param numberOfDiscardedPositions number of positions to discard after the sink positions
+     * @return the number of positions left in the caches
+     */
+    public int shiftContext(LLMInferencer model, LlamaTokenGenerationState state, int numberOfSinkPositions, int numberOfPositions, int numberOfDiscardedPositions)
+    {
+        if(numberOfSinkPositions < 0 || numberOfDiscardedPositions < 0 || numberOfSinkPositions + numberOfDiscardedPositions > numberOfPositions)
+        {
+            throw new IllegalArgumentException("cannot discard " + numberOfDiscardedPositions + " positions after " + numberOfSinkPositions + " sink positions out of " + numberOfPositions);
+        }
+        LLMConfiguration config = model.getConfiguration();
+        Weights weights = model.getWeights();
+        int headSize = config.headSize;
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        Parallel.parallelFor(0, config.numberOfLayers, l -> {
+            SimpleFloatTensor key = ArraySimpleFloatTensor.allocate(kvDim);
+            for(int position = numberOfSinkPositions + numberOfDiscardedPositions; position < numberOfPositions; position++)
+            {
+                int newPosition = position - numberOfDiscardedPositions;
+                state.keyCache[l].copyTo(position * kvDim, key, 0, kvDim);
+                // rotate back by the number of discarded positions, the inverse of the RoPE rotation of that position
+                for(int i = 0; i < kvDim; i += 2)
+                {
+                    int head_dim = i % headSize;
+                    float fcr = weights.freq_cis_real.get(numberOfDiscardedPositions * (headSize / 2) + (head_dim / 2));
+                    float fci = weights.freq_cis_imag.get(numberOfDiscardedPositions * (headSize / 2) + (head_dim / 2));
+                    float v0 = key.getFloat(i);
+                    float v1 = key.getFloat(i + 1);
+                    key.setFloat(i, v0 * fcr + v1 * fci);
+                    key.setFloat(i + 1, v1 * fcr - v0 * fci);
+                }
+                key.copyTo(0, state.keyCache[l], newPosition * kvDim, kvDim);
+                state.valueCache[l].copyTo(position * kvDim, state.valueCache[l], newPosition * kvDim, kvDim);
+            }
+        });
+        return numberOfPositions - numberOfDiscardedPositions;
     }
 
 
     @Override
     public SimpleFloatTensor generate(LLMInferencer model, TokenGenerationState state, int token, int position)
     {
-        LlamaTokenGenerationState simpleState = (LlamaTokenGenerationState)state;
+        LlamaTokenGenerationState llamaState = (LlamaTokenGenerationState)state;
+        LlamaTokenBatch batch = llamaState.getTokenBatch();
+        batch.add(llamaState, token, position, true);
+        forward(model, batch);
+        return llamaState.logits;
+    }
+
+
+    /**
+     * Forwards a chunk of consecutive tokens through all the layers together.
+     * <p>
+     * The tokens occupy positions {@code position ... position + numberOfTokens - 1} and each one of them
+     * attends to all the previous positions of the key/value caches, including the earlier tokens of the chunk.
+     * Every weight matrix is read once per chunk rather than once per token.
+     *
+     * @param model          the model to run
+     * @param state          state of the model, its batch buffers must be able to hold {@code numberOfTokens} tokens
+     * @param tokens         tokens to forward, only the first {@code numberOfTokens} are used
+     * @param numberOfTokens number of tokens in the chunk
+     * @param position       position of the first token of the chunk
+     * @param computeLogits  whether to run the final rmsnorm and the classifier, when false the forward pass stops
+     *                       after the residual of the last layer, which only fills the key/value caches
+     * @return the logits for the token that follows the last token of the chunk or null if {@code computeLogits} is false
+     */
+    public SimpleFloatTensor forward(LLMInferencer model, LlamaTokenGenerationState state, int[] tokens, int numberOfTokens, int position, boolean computeLogits)
+    {
+        LlamaTokenBatch batch = state.getTokenBatch();
+        for(int b = 0; b < numberOfTokens; b++)
+        {
+            batch.add(state, tokens[b], position + b, computeLogits && b == numberOfTokens - 1);
+        }
+        forward(model, batch);
+        return computeLogits ? state.logits : null;
+    }
+
+
+    /**
+     * Forwards all the rows of a batch through all the layers together.
+     * <p>
+     * The rows may belong to different sequences, every row attends to the positions of its own key/value caches up to,
+     * and including, its own position. Every weight matrix is read once per batch rather than once per row.
+     * The rows that ask for logits get them in the tensor they were added with.
+     *
+     * @param model the model to run
+     * @param batch rows to forward
+     */
+    public void forward(LLMInferencer model, LlamaTokenBatch batch)
+    {
+        int numberOfRows = batch.size();
+        assert numberOfRows > 0;
         // a few convenience variables
         LLMConfiguration config = model.getConfiguration();
         Weights weights = model.getWeights();
@@ -37,100 +191,98 @@ public class LlamaNextTokenGenerator implements NextTokenGenerator
         int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
         int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
         float sqrtHeadSize = (float)Math.sqrt(headSize);
-        // copy the token embedding into x
-        weights.token_embedding_table.copyTo(token * dim, simpleState.x, 0, dim);
+        // copy the token embeddings into x
+        for(int b = 0; b < numberOfRows; b++)
+        {
+            weights.token_embedding_table.copyTo(batch.tokens[b] * dim, batch.x[b], 0, dim);
+        }
         // forward all the layers
         for(int l = 0; l < config.numberOfLayers; l++)
         {
             // attention rmsnorm
-            rmsnorm(simpleState.xb, simpleState.x, weights.rms_att_weight[l], dim, config.rmsNormEps);
-            // qkv matmuls for this position
-            weights.wq[l].matmul(simpleState.xb, simpleState.q, dim, dim);
-            weights.wk[l].matmul(simpleState.xb, simpleState.k, kvDim, dim);
-            weights.wv[l].matmul(simpleState.xb, simpleState.v, kvDim, dim);
-            // RoPE relative positional encoding: complex-valued rotate q and k in each head
-            for(int i = 0; i < dim; i += 2)
+            for(int b = 0; b < numberOfRows; b++)
             {
-                int head_dim = i % headSize;
-                float fcr = weights.freq_cis_real.get(position * (headSize / 2) + (head_dim / 2));
-                float fci = weights.freq_cis_imag.get(position * (headSize / 2) + (head_dim / 2));
-                int rotn = i < kvDim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
-                for(int v = 0; v < rotn; v++)
+                rmsnorm(batch.xb[b], batch.x[b], weights.rms_att_weight[l], dim, config.rmsNormEps);
+            }
+            // qkv matmuls for these positions, in a single parallel region
+            SimpleFloatTensor.matmul3(numberOfRows, batch.xb,
+                            weights.wq[l], batch.q, dim,
+                            weights.wk[l], batch.k, kvDim,
+                            weights.wv[l], batch.v, kvDim,
+                            dim);
+            for(int b = 0; b < numberOfRows; b++)
+            {
+                int position = batch.positions[b];
+                // RoPE relative positional encoding: complex-valued rotate q and k in each head
+                for(int i = 0; i < dim; i += 2)
                 {
-                    SimpleFloatTensor vec = v == 0 ? simpleState.q : simpleState.k; // the vector to rotate (query or key)
-                    float v0 = vec.getFloat(i);
-                    float v1 = vec.getFloat(i + 1);
-                    vec.setFloat(i, v0 * fcr - v1 * fci);
-                    vec.setFloat(i + 1, v0 * fci + v1 * fcr);
+                    int head_dim = i % headSize;
+                    float fcr = weights.freq_cis_real.get(position * (headSize / 2) + (head_dim / 2));
+                    float fci = weights.freq_cis_imag.get(position * (headSize / 2) + (head_dim / 2));
+                    int rotn = i < kvDim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
+                    for(int v = 0; v < rotn; v++)
+                    {
+                        SimpleFloatTensor vec = v == 0 ? batch.q[b] : batch.k[b]; // the vector to rotate (query or key)
+                        float v0 = vec.getFloat(i);
+                        float v1 = vec.getFloat(i + 1);
+                        vec.setFloat(i, v0 * fcr - v1 * fci);
+                        vec.setFloat(i + 1, v0 * fci + v1 * fcr);
+                    }
                 }
+                // save key,value at this time step (position) to our kv cache
+                batch.k[b].copyTo(0, batch.states[b].keyCache[l], position * kvDim, kvDim);
+                batch.v[b].copyTo(0, batch.states[b].valueCache[l], position * kvDim, kvDim);
             }
-            // save key,value at this time step (position) to our kv cache
-            //int loff = l * config.seq_len * kvDim; // kv cache layer offset for convenience
-            simpleState.k.copyTo(0, simpleState.keyCache[l], position * kvDim, kvDim);
-            simpleState.v.copyTo(0, simpleState.valueCache[l], position * kvDim, kvDim);
             int curLayer = l;
-            // multihead attention. iterate over all heads
-            Parallel.parallelFor(0, config.numberOfHeads, h -> {
-                // get the query vector for this head
-                // float* q = s.q + h * headSize;
-                int qOffset = h * headSize;
-                // attention scores for this head
-                // float* att = s.att + h * config.seq_len;
-                int attOffset = h * config.contextLength;
-                // iterate over all timesteps, including the current one
-                for(int t = 0; t <= position; t++)
-                {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s.key_cache + loff + t * dim + h * headSize;
-                    int keyCacheOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // calculate the attention score as the dot product of q and k
-                    float score = simpleState.q.dot(qOffset, simpleState.keyCache[curLayer], keyCacheOffset, headSize);
-                    score /= sqrtHeadSize;
-                    // save the score to the attention buffer
-                    simpleState.att.setFloat(attOffset + t, score);
-                }
-                // softmax the scores to get attention weights, from 0..position inclusively
-                simpleState.att.softmaxInPlace(attOffset, position + 1);
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * headSize;
-                int xbOffset = h * headSize;
-                // memset(xb, 0, headSize * sizeof(float));
-                simpleState.xb.fillInPlace(xbOffset, headSize, 0f);
-                for(int t = 0; t <= position; t++)
-                {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s.value_cache + loff + t * dim + h * headSize;
-                    int vOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // get the attention weight for this timestep
-                    float a = simpleState.att.getFloat(attOffset + t);
-                    // accumulate the weighted value into xb
-                    simpleState.xb.saxpyInPlace(xbOffset, simpleState.valueCache[curLayer], vOffset, headSize, a);
-                }
+            // multihead attention. iterate over all rows and heads
+            Parallel.parallelFor(0, numberOfRows * config.numberOfHeads, rowHead -> {
+                int b = rowHead / config.numberOfHeads;
+                int h = rowHead % config.numberOfHeads;
+                LlamaTokenGenerationState state = batch.states[b];
+                // causal attention, every row only sees the positions of its sequence up to its own
+                attention(batch.q[b], h * headSize, state.keyCache[curLayer], state.valueCache[curLayer], (h / kvMul) * headSize, kvDim,
+                                batch.positions[b] + 1, headSize, sqrtHeadSize, batch.xb[b], h * headSize,
+                                batch.attentionScores[b], h * LlamaTokenGenerationState.ATTENTION_TILE_SIZE);
             });
             // final matmul to get the output of the attention
-            weights.wo[l].matmul(simpleState.xb, simpleState.xb2, dim, dim);
-            // residual connection back into x
-            simpleState.x.addInPlace(simpleState.xb2);
-            // ffn rmsnorm
-            rmsnorm(simpleState.xb, simpleState.x, weights.rms_ffn_weight[l], dim, config.rmsNormEps);
+            ((SimpleFloatTensor)weights.wo[l]).matmul(numberOfRows, batch.xb, batch.xb2, dim, dim);
+            for(int b = 0; b < numberOfRows; b++)
+            {
+                // residual connection back into x
+                batch.x[b].addInPlace(batch.xb2[b]);
+                // ffn rmsnorm
+                rmsnorm(batch.xb[b], batch.x[b], weights.rms_ffn_weight[l], dim, config.rmsNormEps);
+            }
             // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
-            // first calculate self.w1(x) and self.w3(x)
-            weights.w1[l].matmul(simpleState.xb, simpleState.hb, config.hiddenDim, dim);
-            weights.w3[l].matmul(simpleState.xb, simpleState.hb2, config.hiddenDim, dim);
-            // SwiGLU non-linearity
-            // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
-            simpleState.hb.mapInPlace(value -> value / (float)(1.0 + Math.exp(-value)));
-            // elementwise multiply with w3(x)
-            simpleState.hb.multiplyInPlace(simpleState.hb2);
+            // self.w1(x), self.w3(x) and the SwiGLU non-linearity are computed in a single pass
+            SimpleFloatTensor.matmulSwiGLU(numberOfRows, weights.w1[l], weights.w3[l], batch.xb, batch.hb, config.hiddenDim, dim);
             // final matmul to get the output of the ffn
-            weights.w2[l].matmul(simpleState.hb, simpleState.xb, dim, config.hiddenDim);
-            // residual connection
-            simpleState.x.addInPlace(simpleState.xb);
+            ((SimpleFloatTensor)weights.w2[l]).matmul(numberOfRows, batch.hb, batch.xb, dim, config.hiddenDim);
+            for(int b = 0; b < numberOfRows; b++)
+            {
+                // residual connection
+                batch.x[b].addInPlace(batch.xb[b]);
+            }
+        }
+        // only the rows that predict a token need the classifier, they share a single pass over its weights
+        SimpleFloatTensor[] logitsInputs = batch.logitsInputs;
+        SimpleFloatTensor[] logitsOutputs = batch.logitsOutputs;
+        int numberOfLogitsRows = 0;
+        for(int b = 0; b < numberOfRows; b++)
+        {
+            if(batch.logits[b] != null)
+            {
+                // final rmsnorm
+                rmsnorm(batch.x[b], batch.x[b], weights.rms_final_weight, dim, config.rmsNormEps);
+                logitsInputs[numberOfLogitsRows] = batch.x[b];
+                logitsOutputs[numberOfLogitsRows] = batch.logits[b];
+                numberOfLogitsRows++;
+            }
+        }
+        if(numberOfLogitsRows > 0)
+        {
+            // classifier into logits
+            ((SimpleFloatTensor)weights.wcls).matmul(numberOfLogitsRows, logitsInputs, logitsOutputs, config.vocabularySize, dim);
         }
-        // final rmsnorm
-        rmsnorm(simpleState.x, simpleState.x, weights.rms_final_weight, dim, config.rmsNormEps);
-        // classifier into logits
-        weights.wcls.matmul(simpleState.x, simpleState.logits, config.vocabularySize, dim);
-        return simpleState.logits;
     }
 }
@@ -0,0 +1,271 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.inference.LLMConfiguration;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the keys and values of token sequences that have already been forwarded e.g. a system prompt shared by many requests.
+ * <p>
+ * Sequences are kept in a radix tree, every edge holds a run of tokens and a copy of their keys and values for all
+ * the layers, so sequences with a common prefix share the storage of the prefix.
+ * A new sequence copies the keys and values of its longest cached prefix into its state and only the rest of it is forwarded.
+ * When the cache grows over its memory budget, the least recently used leaves are evicted.
+ * <p>
+ * A sequence is the list of tokens in the order they are forwarded, starting at position 0, which for
+ * {@link LlamaLLMInferencer#generateTokens generateTokens} is the latest token of the state followed by the prompt tokens.
+ * The cache is thread-safe.
+ */
+public final class LlamaPrefixCache
+{
+    private final int numberOfLayers;
+    private final int kvDim;
+    private final GGUFType type;
+    private final long maximumNumberOfBytes;
+    private final Node root;
+    private long numberOfBytes;
+    private long clock;
+
+
+    /**
+     * @param config               configuration of the model whose keys and values are cached
+     * @param type                 precision of the cached keys and values, one of F32, F16 or Q8_0
+     * @param maximumNumberOfBytes memory budget of the cached keys and values
+     */
+    public LlamaPrefixCache(LLMConfiguration config, GGUFType type, long maximumNumberOfBytes)
+    {
+        this.numberOfLayers = config.numberOfLayers;
+        this.kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        this.type = type;
+        this.maximumNumberOfBytes = maximumNumberOfBytes;
+        this.root = new Node(null, new int[0], 0);
+    }
+
+
+    /**
+     * Copies the keys and values of the longest cached prefix of a sequence into a state.
+     * <p>
+     * At most {@code tokens.size() - 1} positions are restored, so that at least one token is left to forward and
+     * predict the next token from. The caller continues from the returned position with the next token of the sequence.
+     *
+     * @param tokens tokens of the sequence
+     * @param state  state whose key/value caches receive the prefix, from position 0
+     * @return number of restored positions
+     */
+    public synchronized int restore(List<Integer> tokens, LlamaTokenGenerationState state)
+    {
+        int maximumLength = tokens.size() - 1;
+        int length = 0;
+        long time = ++clock;
+        Node node = root;
+        while(length < maximumLength)
+        {
+            Node child = node.children.get(tokens.get(length));
+            if(child == null)
+            {
+                break;
+            }
+            int matched = child.match(tokens, length, maximumLength);
+            child.lastAccess = time;
+            copyToState(child, matched, state);
+            length += matched;
+            if(matched < child.tokens.length)
+            {
+                break;
+            }
+            node = child;
+        }
+        return length;
+    }
+
+
+    /**
+     * Adds a sequence to the cache, the positions that are already cached are not copied again.
+     *
+     * @param tokens tokens of the sequence
+     * @param state  state whose key/value caches hold the sequence, from position 0
+     */
+    public synchronized void store(List<Integer> tokens, LlamaTokenGenerationState state)
+    {
+        int length = 0;
+        long time = ++clock;
+        Node node = root;
+        while(length < tokens.size())
+        {
+            Node child = node.children.get(tokens.get(length));
+            if(child == null)
+            {
+                child = new Node(node, toArray(tokens, length, tokens.size()), length);
+                copyFromState(child, state);
+                child.lastAccess = time;
+                node.children.put(child.tokens[0], child);
+                numberOfBytes += child.numberOfBytes();
+                break;
+            }
+            int matched = child.match(tokens, length, tokens.size());
+            if(matched < child.tokens.length)
+            {
+                child = split(child, matched);
+            }
+            child.lastAccess = time;
+            length += matched;
+            node = child;
+        }
+        evict();
+    }
+
+
+    public synchronized long getNumberOfBytes()
+    {
+        return numberOfBytes;
+    }
+
+
+    public synchronized void clear()
+    {
+        root.children.clear();
+        numberOfBytes = 0;
+    }
+
+
+    /**
+     * Replaces a node by two, one for the first {@code length} tokens of its edge and a child of it for the rest.
+     *
+     * @return the node of the first part
+     */
+    private Node split(Node node, int length)
+    {
+        Node first = new Node(node.parent, Arrays.copyOf(node.tokens, length), node.startPosition);
+        Node rest = new Node(first, Arrays.copyOfRange(node.tokens, length, node.tokens.length), node.startPosition + length);
+        for(int l = 0; l < numberOfLayers; l++)
+        {
+            node.keys[l].copyTo(0, first.keys[l], 0, length * kvDim);
+            node.values[l].copyTo(0, first.values[l], 0, length * kvDim);
+            node.keys[l].copyTo(length * kvDim, rest.keys[l], 0, rest.tokens.length * kvDim);
+            node.values[l].copyTo(length * kvDim, rest.values[l], 0, rest.tokens.length * kvDim);
+        }
+        rest.children.putAll(node.children);
+        rest.children.values().forEach(child -> child.parent = rest);
+        rest.lastAccess = node.lastAccess;
+        first.children.put(rest.tokens[0], rest);
+        first.lastAccess = node.lastAccess;
+        node.parent.children.put(first.tokens[0], first);
+        return first;
+    }
+
+
+    private void evict()
+    {
+        while(numberOfBytes > maximumNumberOfBytes)
+        {
+            Node leastRecentlyUsed = null;
+            List<Node> nodes = new ArrayList<>(root.children.values());
+            while(!nodes.isEmpty())
+            {
+                Node node = nodes.removeLast();
+                if(node.children.isEmpty())
+                {
+                    if(leastRecentlyUsed == null || node.lastAccess < leastRecentlyUsed.lastAccess)
+                    {
+                        leastRecentlyUsed = node;
+                    }
+                }
+                else
+                {
+                    nodes.addAll(node.children.values());
+                }
+            }
+            if(leastRecentlyUsed == null)
+            {
+                return;
+            }
+            leastRecentlyUsed.parent.children.remove(leastRecentlyUsed.tokens[0]);
+            numberOfBytes -= leastRecentlyUsed.numberOfBytes();
+        }
+    }
+
+
+    private void copyToState(Node node, int length, LlamaTokenGenerationState state)
+    {
+        for(int l = 0; l < numberOfLayers; l++)
+        {
+            node.keys[l].copyTo(0, state.keyCache[l], node.startPosition * kvDim, length * kvDim);
+            node.values[l].copyTo(0, state.valueCache[l], node.startPosition * kvDim, length * kvDim);
+        }
+    }
+
+
+    private void copyFromState(Node node, LlamaTokenGenerationState state)
+    {
+        for(int l = 0; l < numberOfLayers; l++)
+        {
+            state.keyCache[l].copyTo(node.startPosition * kvDim, node.keys[l], 0, node.tokens.length * kvDim);
+            state.valueCache[l].copyTo(node.startPosition * kvDim, node.values[l], 0, node.tokens.length * kvDim);
+        }
+    }
+
+
+    private static int[] toArray(List<Integer> tokens, int from, int to)
+    {
+        int[] array = new int[to - from];
+        for(int i = from; i < to; i++)
+        {
+            array[i - from] = tokens.get(i);
+        }
+        return array;
+    }
+
+
+    private final class Node
+    {
+        final int[] tokens;
+        final int startPosition;
+        final SimpleFloatTensor[] keys;
+        final SimpleFloatTensor[] values;
+        final Map<Integer, Node> children;
+        Node parent;
+        long lastAccess;
+
+
+        Node(Node parent, int[] tokens, int startPosition)
+        {
+            this.parent = parent;
+            this.tokens = tokens;
+            this.startPosition = startPosition;
+            this.keys = new SimpleFloatTensor[tokens.length > 0 ? numberOfLayers : 0];
+            this.values = new SimpleFloatTensor[keys.length];
+            for(int l = 0; l < keys.length; l++)
+            {
+                keys[l] = SimpleFloatTensor.allocate(type, tokens.length, kvDim);
+                values[l] = SimpleFloatTensor.allocate(type, tokens.length, kvDim);
+            }
+            this.children = new HashMap<>();
+        }
+
+
+        /**
+         * @return number of tokens of this edge that are equal to the tokens of the sequence from the given index
+         */
+        int match(List<Integer> sequence, int from, int to)
+        {
+            int length = 0;
+            while(length < tokens.length && from + length < to && tokens[length] == sequence.get(from + length))
+            {
+                length++;
+            }
+            return length;
+        }
+
+
+        long numberOfBytes()
+        {
+            return 2L * keys.length * type.byteSizeFor(tokens.length * kvDim);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import io.github.orionlibs.orion_llm4j_inference.core.io.LLMResponse;
+import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.sampler.CategoricalSampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.sampler.SimpleSamplerSelector;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.sampler.SimpleToppSampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntConsumer;
+import java.util.random.RandomGenerator;
+
+/**
+ * Speculative decoding, draft tokens are proposed cheaply and the model verifies all of them with a single forward pass.
+ * <p>
+ * Draft tokens come either from a small draft model, that generates them one by one, or from the sequence itself:
+ * prompt lookup finds the latest earlier occurrence of the last few tokens and proposes the tokens that followed it,
+ * which pays off when the output copies spans of the prompt e.g. extraction and rewriting, without a second model.
+ * <p>
+ * Every step, the model forwards its latest token followed by the draft tokens as one batch, with logits for every row.
+ * The longest prefix of the draft tokens that the model agrees with is accepted, followed by a token of the model
+ * itself, so a step produces between 1 and {@code numberOfDraftTokens + 1} tokens for a single pass over the weights
+ * of the model. The positions of the rejected tokens are overwritten by the next step, so the key/value caches are
+ * rolled back by not moving past them.
+ * <p>
+ * With a temperature of 0, a draft token is accepted when it's the argmax of the model, so the output is the one of
+ * greedy decoding with the model alone. Otherwise draft tokens go through rejection sampling: a token is accepted with
+ * probability min(1, p / q), p and q being its probabilities under the model and the drafter, and a rejected token
+ * is replaced by a sample of the normalised max(0, p - q). A token proposed by prompt lookup has a q of 1.
+ * With top-p, both p and q are truncated to their nucleus and renormalised before they are compared.
+ * The output is then distributed as sampling from the model alone, with the temperature and top-p applied.
+ * <p>
+ * A draft model may have a shorter context than the model, it drafts no tokens past its context.
+ */
+public final class LlamaSpeculativeDecoder
+{
+    private final LlamaLLMInferencer model;
+    private final LlamaLLMInferencer draftModel;
+    private final int ngramSize;
+    private final int numberOfDraftTokens;
+    private final float temperature;
+    private final float topp;
+    private final Sampler categoricalSampler;
+    // null without top-p
+    private final SimpleToppSampler toppSampler;
+    private final RandomGenerator rng;
+
+
+    /**
+     * Speculative decoding with a draft model.
+     *
+     * @param model               the model whose output is produced
+     * @param draftModel          the model that proposes tokens, with the tokenizer of {@code model} and a context of any length
+     * @param numberOfDraftTokens number of tokens proposed by every step, less than the batch size of the states
+     * @param temperature         temperature of sampling, 0 for greedy decoding
+     * @param topp                top-p of sampling, outside of (0, 1) sampling is not truncated
+     * @param rng                 source of randomness of sampling
+     */
+    public LlamaSpeculativeDecoder(LlamaLLMInferencer model, LlamaLLMInferencer draftModel, int numberOfDraftTokens, float temperature, float topp, RandomGenerator rng)
+    {
+        this(model, draftModel, 0, numberOfDraftTokens, temperature, topp, rng);
+        if(model.getConfiguration().vocabularySize != draftModel.getConfiguration().vocabularySize)
+        {
+            throw new IllegalArgumentException("the draft model has a vocabulary of " + draftModel.getConfiguration().vocabularySize
+                            + " tokens, but the model has " + model.getConfiguration().vocabularySize);
+        }
+    }
+
+
+    /**
+     * Speculative decoding with prompt lookup.
+     *
+     * @param model               the model whose output is produced
+     * @param ngramSize           maximum number of last tokens that are looked up in the sequence, shorter ones are tried when they are not found
+     * @param numberOfDraftTokens maximum number of tokens proposed by every step, less than the batch size of the states
+     * @param temperature         temperature of sampling, 0 for greedy decoding
+     * @param topp                top-p of sampling, outside of (0, 1) sampling is not truncated
+     * @param rng                 source of randomness of sampling
+     */
+    public LlamaSpeculativeDecoder(LlamaLLMInferencer model, int ngramSize, int numberOfDraftTokens, float temperature, float topp, RandomGenerator rng)
+    {
+        this(model, null, ngramSize, numberOfDraftTokens, temperature, topp, rng);
+        if(ngramSize < 1)
+        {
+            throw new IllegalArgumentException("n-gram size must be positive, but got " + ngramSize);
+        }
+    }
+
+
+    private LlamaSpeculativeDecoder(LlamaLLMInferencer model, LlamaLLMInferencer draftModel, int ngramSize, int numberOfDraftTokens, float temperature, float topp, RandomGenerator rng)
+    {
+        if(numberOfDraftTokens < 1 || numberOfDraftTokens >= LlamaTokenGenerationState.DEFAULT_BATCH_SIZE)
+        {
+            throw new IllegalArgumentException("number of draft tokens must be between 1 and " + (LlamaTokenGenerationState.DEFAULT_BATCH_SIZE - 1) + ", but got " + numberOfDraftTokens);
+        }
+        if(temperature < 0f)
+        {
+            throw new IllegalArgumentException("temperature must not be negative, but got " + temperature);
+        }
+        this.model = model;
+        this.draftModel = draftModel;
+        this.ngramSize = ngramSize;
+        this.numberOfDraftTokens = numberOfDraftTokens;
+        this.temperature = temperature;
+        this.topp = topp;
+        this.categoricalSampler = new CategoricalSampler(rng);
+        // the same nucleus as the top-p sampler of the model
+        this.toppSampler = topp > 0 && topp < 1 ? new SimpleToppSampler(model.getConfiguration().vocabularySize, topp, rng) : null;
+        this.rng = rng;
+    }
+
+
+    /**
+     * Ingests prompt tokens and generates new tokens, like {@link LlamaLLMInferencer#generateTokens generateTokens}
+     * with the sampling of this decoder.
+     * The draft model, if any, gets a state of its own for this call, that only holds the positions from {@code startPosition}.
+     *
+     * @param state            state of the model, it's mutated by this call
+     * @param startPosition    start prompt ingestion + inference at this position in the context
+     * @param promptTokens     prompt tokens to ingest
+     * @param stopTokens       set of tokens that abort generation during inference
+     * @param maxTokens        maximum number of tokens, up to the context length, negative means up to the context length
+     * @param onTokenGenerated callback, if non-null, it's called for every prompt token and every inferred token
+     * @return Response including the list of generated/inferred tokens, including the stop token, if any
+     */
+    public LLMResponse generateTokens(LlamaTokenGenerationState state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, IntConsumer onTokenGenerated)
+    {
+        int contextLength = model.getConfiguration().contextLength;
+        if(maxTokens < 0 || maxTokens > contextLength)
+        {
+            maxTokens = contextLength;
+        }
+        if(startPosition + promptTokens.size() + 1 > maxTokens)
+        {
+            // the prompt does not fit, there is nothing to draft
+            Sampler sampler = new SimpleSamplerSelector().selectSampler(model.getConfiguration().vocabularySize, temperature, topp);
+            return model.generateTokens(state, startPosition, promptTokens, stopTokens, maxTokens, sampler, onTokenGenerated);
+        }
+        try(Drafter drafter = draftModel != null ? new ModelDrafter() : new PromptLookupDrafter(ngramSize))
+        {
+            return generateTokens(drafter, state, startPosition, promptTokens, stopTokens, maxTokens, onTokenGenerated);
+        }
+    }
+
+
+    private LLMResponse generateTokens(Drafter drafter, LlamaTokenGenerationState state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, IntConsumer onTokenGenerated)
+    {
+        LLMResponse response = new LLMResponse(maxTokens);
+        long startNanos = System.nanoTime();
+        // the latest token and the prompt tokens are forwarded, but the last one, which is forwarded by the first step
+        List<Integer> tokens = new ArrayList<>();
+        tokens.add(state.latestToken);
+        tokens.addAll(promptTokens);
+        int[] tokensToIngest = tokens.subList(0, tokens.size() - 1).stream().mapToInt(Integer::intValue).toArray();
+        ingest(model, state, tokensToIngest, startPosition);
+        drafter.ingest(tokensToIngest, startPosition);
+        if(onTokenGenerated != null)
+        {
+            promptTokens.forEach(onTokenGenerated::accept);
+        }
+        int position = startPosition + tokensToIngest.length;
+        int latestToken = tokens.getLast();
+        // one row of logits per batch slot, numberOfDraftTokens + 1 of them are used
+        SimpleFloatTensor[] logits = state.getLogitsBatch();
+        int[] draftTokens = new int[numberOfDraftTokens];
+        SimpleFloatTensor[] draftProbabilities = new SimpleFloatTensor[numberOfDraftTokens];
+        int numberOfProposedTokens = 0;
+        int numberOfAcceptedTokens = 0;
+        boolean isFinished = false;
+        while(!isFinished)
+        {
+            // the latest token and the draft tokens have to fit in the maximum number of positions
+            int numberOfDraftedTokens = drafter.draft(latestToken, position, Math.min(numberOfDraftTokens, maxTokens - 1 - position), draftTokens, draftProbabilities);
+            // the model forwards the latest token and all the draft tokens together
+            LlamaTokenBatch batch = state.getTokenBatch();
+            batch.add(state, latestToken, position, logits[0]);
+            for(int i = 0; i < numberOfDraftedTokens; i++)
+            {
+                batch.add(state, draftTokens[i], position + 1 + i, logits[i + 1]);
+            }
+            model.getNextTokenGenerator().forward(model, batch);
+            // accept the longest prefix of the draft tokens that the model agrees with
+            int numberOfAcceptedDraftTokens = 0;
+            int nextToken = -1;
+            while(numberOfAcceptedDraftTokens < numberOfDraftedTokens && nextToken < 0)
+            {
+                int candidate = draftTokens[numberOfAcceptedDraftTokens];
+                if(temperature == 0f)
+                {
+                    int token = logits[numberOfAcceptedDraftTokens].argmax();
+                    if(token == candidate)
+                    {
+                        numberOfAcceptedDraftTokens++;
+                    }
+                    else
+                    {
+                        nextToken = token;
+                    }
+                }
+                else
+                {
+                    SimpleFloatTensor p = toProbabilities(logits[numberOfAcceptedDraftTokens]);
+                    SimpleFloatTensor q = draftProbabilities[numberOfAcceptedDraftTokens];
+                    if(rng.nextFloat() * probability(q, candidate, candidate) < p.getFloat(candidate))
+                    {
+                        numberOfAcceptedDraftTokens++;
+                    }
+                    else
+                    {
+                        nextToken = sampleResidual(p, q, candidate);
+                    }
+                }
+            }
+            if(nextToken < 0)
+            {
+                // all the draft tokens were accepted, the logits of the last one give one more token
+                SimpleFloatTensor lastLogits = logits[numberOfDraftedTokens];
+                nextToken = temperature == 0f ? lastLogits.argmax() : categoricalSampler.sampleToken(toProbabilities(lastLogits));
+            }
+            drafter.accept(latestToken, position, draftTokens, numberOfDraftedTokens, numberOfAcceptedDraftTokens);
+            numberOfProposedTokens += numberOfDraftedTokens;
+            numberOfAcceptedTokens += numberOfAcceptedDraftTokens;
+            for(int i = 0; i <= numberOfAcceptedDraftTokens && !isFinished; i++)
+            {
+                int token = i < numberOfAcceptedDraftTokens ? draftTokens[i] : nextToken;
+                response.addResponseToken(token);
+                if(onTokenGenerated != null)
+                {
+                    onTokenGenerated.accept(token);
+                }
+                if(stopTokens.contains(token))
+                {
+                    isFinished = true;
+                }
+                else
+                {
+                    state.latestToken = token;
+                }
+            }
+            position += numberOfAcceptedDraftTokens + 1;
+            latestToken = nextToken;
+            if(position >= maxTokens)
+            {
+                isFinished = true;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        int numberOfTokensGenerated = promptTokens.size() + response.getResponseTokens().size();
+        double tokenGenerationRate = numberOfTokensGenerated / (elapsedNanos / 1_000_000_000.0);
+        double acceptanceRate = numberOfProposedTokens > 0 ? 100.0 * numberOfAcceptedTokens / numberOfProposedTokens : 0.0;
+        response.setTokenGenerationRate(tokenGenerationRate);
+        response.setNumberOfTokensGenerated(numberOfTokensGenerated);
+        response.setStatsFormatted(String.format("%.2f tokens/s (%d), %.0f%% of draft tokens accepted%n", tokenGenerationRate, numberOfTokensGenerated, acceptanceRate));
+        return response;
+    }
+
+
+    private static void ingest(LlamaLLMInferencer model, LlamaTokenGenerationState state, int[] tokens, int startPosition)
+    {
+        int[] chunk = new int[state.batchSize];
+        for(int ingested = 0; ingested < tokens.length; ingested += chunk.length)
+        {
+            int chunkSize = Math.min(chunk.length, tokens.length - ingested);
+            System.arraycopy(tokens, ingested, chunk, 0, chunkSize);
+            model.getNextTokenGenerator().forward(model, state, chunk, chunkSize, startPosition + ingested, false);
+        }
+    }
+
+
+    /**
+     * Turns logits into the probabilities of sampling at the temperature and the top-p of this decoder, in place.
+     */
+    private SimpleFloatTensor toProbabilities(SimpleFloatTensor logits)
+    {
+        logits.divideInPlace(0, logits.size(), temperature);
+        logits.softmaxInPlace(0, logits.size());
+        if(toppSampler != null)
+        {
+            toppSampler.truncate(logits);
+        }
+        return logits;
+    }
+
+
+    /**
+     * @return the probability of a token under the drafter, a null q means the candidate was proposed with certainty
+     */
+    private static float probability(SimpleFloatTensor q, int candidate, int token)
+    {
+        if(q != null)
+        {
+            return q.getFloat(token);
+        }
+        return token == candidate ? 1f : 0f;
+    }
+
+
+    /**
+     * Samples the normalised max(0, p - q), which makes up for the draft tokens that have been rejected.
+     * p is overwritten.
+     */
+    private int sampleResidual(SimpleFloatTensor p, SimpleFloatTensor q, int candidate)
+    {
+        float sum = 0f;
+        for(int i = 0; i < p.size(); i++)
+        {
+            sum += Math.max(0f, p.getFloat(i) - probability(q, candidate, i));
+        }
+        if(sum <= 0f)
+        {
+            // p and q are equal up to rounding, so p itself is sampled
+            return categoricalSampler.sampleToken(p);
+        }
+        float normalisation = sum;
+        p.mapWithIndexInPlace(0, p.size(), (value, index) -> Math.max(0f, value - probability(q, candidate, index)) / normalisation);
+        return categoricalSampler.sampleToken(p);
+    }
+
+
+    /**
+     * Source of the draft tokens of a single call.
+     */
+    interface Drafter extends AutoCloseable
+    {
+        /**
+         * Takes the tokens of the sequence that precede the latest token, from a position.
+         */
+        void ingest(int[] tokens, int startPosition);
+
+
+        /**
+         * Proposes the tokens that follow the latest token.
+         *
+         * @param latestToken           latest token of the sequence, at {@code position}
+         * @param position              position of the latest token
+         * @param maximumNumberOfTokens maximum number of tokens to propose
+         * @param draftTokens           receives the proposed tokens
+         * @param draftProbabilities    receives the probabilities of every proposed token, null for tokens proposed with certainty
+         * @return number of proposed tokens
+         */
+        int draft(int latestToken, int position, int maximumNumberOfTokens, int[] draftTokens, SimpleFloatTensor[] draftProbabilities);
+
+
+        /**
+         * The latest token and the first {@code numberOfAcceptedDraftTokens} draft tokens are now part of the sequence.
+         */
+        void accept(int latestToken, int position, int[] draftTokens, int numberOfDraftedTokens, int numberOfAcceptedDraftTokens);
+
+
+        @Override
+        void close();
+    }
+
+
+    private final class ModelDrafter implements Drafter
+    {
+        private final LlamaTokenGenerationState draftState;
+        private final SimpleFloatTensor[] probabilities;
+        // the draft model forwards no position past its context
+        private final int contextLength;
+
+
+        ModelDrafter()
+        {
+            this.draftState = draftModel.createNewState();
+            this.contextLength = draftModel.getConfiguration().contextLength;
+            // slot 0 receives the logits of every forward pass, the probabilities of the draft tokens are kept in the others
+            this.probabilities = Arrays.copyOfRange(draftState.getLogitsBatch(), 1, numberOfDraftTokens + 1);
+        }
+
+
+        @Override
+        public void ingest(int[] tokens, int startPosition)
+        {
+            int numberOfTokens = Math.clamp(contextLength - startPosition, 0, tokens.length);
+            LlamaSpeculativeDecoder.ingest(draftModel, draftState, Arrays.copyOf(tokens, numberOfTokens), startPosition);
+        }
+
+
+        @Override
+        public int draft(int latestToken, int position, int maximumNumberOfTokens, int[] draftTokens, SimpleFloatTensor[] draftProbabilities)
+        {
+            maximumNumberOfTokens = Math.clamp(contextLength - position, 0, maximumNumberOfTokens);
+            int draftToken = latestToken;
+            for(int i = 0; i < maximumNumberOfTokens; i++)
+            {
+                SimpleFloatTensor draftLogits = draftModel.getNextTokenGenerator().generate(draftModel, draftState, draftToken, position + i);
+                draftLogits.copyTo(0, probabilities[i], 0, draftLogits.size());
+                draftToken = temperature == 0f ? probabilities[i].argmax() : categoricalSampler.sampleToken(toProbabilities(probabilities[i]));
+                draftTokens[i] = draftToken;
+                draftProbabilities[i] = probabilities[i];
+            }
+            return maximumNumberOfTokens;
+        }
+
+
+        @Override
+        public void accept(int latestToken, int position, int[] draftTokens, int numberOfDraftedTokens, int numberOfAcceptedDraftTokens)
+        {
+            if(numberOfAcceptedDraftTokens == numberOfDraftedTokens && position + numberOfDraftedTokens < contextLength)
+            {
+                // the draft model has not forwarded the last token of this step yet
+                int lastToken = numberOfDraftedTokens > 0 ? draftTokens[numberOfDraftedTokens - 1] : latestToken;
+                LlamaTokenBatch batch = draftState.getTokenBatch();
+                batch.add(draftState, lastToken, position + numberOfDraftedTokens, false);
+                draftModel.getNextTokenGenerator().forward(draftModel, batch);
+            }
+        }
+
+
+        @Override
+        public void close()
+        {
+            draftState.close();
+        }
+    }
+
+
+    /**
+     * Looks up the last {@code ngramSize} tokens, down to the last one, in the tokens of the sequence.
+     */
+    static final class PromptLookupDrafter implements Drafter
+    {
+        private final int ngramSize;
+        private int[] tokens = new int[256];
+        private int numberOfTokens;
+
+
+        PromptLookupDrafter(int ngramSize)
+        {
+            this.ngramSize = ngramSize;
+        }
+
+
+        @Override
+        public void ingest(int[] tokens, int startPosition)
+        {
+            add(tokens, tokens.length);
+        }
+
+
+        @Override
+        public int draft(int latestToken, int position, int maximumNumberOfTokens, int[] draftTokens, SimpleFloatTensor[] draftProbabilities)
+        {
+            add(latestToken);
+            for(int n = Math.min(ngramSize, numberOfTokens - 1); n > 0; n--)
+            {
+                // the latest earlier occurrence of the last n tokens
+                for(int start = numberOfTokens - n - 1; start >= 0; start--)
+                {
+                    if(matches(start, numberOfTokens - n, n))
+                    {
+                        int numberOfDraftedTokens = Math.min(maximumNumberOfTokens, numberOfTokens - (start + n));
+                        for(int i = 0; i < numberOfDraftedTokens; i++)
+                        {
+                            draftTokens[i] = tokens[start + n + i];
+                            draftProbabilities[i] = null;
+                        }
+                        return numberOfDraftedTokens;
+                    }
+                }
+            }
+            return 0;
+        }
+
+
+        @Override
+        public void accept(int latestToken, int position, int[] draftTokens, int numberOfDraftedTokens, int numberOfAcceptedDraftTokens)
+        {
+            // the latest token has been added by draft
+            add(draftTokens, numberOfAcceptedDraftTokens);
+        }
+
+
+        @Override
+        public void close()
+        {
+        }
+
+
+        private boolean matches(int start, int ngramStart, int n)
+        {
+            for(int i = 0; i < n; i++)
+            {
+                if(tokens[start + i] != tokens[ngramStart + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        private void add(int[] newTokens, int numberOfNewTokens)
+        {
+            ensureCapacity(numberOfTokens + numberOfNewTokens);
+            System.arraycopy(newTokens, 0, tokens, numberOfTokens, numberOfNewTokens);
+            numberOfTokens += numberOfNewTokens;
+        }
+
+
+        private void add(int newToken)
+        {
+            ensureCapacity(numberOfTokens + 1);
+            tokens[numberOfTokens++] = newToken;
+        }
+
+
+        private void ensureCapacity(int capacity)
+        {
+            if(capacity > tokens.length)
+            {
+                tokens = Arrays.copyOf(tokens, Math.max(2 * tokens.length, capacity));
+            }
+        }
+    }
+}
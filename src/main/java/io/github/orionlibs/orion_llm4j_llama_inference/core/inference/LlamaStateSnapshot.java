@@ -0,0 +1,200 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.inference.LLMConfiguration;
+import io.github.orionlibs.orion_llm4j_inference.core.inference.LLMInferencer;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves the key/value caches of a state to a file and restores them, so that a prefilled context survives a restart.
+ * <p>
+ * The file is a fixed header followed by the keys and the values of every layer up to a position, in the precision of
+ * the key/value caches. Both saving and restoring map the file into memory, the way {@link io.github.orionlibs.orion_llm4j_llama_inference.core.gguf.GGUFModel}
+ * maps the weights. The header holds an identity of the model, so a snapshot is only restored into states of the same model.
+ */
+public final class LlamaStateSnapshot
+{
+    private static final ValueLayout.OfInt JAVA_INT_LE = ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong JAVA_LONG_LE = ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final int MAGIC = 0x534B564C; // "LVKS" in little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+
+    private LlamaStateSnapshot()
+    {
+    }
+
+
+    /**
+     * Saves positions {@code 0 ... numberOfPositions - 1} of the key/value caches and the latest token of a state.
+     *
+     * @param path              file to write, it's replaced if it exists, only once the snapshot is complete
+     * @param model             model of the state
+     * @param state             state to save
+     * @param numberOfPositions number of positions to save, the latest token of the state is the one at this position
+     */
+    public static void save(Path path, LLMInferencer model, LlamaTokenGenerationState state, int numberOfPositions) throws IOException
+    {
+        LLMConfiguration config = model.getConfiguration();
+        if(numberOfPositions < 0 || numberOfPositions > config.contextLength)
+        {
+            throw new IllegalArgumentException("invalid number of positions " + numberOfPositions);
+        }
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        GGUFType type = state.keyCache[0].type();
+        int numberOfValues = numberOfValues(type, numberOfPositions, kvDim);
+        long layerSize = type.byteSizeFor(numberOfValues);
+        // a temporary file replaces the snapshot once it's complete, so that an interrupted save keeps the previous one
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel fileChannel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        Arena arena = Arena.ofConfined())
+        {
+            MemorySegment segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2 * config.numberOfLayers * layerSize, arena);
+            segment.set(JAVA_INT_LE, 0, MAGIC);
+            segment.set(JAVA_INT_LE, 4, VERSION);
+            segment.set(JAVA_LONG_LE, 8, modelIdentity(model));
+            segment.set(JAVA_INT_LE, 16, typeId(type));
+            segment.set(JAVA_INT_LE, 20, config.numberOfLayers);
+            segment.set(JAVA_INT_LE, 24, kvDim);
+            segment.set(JAVA_INT_LE, 28, numberOfPositions);
+            segment.set(JAVA_INT_LE, 32, state.latestToken);
+            long offset = HEADER_SIZE;
+            for(int l = 0; l < config.numberOfLayers; l++)
+            {
+                state.keyCache[l].writeTo(0, numberOfValues, segment, offset);
+                offset += layerSize;
+                state.valueCache[l].writeTo(0, numberOfValues, segment, offset);
+                offset += layerSize;
+            }
+            segment.force();
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     * Restores a snapshot into a state, the state continues from the returned position with its latest token.
+     *
+     * @param path  file to read
+     * @param model model of the state, it has to be the model the snapshot was saved from
+     * @param state state whose key/value caches receive the snapshot, with the same precision as the snapshot
+     * @return number of restored positions
+     * @throws IllegalArgumentException if the file is not a snapshot or it doesn't match the model or the state
+     */
+    public static int restore(Path path, LLMInferencer model, LlamaTokenGenerationState state) throws IOException
+    {
+        LLMConfiguration config = model.getConfiguration();
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        GGUFType type = state.keyCache[0].type();
+        try(FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                        Arena arena = Arena.ofConfined())
+        {
+            if(fileChannel.size() < HEADER_SIZE)
+            {
+                throw new IllegalArgumentException(path + " is not a key/value cache snapshot");
+            }
+            MemorySegment segment = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+            if(segment.get(JAVA_INT_LE, 0) != MAGIC || segment.get(JAVA_INT_LE, 4) != VERSION)
+            {
+                throw new IllegalArgumentException(path + " is not a key/value cache snapshot");
+            }
+            if(segment.get(JAVA_LONG_LE, 8) != modelIdentity(model) || segment.get(JAVA_INT_LE, 20) != config.numberOfLayers || segment.get(JAVA_INT_LE, 24) != kvDim)
+            {
+                throw new IllegalArgumentException(path + " is a snapshot of another model");
+            }
+            if(segment.get(JAVA_INT_LE, 16) != typeId(type))
+            {
+                throw new IllegalArgumentException(path + " is not a snapshot of a " + type + " key/value cache");
+            }
+            int numberOfPositions = segment.get(JAVA_INT_LE, 28);
+            if(numberOfPositions < 0 || numberOfPositions > config.contextLength)
+            {
+                throw new IllegalArgumentException(path + " has " + numberOfPositions + " positions, which do not fit in the context");
+            }
+            int numberOfValues = numberOfValues(type, numberOfPositions, kvDim);
+            long layerSize = type.byteSizeFor(numberOfValues);
+            if(segment.byteSize() != HEADER_SIZE + 2 * config.numberOfLayers * layerSize)
+            {
+                throw new IllegalArgumentException(path + " is not a complete snapshot of " + numberOfPositions + " positions");
+            }
+            long offset = HEADER_SIZE;
+            for(int l = 0; l < config.numberOfLayers; l++)
+            {
+                state.keyCache[l].readFrom(segment, offset, 0, numberOfValues);
+                offset += layerSize;
+                state.valueCache[l].readFrom(segment, offset, 0, numberOfValues);
+                offset += layerSize;
+            }
+            state.latestToken = segment.get(JAVA_INT_LE, 32);
+            return numberOfPositions;
+        }
+    }
+
+
+    /**
+     * Hash of the shape of the model and of a sample of its weights, which tells apart models of the same shape.
+     * The context length is left out, it can change between loads of the same model.
+     */
+    static long modelIdentity(LLMInferencer model)
+    {
+        LLMConfiguration config = model.getConfiguration();
+        long hash = 17;
+        hash = 31 * hash + config.dim;
+        hash = 31 * hash + config.hiddenDim;
+        hash = 31 * hash + config.numberOfLayers;
+        hash = 31 * hash + config.numberOfHeads;
+        hash = 31 * hash + config.numberOfKeyValueHeads;
+        hash = 31 * hash + config.vocabularySize;
+        hash = 31 * hash + Float.floatToIntBits(config.rmsNormEps);
+        hash = 31 * hash + Float.floatToIntBits(config.ropeTheta);
+        FloatTensor tokenEmbeddings = model.getWeights().token_embedding_table;
+        int stride = Math.max(1, tokenEmbeddings.size() / 64);
+        for(int i = 0; i < tokenEmbeddings.size(); i += stride)
+        {
+            hash = 31 * hash + Float.floatToIntBits(tokenEmbeddings.getFloat(i));
+        }
+        FloatBuffer finalNormWeights = model.getWeights().rms_final_weight;
+        for(int i = 0; i < finalNormWeights.limit(); i++)
+        {
+            hash = 31 * hash + Float.floatToIntBits(finalNormWeights.get(i));
+        }
+        return hash;
+    }
+
+
+    /**
+     * @return number of values of the positions, rounded up to whole blocks of a quantized cache,
+     * which stays in the pages of the positions as a page holds whole blocks
+     */
+    private static int numberOfValues(GGUFType type, int numberOfPositions, int kvDim)
+    {
+        int blockSize = type.getBlockSize();
+        return (numberOfPositions * kvDim + blockSize - 1) / blockSize * blockSize;
+    }
+
+
+    private static int typeId(GGUFType type)
+    {
+        // the ids of the types in GGUF files
+        return switch(type)
+        {
+            case F32 -> 0;
+            case F16 -> 1;
+            case Q8_0 -> 8;
+            default -> throw new UnsupportedOperationException("key/value cache of type " + type);
+        };
+    }
+}
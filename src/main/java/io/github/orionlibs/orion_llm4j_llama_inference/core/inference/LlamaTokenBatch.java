@@ -0,0 +1,134 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.util.Arrays;
+
+/**
+ * Rows of a single forward pass.
+ * <p>
+ * Every row is one token at one position of the sequence held by a {@link LlamaTokenGenerationState}.
+ * Rows of the same state must be added one after the other and they take the batch slots of that state in order.
+ * Rows of different states share the weight pass, but every state keeps its own key/value caches.
+ * Every row can ask for its own logits e.g. to verify a run of draft tokens with a single pass.
+ */
+public final class LlamaTokenBatch
+{
+    final LlamaTokenGenerationState[] states;
+    final int[] tokens;
+    final int[] positions;
+    // where the logits of every row are written, null for the rows that do not need them
+    final SimpleFloatTensor[] logits;
+    // activations of every row, gathered from the batch slots of the row states
+    final SimpleFloatTensor[] x;
+    final SimpleFloatTensor[] xb;
+    final SimpleFloatTensor[] xb2;
+    final SimpleFloatTensor[] hb;
+    final SimpleFloatTensor[] q;
+    final SimpleFloatTensor[] k;
+    final SimpleFloatTensor[] v;
+    // scores of the attention tiles of every row, one tile per head
+    final float[][] attentionScores;
+    // inputs and outputs of the rows that ask for logits, gathered for the classifier
+    final SimpleFloatTensor[] logitsInputs;
+    final SimpleFloatTensor[] logitsOutputs;
+    private int size;
+    private int slot;
+
+
+    public LlamaTokenBatch(int capacity)
+    {
+        this.states = new LlamaTokenGenerationState[capacity];
+        this.tokens = new int[capacity];
+        this.positions = new int[capacity];
+        this.logits = new SimpleFloatTensor[capacity];
+        this.x = new SimpleFloatTensor[capacity];
+        this.xb = new SimpleFloatTensor[capacity];
+        this.xb2 = new SimpleFloatTensor[capacity];
+        this.hb = new SimpleFloatTensor[capacity];
+        this.q = new SimpleFloatTensor[capacity];
+        this.k = new SimpleFloatTensor[capacity];
+        this.v = new SimpleFloatTensor[capacity];
+        this.attentionScores = new float[capacity][];
+        this.logitsInputs = new SimpleFloatTensor[capacity];
+        this.logitsOutputs = new SimpleFloatTensor[capacity];
+    }
+
+
+    /**
+     * Appends a row.
+     *
+     * @param state         state of the sequence the token belongs to
+     * @param token         token to forward
+     * @param position      position of the token in the sequence
+     * @param computeLogits whether the logits of this row are written to {@link LlamaTokenGenerationState#logits},
+     *                      at most one row per state should ask for them
+     */
+    public void add(LlamaTokenGenerationState state, int token, int position, boolean computeLogits)
+    {
+        add(state, token, position, computeLogits ? state.logits : null);
+    }
+
+
+    /**
+     * Appends a row whose logits are written to a tensor of its own.
+     *
+     * @param state    state of the sequence the token belongs to
+     * @param token    token to forward
+     * @param position position of the token in the sequence
+     * @param logits   tensor of the size of the vocabulary that receives the logits of this row, null if they are not needed
+     */
+    public void add(LlamaTokenGenerationState state, int token, int position, SimpleFloatTensor logits)
+    {
+        if(size == states.length)
+        {
+            throw new IllegalStateException("batch is full, capacity " + states.length);
+        }
+        slot = size > 0 && states[size - 1] == state ? slot + 1 : 0;
+        if(slot >= state.batchSize)
+        {
+            throw new IllegalStateException("state has only " + state.batchSize + " batch slots");
+        }
+        states[size] = state;
+        tokens[size] = token;
+        positions[size] = position;
+        this.logits[size] = logits;
+        x[size] = state.xBatch[slot];
+        xb[size] = state.xbBatch[slot];
+        xb2[size] = state.xb2Batch[slot];
+        hb[size] = state.hbBatch[slot];
+        q[size] = state.qBatch[slot];
+        k[size] = state.kBatch[slot];
+        v[size] = state.vBatch[slot];
+        attentionScores[size] = state.attentionScoresBatch[slot];
+        size++;
+    }
+
+
+    public int size()
+    {
+        return size;
+    }
+
+
+    public int capacity()
+    {
+        return states.length;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    public void clear()
+    {
+        Arrays.fill(states, 0, size, null);
+        Arrays.fill(logits, 0, size, null);
+        Arrays.fill(logitsOutputs, 0, size, null);
+        size = 0;
+        slot = 0;
+    }
+}
@@ -50,7 +50,65 @@ public final class SimpleToppSampler implements ToppSampler
         // top-p sampling (or "nucleus sampling") samples from the smallest set of
         // tokens that exceed probability topp. This way we never sample tokens that
         // have very low probabilities and are less likely to go "off the rails".
-        Comparator<Integer> comparator = Comparator.comparingDouble(logits::getFloat).reversed();
+        int n0 = selectCandidates(logits);
+        int lastIndex = selectNucleus(logits, n0);
+        float cumulativeProb = 0.0f;
+        for(int i = n0 - 1; i >= lastIndex; i--)
+        {
+            cumulativeProb += logits.getFloat(indices[i]);
+        }
+        // sample from the truncated list
+        float r = rng.nextFloat(1f) * cumulativeProb;
+        float cdf = 0.0f;
+        for(int i = n0 - 1; i >= lastIndex; i--)
+        {
+            cdf += logits.getFloat(indices[i]);
+            if(r < cdf)
+            {
+                return indices[i];
+            }
+        }
+        return indices[lastIndex]; // in case of rounding errors
+    }
+
+
+    /**
+     * Keeps the probabilities of the tokens that {@link #sampleToken} samples from, renormalised, and sets the
+     * others to 0, in place. Sampling the result is distributed as {@link #sampleToken}.
+     *
+     * @param probabilities probabilities of all the tokens, they sum to 1
+     */
+    public void truncate(FloatTensor probabilities)
+    {
+        int n0 = selectCandidates(probabilities);
+        int lastIndex = selectNucleus(probabilities, n0);
+        float cumulativeProb = 0.0f;
+        for(int i = n0 - 1; i >= lastIndex; i--)
+        {
+            cumulativeProb += probabilities.getFloat(indices[i]);
+        }
+        for(int i = 0; i < lastIndex; i++)
+        {
+            probabilities.setFloat(indices[i], 0f);
+        }
+        for(int i = n0; i < indices.length; i++)
+        {
+            probabilities.setFloat(indices[i], 0f);
+        }
+        for(int i = n0 - 1; i >= lastIndex; i--)
+        {
+            probabilities.setFloat(indices[i], probabilities.getFloat(indices[i]) / cumulativeProb);
+        }
+    }
+
+
+    /**
+     * Moves the tokens that may be part of the result to the head of {@link #indices}.
+     *
+     * @return number of these tokens
+     */
+    private int selectCandidates(FloatTensor logits)
+    {
         int n = logits.size();
         int head = 0;
         int tail = n - 1;
@@ -68,7 +126,19 @@ public final class SimpleToppSampler implements ToppSampler
                 indices[tail--] = i;
             }
         }
-        int n0 = head;
+        return head;
+    }
+
+
+    /**
+     * Sorts the most likely candidates to the end of the first {@code n0} {@link #indices}, until their
+     * cumulative probability exceeds topp.
+     *
+     * @return index of the least likely token of the result, the result is {@code indices[lastIndex ... n0 - 1]}
+     */
+    private int selectNucleus(FloatTensor logits, int n0)
+    {
+        Comparator<Integer> comparator = Comparator.comparingDouble(logits::getFloat).reversed();
         // build heap O(n0)
         for(int i = n0 / 2 - 1; i >= 0; --i)
         {
@@ -89,17 +159,6 @@ public final class SimpleToppSampler implements ToppSampler
             }
             siftDown(indices, 0, i - 1, comparator);
         }
-        // sample from the truncated list
-        float r = rng.nextFloat(1f) * cumulativeProb;
-        float cdf = 0.0f;
-        for(int i = n0 - 1; i >= lastIndex; i--)
-        {
-            cdf += logits.getFloat(indices[i]);
-            if(r < cdf)
-            {
-                return indices[i];
-            }
-        }
-        return indices[lastIndex]; // in case of rounding errors
+        return lastIndex;
     }
 }
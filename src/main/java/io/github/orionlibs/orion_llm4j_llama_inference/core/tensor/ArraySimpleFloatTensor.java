@@ -2,8 +2,11 @@ package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
 
 import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
 import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import java.lang.foreign.MemorySegment;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
 public final class ArraySimpleFloatTensor extends SimpleFloatTensor
@@ -24,6 +27,46 @@ public final class ArraySimpleFloatTensor extends SimpleFloatTensor
     }
 
 
+    private static float vectorDot(ArraySimpleFloatTensor thiz, int thisOffset, ArraySimpleFloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var a = FloatVector.fromArray(F_SPECIES, thiz.values, thisOffset + j);
+            var b = FloatVector.fromArray(F_SPECIES, that.values, thatOffset + j);
+            val = a.fma(b, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += thiz.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+
+
+    private static void vectorSaxpy(ArraySimpleFloatTensor thiz, int thisOffset, ArraySimpleFloatTensor that, int thatOffset, int size, float a)
+    {
+        var aVector = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var x = FloatVector.fromArray(F_SPECIES, that.values, thatOffset + j);
+            var y = FloatVector.fromArray(F_SPECIES, thiz.values, thisOffset + j);
+            x.fma(aVector, y).intoArray(thiz.values, thisOffset + j);
+        }
+        // Remaining entries.
+        for(; j < size; j++)
+        {
+            thiz.values[thisOffset + j] += a * that.values[thatOffset + j];
+        }
+    }
+
+
     @Override
     public int size()
     {
@@ -69,4 +112,275 @@ public final class ArraySimpleFloatTensor extends SimpleFloatTensor
         }
         return FloatVector.fromArray(species, values, index);
     }
+
+
+    /**
+     * Vectorized when the second argument is also backed by an array, this is the case for the activations and the
+     * key/value caches, which makes {@link #matmul} of two F32 tensors vectorized too.
+     */
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor thatArray)
+        {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        }
+        else
+        {
+            return super.dot(thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    public SimpleFloatTensor saxpyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size, float a)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor thatArray)
+        {
+            vectorSaxpy(this, thisOffset, thatArray, thatOffset, size, a);
+            return this;
+        }
+        else
+        {
+            return super.saxpyInPlace(thisOffset, that, thatOffset, size, a);
+        }
+    }
+
+
+    @Override
+    public float sum(int thisOffset, int size)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.sum(thisOffset, size);
+        }
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            val = val.add(FloatVector.fromArray(F_SPECIES, values, thisOffset + j));
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        for(; j < size; j++)
+        {
+            result += values[thisOffset + j];
+        }
+        return result;
+    }
+
+
+    @Override
+    public float max(int thisOffset, int size)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.max(thisOffset, size);
+        }
+        FloatVector val = FloatVector.broadcast(F_SPECIES, Float.NEGATIVE_INFINITY);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            val = val.max(FloatVector.fromArray(F_SPECIES, values, thisOffset + j));
+        }
+        float result = val.reduceLanes(VectorOperators.MAX);
+        for(; j < size; j++)
+        {
+            result = Math.max(result, values[thisOffset + j]);
+        }
+        return result;
+    }
+
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(that instanceof ArraySimpleFloatTensor thatArray)
+        {
+            System.arraycopy(values, thisOffset, thatArray.values, thatOffset, size);
+        }
+        else
+        {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    public SimpleFloatTensor addInPlace(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(!USE_VECTOR_API || !(that instanceof ArraySimpleFloatTensor thatArray))
+        {
+            return super.addInPlace(thisOffset, that, thatOffset, size);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var x = FloatVector.fromArray(F_SPECIES, values, thisOffset + j);
+            var y = FloatVector.fromArray(F_SPECIES, thatArray.values, thatOffset + j);
+            x.add(y).intoArray(values, thisOffset + j);
+        }
+        for(; j < size; j++)
+        {
+            values[thisOffset + j] += thatArray.values[thatOffset + j];
+        }
+        return this;
+    }
+
+
+    @Override
+    public SimpleFloatTensor multiplyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(!USE_VECTOR_API || !(that instanceof ArraySimpleFloatTensor thatArray))
+        {
+            return super.multiplyInPlace(thisOffset, that, thatOffset, size);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var x = FloatVector.fromArray(F_SPECIES, values, thisOffset + j);
+            var y = FloatVector.fromArray(F_SPECIES, thatArray.values, thatOffset + j);
+            x.mul(y).intoArray(values, thisOffset + j);
+        }
+        for(; j < size; j++)
+        {
+            values[thisOffset + j] *= thatArray.values[thatOffset + j];
+        }
+        return this;
+    }
+
+
+    @Override
+    public SimpleFloatTensor scaleInPlace(int thisOffset, int size, float value)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.scaleInPlace(thisOffset, size, value);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            FloatVector.fromArray(F_SPECIES, values, thisOffset + j).mul(value).intoArray(values, thisOffset + j);
+        }
+        for(; j < size; j++)
+        {
+            values[thisOffset + j] *= value;
+        }
+        return this;
+    }
+
+
+    @Override
+    public SimpleFloatTensor divideInPlace(int thisOffset, int size, float value)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.divideInPlace(thisOffset, size, value);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            FloatVector.fromArray(F_SPECIES, values, thisOffset + j).div(value).intoArray(values, thisOffset + j);
+        }
+        for(; j < size; j++)
+        {
+            values[thisOffset + j] /= value;
+        }
+        return this;
+    }
+
+
+    @Override
+    public SimpleFloatTensor softmaxInPlace(int thisOffset, int size)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.softmaxInPlace(thisOffset, size);
+        }
+        // find max value (for numerical stability)
+        float maxVal = max(thisOffset, size);
+        // exp and sum in the same pass
+        FloatVector sum = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var exp = FloatVector.fromArray(F_SPECIES, values, thisOffset + j).sub(maxVal).lanewise(VectorOperators.EXP);
+            exp.intoArray(values, thisOffset + j);
+            sum = sum.add(exp);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for(; j < size; j++)
+        {
+            float exp = (float)Math.exp(values[thisOffset + j] - maxVal);
+            values[thisOffset + j] = exp;
+            result += exp;
+        }
+        // normalize
+        return scaleInPlace(thisOffset, size, 1f / result);
+    }
+
+
+    /**
+     * Vectorized when the output is also backed by an array and the weights are backed by a heap array,
+     * which is how {@link io.github.orionlibs.orion_llm4j_llama_inference.model.QuantisationLoader} loads the norm weights.
+     */
+    @Override
+    public void rmsnorm(SimpleFloatTensor out, FloatBuffer weight, int size, float rmsNormEps)
+    {
+        if(!USE_VECTOR_API || !weight.hasArray() || !(out instanceof ArraySimpleFloatTensor outArray))
+        {
+            super.rmsnorm(out, weight, size, rmsNormEps);
+            return;
+        }
+        float[] weights = weight.array();
+        int weightOffset = weight.arrayOffset() + weight.position();
+        // calculate sum of squares
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var x = FloatVector.fromArray(F_SPECIES, values, j);
+            val = x.fma(x, val);
+        }
+        float ss = val.reduceLanes(VectorOperators.ADD);
+        for(int i = j; i < size; i++)
+        {
+            ss += values[i] * values[i];
+        }
+        ss /= size;
+        ss += rmsNormEps;
+        ss = (float)(1.0 / Math.sqrt(ss));
+        // normalize and scale
+        for(j = 0; j < upperBound; j += F_SPECIES.length())
+        {
+            var x = FloatVector.fromArray(F_SPECIES, values, j);
+            var w = FloatVector.fromArray(F_SPECIES, weights, weightOffset + j);
+            w.mul(x.mul(ss)).intoArray(outArray.values, j);
+        }
+        for(; j < size; j++)
+        {
+            outArray.values[j] = weights[weightOffset + j] * (ss * values[j]);
+        }
+    }
+
+
+    @Override
+    public void writeTo(int thisOffset, int size, MemorySegment segment, long segmentOffset)
+    {
+        MemorySegment.copy(values, thisOffset, segment, JAVA_FLOAT_LE, segmentOffset, size);
+    }
+
+
+    @Override
+    public void readFrom(MemorySegment segment, long segmentOffset, int thisOffset, int size)
+    {
+        MemorySegment.copy(segment, JAVA_FLOAT_LE, segmentOffset, values, thisOffset, size);
+    }
 }
@@ -0,0 +1,160 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Writable, heap-backed, tensor that stores its values as half-precision floats e.g. a key/value cache at half the
+ * memory of an F32 one.
+ */
+public final class F16ArraySimpleFloatTensor extends SimpleFloatTensor
+{
+    final short[] values;
+
+
+    F16ArraySimpleFloatTensor(short[] values)
+    {
+        this.values = values;
+    }
+
+
+    public static SimpleFloatTensor allocate(int... dims)
+    {
+        int numberOfElements = FloatTensor.numberOfElements(dims);
+        return new F16ArraySimpleFloatTensor(new short[numberOfElements]);
+    }
+
+
+    @Override
+    public int size()
+    {
+        return values.length;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        return Float.float16ToFloat(values[index]);
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        values[index] = Float.floatToFloat16(value);
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.F16;
+    }
+
+
+    private static float vectorDot(F16ArraySimpleFloatTensor thiz, int thisOffset, ArraySimpleFloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var halves = ShortVector.fromArray(H_SPECIES, thiz.values, thisOffset + j);
+            val = float16ToFloat(halves).fma(FloatVector.fromArray(F_SPECIES, that.values, thatOffset + j), val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        for(; j < size; j++)
+        {
+            result += Float.float16ToFloat(thiz.values[thisOffset + j]) * that.values[thatOffset + j];
+        }
+        return result;
+    }
+
+
+    private static void vectorSaxpyTo(F16ArraySimpleFloatTensor thiz, int thisOffset, ArraySimpleFloatTensor out, int outOffset, int size, float a)
+    {
+        var scale = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var halves = ShortVector.fromArray(H_SPECIES, thiz.values, thisOffset + j);
+            float16ToFloat(halves).fma(scale, FloatVector.fromArray(F_SPECIES, out.values, outOffset + j)).intoArray(out.values, outOffset + j);
+        }
+        // Remaining entries.
+        for(; j < size; j++)
+        {
+            out.values[outOffset + j] += a * Float.float16ToFloat(thiz.values[thisOffset + j]);
+        }
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor thatArray)
+        {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        }
+        else
+        {
+            return super.dot(thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    public void saxpyTo(int thisOffset, SimpleFloatTensor out, int outOffset, int size, float a)
+    {
+        if(USE_VECTOR_API && out instanceof ArraySimpleFloatTensor outArray)
+        {
+            vectorSaxpyTo(this, thisOffset, outArray, outOffset, size, a);
+        }
+        else
+        {
+            super.saxpyTo(thisOffset, out, outOffset, size, a);
+        }
+    }
+
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(that instanceof F16ArraySimpleFloatTensor thatArray)
+        {
+            System.arraycopy(values, thisOffset, thatArray.values, thatOffset, size);
+        }
+        else
+        {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    public void writeTo(int thisOffset, int size, MemorySegment segment, long segmentOffset)
+    {
+        MemorySegment.copy(values, thisOffset, segment, JAVA_SHORT_LE, segmentOffset, size);
+    }
+
+
+    @Override
+    public void readFrom(MemorySegment segment, long segmentOffset, int thisOffset, int size)
+    {
+        MemorySegment.copy(segment, JAVA_SHORT_LE, segmentOffset, values, thisOffset, size);
+    }
+}
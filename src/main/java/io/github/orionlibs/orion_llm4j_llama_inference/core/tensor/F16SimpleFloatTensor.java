@@ -0,0 +1,101 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link SimpleFloatTensor} of half-precision floats read in place from a memory segment e.g. the token embeddings
+ * or the classifier of a model that keeps them at a higher precision than its other weights.
+ * <p>
+ * {@link #dot(int, FloatTensor, int, int)} decodes the half-precision values to float lanes with
+ * {@link SimpleFloatTensor#float16ToFloat(ShortVector)}.
+ */
+public final class F16SimpleFloatTensor extends SimpleFloatTensor
+{
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public F16SimpleFloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    private static float vectorDot(F16SimpleFloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var halves = ShortVector.fromMemorySegment(H_SPECIES, thiz.memorySegment, (long)(thisOffset + j) * Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            val = float16ToFloat(halves).fma(that.getFloatVector(F_SPECIES, thatOffset + j), val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += thiz.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        return Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, (long)index * Float16.BYTES));
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.F16;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return super.dot(thisOffset, that, thatOffset, size);
+        }
+    }
+}
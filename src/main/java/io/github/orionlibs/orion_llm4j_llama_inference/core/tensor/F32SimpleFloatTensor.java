@@ -0,0 +1,97 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link SimpleFloatTensor} of single-precision floats read in place from a memory segment e.g. an unquantized
+ * weight of a memory-mapped model file.
+ */
+public final class F32SimpleFloatTensor extends SimpleFloatTensor
+{
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public F32SimpleFloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    private static float vectorDot(F32SimpleFloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for(; j < upperBound; j += F_SPECIES.length())
+        {
+            var a = FloatVector.fromMemorySegment(F_SPECIES, thiz.memorySegment, (long)(thisOffset + j) * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            var b = that.getFloatVector(F_SPECIES, thatOffset + j);
+            val = a.fma(b, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += thiz.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        return memorySegment.get(JAVA_FLOAT_LE, (long)index * Float.BYTES);
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        return FloatVector.fromMemorySegment(species, memorySegment, (long)index * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.F32;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return super.dot(thisOffset, that, thatOffset, size);
+        }
+    }
+}
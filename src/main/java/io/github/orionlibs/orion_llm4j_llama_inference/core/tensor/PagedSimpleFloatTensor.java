@@ -0,0 +1,266 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.MapFunction;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.MapWithIndexFunction;
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Writable tensor made of fixed-size pages of a {@link SimpleFloatTensorPagePool}, looked up through a page table.
+ * <p>
+ * A page is taken from the pool the first time one of its values is written and it's returned to the pool by
+ * {@link #releasePages()}. Pages are not cleared: values of pages that have not been written read as 0, the values of
+ * a page that have not been written since it was taken are undefined e.g. the positions of a key/value cache after
+ * the latest one, which attention never reads.
+ * Reads and writes that stay within a page run on the kernels of the page e.g. a timestep of a key/value cache
+ * whose page size is a multiple of the size of a timestep.
+ */
+public final class PagedSimpleFloatTensor extends SimpleFloatTensor
+{
+    private final SimpleFloatTensorPagePool pool;
+    private final int size;
+    private final int pageSize;
+    private final SimpleFloatTensor[] pages;
+
+
+    public PagedSimpleFloatTensor(SimpleFloatTensorPagePool pool, int size)
+    {
+        this.pool = pool;
+        this.size = size;
+        this.pageSize = pool.getPageSize();
+        this.pages = new SimpleFloatTensor[(size + pageSize - 1) / pageSize];
+    }
+
+
+    private SimpleFloatTensor writablePage(int pageIndex)
+    {
+        SimpleFloatTensor page = pages[pageIndex];
+        if(page == null)
+        {
+            page = pool.allocate();
+            pages[pageIndex] = page;
+        }
+        return page;
+    }
+
+
+    /**
+     * Takes the pages of the values {@code 0 ... size - 1} that have not been taken yet, so that writing these values
+     * cannot run out of pages later e.g. in the middle of a forward pass.
+     *
+     * @throws IllegalStateException if the pool runs out of pages, the pages taken until then are kept
+     */
+    public void reservePages(int size)
+    {
+        for(int i = 0; i < (size + pageSize - 1) / pageSize; i++)
+        {
+            writablePage(i);
+        }
+    }
+
+
+    /**
+     * Returns all the pages to the pool, the tensor reads as 0 afterwards.
+     */
+    public void releasePages()
+    {
+        for(int i = 0; i < pages.length; i++)
+        {
+            if(pages[i] != null)
+            {
+                pool.release(pages[i]);
+                pages[i] = null;
+            }
+        }
+    }
+
+
+    public int getNumberOfPages()
+    {
+        int numberOfPages = 0;
+        for(SimpleFloatTensor page : pages)
+        {
+            if(page != null)
+            {
+                numberOfPages++;
+            }
+        }
+        return numberOfPages;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        SimpleFloatTensor page = pages[index / pageSize];
+        return page != null ? page.getFloat(index % pageSize) : 0f;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        writablePage(index / pageSize).setFloat(index % pageSize, value);
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return pool.getType();
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        SimpleFloatTensor page = pages[thisOffset / pageSize];
+        int pageOffset = thisOffset % pageSize;
+        if(page != null && pageOffset + size <= pageSize)
+        {
+            return page.dot(pageOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return super.dot(thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    public void saxpyTo(int thisOffset, SimpleFloatTensor out, int outOffset, int size, float a)
+    {
+        SimpleFloatTensor page = pages[thisOffset / pageSize];
+        int pageOffset = thisOffset % pageSize;
+        if(page != null && pageOffset + size <= pageSize)
+        {
+            page.saxpyTo(pageOffset, out, outOffset, size, a);
+        }
+        else
+        {
+            super.saxpyTo(thisOffset, out, outOffset, size, a);
+        }
+    }
+
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        for(int copied = 0; copied < size; )
+        {
+            int pageIndex = (thisOffset + copied) / pageSize;
+            int pageOffset = (thisOffset + copied) % pageSize;
+            int length = Math.min(pageSize - pageOffset, size - copied);
+            if(pages[pageIndex] != null)
+            {
+                pages[pageIndex].copyTo(pageOffset, that, thatOffset + copied, length);
+            }
+            else
+            {
+                that.fillInPlace(thatOffset + copied, length, 0f);
+            }
+            copied += length;
+        }
+    }
+
+
+    /**
+     * Copies the values of another tensor into this one, page by page.
+     */
+    void copyFrom(SimpleFloatTensor source, int sourceOffset, int thisOffset, int size)
+    {
+        for(int copied = 0; copied < size; )
+        {
+            int pageIndex = (thisOffset + copied) / pageSize;
+            int pageOffset = (thisOffset + copied) % pageSize;
+            int length = Math.min(pageSize - pageOffset, size - copied);
+            source.copyTo(sourceOffset + copied, writablePage(pageIndex), pageOffset, length);
+            copied += length;
+        }
+    }
+
+
+    /**
+     * Split at page boundaries, every page maps its own part of the range.
+     */
+    @Override
+    public SimpleFloatTensor mapWithIndexInPlace(int thisOffset, int size, MapWithIndexFunction mapWithIndexFunction)
+    {
+        int endOffset = thisOffset + size;
+        for(int offset = thisOffset; offset < endOffset; )
+        {
+            int pageIndex = offset / pageSize;
+            int pageStart = pageIndex * pageSize;
+            int pageOffset = offset - pageStart;
+            int length = Math.min(pageSize - pageOffset, endOffset - offset);
+            writablePage(pageIndex).mapWithIndexInPlace(pageOffset, length, (value, index) -> mapWithIndexFunction.apply(value, pageStart + index));
+            offset += length;
+        }
+        return this;
+    }
+
+
+    @Override
+    public SimpleFloatTensor mapInPlace(int thisOffset, int size, MapFunction mapFunction)
+    {
+        return mapWithIndexInPlace(thisOffset, size, (value, index) -> mapFunction.apply(value));
+    }
+
+
+    /**
+     * Pages that have not been written are written as zeros.
+     */
+    @Override
+    public void writeTo(int thisOffset, int size, MemorySegment segment, long segmentOffset)
+    {
+        for(int written = 0; written < size; )
+        {
+            int pageIndex = (thisOffset + written) / pageSize;
+            int pageOffset = (thisOffset + written) % pageSize;
+            int length = Math.min(pageSize - pageOffset, size - written);
+            long byteSize = type().byteSizeFor(length);
+            if(pages[pageIndex] != null)
+            {
+                pages[pageIndex].writeTo(pageOffset, length, segment, segmentOffset);
+            }
+            else
+            {
+                segment.asSlice(segmentOffset, byteSize).fill((byte)0);
+            }
+            written += length;
+            segmentOffset += byteSize;
+        }
+    }
+
+
+    @Override
+    public void readFrom(MemorySegment segment, long segmentOffset, int thisOffset, int size)
+    {
+        for(int read = 0; read < size; )
+        {
+            int pageIndex = (thisOffset + read) / pageSize;
+            int pageOffset = (thisOffset + read) % pageSize;
+            int length = Math.min(pageSize - pageOffset, size - read);
+            writablePage(pageIndex).readFrom(segment, segmentOffset, pageOffset, length);
+            read += length;
+            segmentOffset += type().byteSizeFor(length);
+        }
+    }
+}
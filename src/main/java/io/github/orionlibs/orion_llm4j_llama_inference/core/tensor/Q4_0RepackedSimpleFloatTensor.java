@@ -0,0 +1,227 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link GGUFType#Q4_0} matrix repacked once, at load time, into the layout of its matmul kernel.
+ * <p>
+ * The rows are interleaved by groups of {@link #ROW_BLOCK_SIZE}: a block of a group is the single-precision scales of
+ * its rows followed by the 16 bytes of quants of every row, so that the kernel reads one contiguous stream for all the
+ * rows it multiplies at once. The quants of a block are reordered so that every load of
+ * {@link #K_QUANT_B_SPECIES} bytes holds consecutive values in its low nibbles and the next ones in its high nibbles,
+ * which widen to float lanes without shuffles. The last group is padded with rows of zeros.
+ */
+public final class Q4_0RepackedSimpleFloatTensor extends SimpleFloatTensor
+{
+    private static final int QUANTS_OFFSET = ROW_BLOCK_SIZE * Float.BYTES;
+    private static final int QUANTS_SIZE = GGUFType.Q4_0.getBlockSize() / 2;
+    private static final int BLOCK_SIZE = QUANTS_OFFSET + ROW_BLOCK_SIZE * QUANTS_SIZE;
+    final int rows;
+    final int dim1;
+    final MemorySegment memorySegment;
+
+
+    /**
+     * @param rows          number of rows
+     * @param dim1          number of columns, a multiple of the block size
+     * @param memorySegment values that {@link #repack} has written
+     */
+    public Q4_0RepackedSimpleFloatTensor(int rows, int dim1, MemorySegment memorySegment)
+    {
+        this.rows = rows;
+        this.dim1 = dim1;
+        this.memorySegment = memorySegment;
+    }
+
+
+    /**
+     * Number of bytes of the quants reordered together, the layout depends on it.
+     */
+    public static int nibbleOrderWidth()
+    {
+        return K_QUANT_B_SPECIES.length();
+    }
+
+
+    /**
+     * @return number of bytes of a repacked matrix of {@code rows} rows and {@code dim1} columns
+     */
+    public static long byteSizeFor(int rows, int dim1)
+    {
+        return (long)(rows + ROW_BLOCK_SIZE - 1) / ROW_BLOCK_SIZE * (dim1 / GGUFType.Q4_0.getBlockSize()) * BLOCK_SIZE;
+    }
+
+
+    /**
+     * Writes the repacked layout of a matrix in the {@link GGUFType#Q4_0} format.
+     *
+     * @param source matrix in the GGUF layout
+     * @param rows   number of rows
+     * @param dim1   number of columns, a multiple of the block size
+     * @param target where {@link #byteSizeFor(int, int)} bytes are written
+     */
+    public static void repack(MemorySegment source, int rows, int dim1, MemorySegment target)
+    {
+        if(dim1 % GGUFType.Q4_0.getBlockSize() != 0)
+        {
+            throw new IllegalArgumentException("number of columns must be a multiple of " + GGUFType.Q4_0.getBlockSize() + ", but got " + dim1);
+        }
+        int blocksPerRow = dim1 / GGUFType.Q4_0.getBlockSize();
+        int width = nibbleOrderWidth();
+        byte[] sourceQuants = new byte[QUANTS_SIZE];
+        byte[] targetQuants = new byte[QUANTS_SIZE];
+        target.asSlice(0, byteSizeFor(rows, dim1)).fill((byte)0);
+        for(int row = 0; row < rows; row++)
+        {
+            int r = row % ROW_BLOCK_SIZE;
+            for(int b = 0; b < blocksPerRow; b++)
+            {
+                long sourceOffset = ((long)row * blocksPerRow + b) * GGUFType.Q4_0.getTypeSize();
+                long targetOffset = ((long)(row / ROW_BLOCK_SIZE) * blocksPerRow + b) * BLOCK_SIZE;
+                target.set(JAVA_FLOAT_LE, targetOffset + r * Float.BYTES, Float.float16ToFloat(source.get(JAVA_SHORT_LE, sourceOffset)));
+                MemorySegment.copy(source, ValueLayout.JAVA_BYTE, sourceOffset + Float16.BYTES, sourceQuants, 0, QUANTS_SIZE);
+                Arrays.fill(targetQuants, (byte)0);
+                for(int value = 0; value < GGUFType.Q4_0.getBlockSize(); value++)
+                {
+                    // the GGUF layout has the values i and i + 16 in the low and high nibbles of the byte i
+                    int quant = value < QUANTS_SIZE ? sourceQuants[value] & 0xF : (sourceQuants[value - QUANTS_SIZE] >> 4) & 0xF;
+                    int index = value / (2 * width) * width + value % width;
+                    targetQuants[index] |= (byte)(value % (2 * width) < width ? quant : quant << 4);
+                }
+                MemorySegment.copy(targetQuants, 0, target, ValueLayout.JAVA_BYTE, targetOffset + QUANTS_OFFSET + r * QUANTS_SIZE, QUANTS_SIZE);
+            }
+        }
+    }
+
+
+    /**
+     * Dot products of the rows of the group {@code group} with the same vector, the row {@code r} of the group is
+     * written at {@code out[r]} if {@code r < numberOfRows}.
+     * The rows are spelled out rather than looped over, so that the accumulators stay in registers.
+     */
+    private static void vectorDotRows(Q4_0RepackedSimpleFloatTensor thiz, int group, int numberOfRows, ArraySimpleFloatTensor that, float[] out)
+    {
+        FloatVector val0 = FloatVector.zero(F_SPECIES);
+        FloatVector val1 = FloatVector.zero(F_SPECIES);
+        FloatVector val2 = FloatVector.zero(F_SPECIES);
+        FloatVector val3 = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)group * (thiz.dim1 / GGUFType.Q4_0.getBlockSize()) * BLOCK_SIZE;
+        for(int j = 0; j < thiz.dim1; j += GGUFType.Q4_0.getBlockSize(), blockOffset += BLOCK_SIZE)
+        {
+            FloatVector sum0 = FloatVector.zero(F_SPECIES);
+            FloatVector sum1 = FloatVector.zero(F_SPECIES);
+            FloatVector sum2 = FloatVector.zero(F_SPECIES);
+            FloatVector sum3 = FloatVector.zero(F_SPECIES);
+            for(int i = 0; i < QUANTS_SIZE; i += K_QUANT_B_SPECIES.length())
+            {
+                long quantsOffset = blockOffset + QUANTS_OFFSET + i;
+                var w0 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset, ByteOrder.LITTLE_ENDIAN);
+                var w1 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset + QUANTS_SIZE, ByteOrder.LITTLE_ENDIAN);
+                var w2 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset + 2 * QUANTS_SIZE, ByteOrder.LITTLE_ENDIAN);
+                var w3 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset + 3 * QUANTS_SIZE, ByteOrder.LITTLE_ENDIAN);
+                var lo0 = w0.and((byte)0xF).sub((byte)8);
+                var hi0 = w0.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+                var lo1 = w1.and((byte)0xF).sub((byte)8);
+                var hi1 = w1.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+                var lo2 = w2.and((byte)0xF).sub((byte)8);
+                var hi2 = w2.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+                var lo3 = w3.and((byte)0xF).sub((byte)8);
+                var hi3 = w3.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+                for(int part = 0; part < K_QUANT_B_SPECIES.length() / F_SPECIES.length(); part++)
+                {
+                    int index = j + 2 * i + part * F_SPECIES.length();
+                    var xLo = FloatVector.fromArray(F_SPECIES, that.values, index);
+                    var xHi = FloatVector.fromArray(F_SPECIES, that.values, index + K_QUANT_B_SPECIES.length());
+                    sum0 = xHi.fma(((FloatVector)hi0.convertShape(VectorOperators.B2F, F_SPECIES, part)), xLo.fma(((FloatVector)lo0.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum0));
+                    sum1 = xHi.fma(((FloatVector)hi1.convertShape(VectorOperators.B2F, F_SPECIES, part)), xLo.fma(((FloatVector)lo1.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum1));
+                    sum2 = xHi.fma(((FloatVector)hi2.convertShape(VectorOperators.B2F, F_SPECIES, part)), xLo.fma(((FloatVector)lo2.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum2));
+                    sum3 = xHi.fma(((FloatVector)hi3.convertShape(VectorOperators.B2F, F_SPECIES, part)), xLo.fma(((FloatVector)lo3.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum3));
+                }
+            }
+            val0 = sum0.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset)), val0);
+            val1 = sum1.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset + Float.BYTES)), val1);
+            val2 = sum2.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset + 2 * Float.BYTES)), val2);
+            val3 = sum3.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset + 3 * Float.BYTES)), val3);
+        }
+        out[0] = val0.reduceLanes(VectorOperators.ADD);
+        if(numberOfRows > 1)
+        {
+            out[1] = val1.reduceLanes(VectorOperators.ADD);
+        }
+        if(numberOfRows > 2)
+        {
+            out[2] = val2.reduceLanes(VectorOperators.ADD);
+        }
+        if(numberOfRows > 3)
+        {
+            out[3] = val3.reduceLanes(VectorOperators.ADD);
+        }
+    }
+
+
+    @Override
+    void dotRows(int row, int numberOfRows, FloatTensor that, int dim1, float[] out)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor thatArray && row % ROW_BLOCK_SIZE == 0 && dim1 == this.dim1)
+        {
+            vectorDotRows(this, row / ROW_BLOCK_SIZE, numberOfRows, thatArray, out);
+        }
+        else
+        {
+            super.dotRows(row, numberOfRows, that, dim1, out);
+        }
+    }
+
+
+    @Override
+    public int size()
+    {
+        return rows * dim1;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size();
+        int row = index / dim1;
+        int column = index % dim1;
+        int value = column % GGUFType.Q4_0.getBlockSize();
+        int width = nibbleOrderWidth();
+        long blockOffset = ((long)(row / ROW_BLOCK_SIZE) * (dim1 / GGUFType.Q4_0.getBlockSize()) + column / GGUFType.Q4_0.getBlockSize()) * BLOCK_SIZE;
+        byte quants = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + QUANTS_OFFSET + row % ROW_BLOCK_SIZE * QUANTS_SIZE + value / (2 * width) * width + value % width);
+        int quant = (value % (2 * width) < width ? quants & 0xF : (quants >> 4) & 0xF) - 8;
+        return memorySegment.get(JAVA_FLOAT_LE, blockOffset + row % ROW_BLOCK_SIZE * Float.BYTES) * quant;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q4_0;
+    }
+}
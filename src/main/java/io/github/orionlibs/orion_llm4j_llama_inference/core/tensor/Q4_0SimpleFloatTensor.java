@@ -8,6 +8,8 @@ import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
@@ -43,10 +45,10 @@ public final class Q4_0SimpleFloatTensor extends SimpleFloatTensor
             result += that.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
             j += alignmentBound;
         }
-        assert (thisOffset + j) % GGUFType.Q4_0.getBlockSize() == 0;
+        assert j == size || (thisOffset + j) % GGUFType.Q4_0.getBlockSize() == 0;
         FloatVector val = FloatVector.zero(F_SPECIES);
         int blockOffset = (thisOffset + j) / GGUFType.Q4_0.getBlockSize() * GGUFType.Q4_0.getTypeSize();
-        int upperBound = size / GGUFType.Q4_0.getBlockSize() * GGUFType.Q4_0.getBlockSize();
+        int upperBound = j + (size - j) / GGUFType.Q4_0.getBlockSize() * GGUFType.Q4_0.getBlockSize();
         for(; j < upperBound; j += GGUFType.Q4_0.getBlockSize(), blockOffset += GGUFType.Q4_0.getTypeSize())
         {
             float wScaleValue = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset));
@@ -76,6 +78,13 @@ public final class Q4_0SimpleFloatTensor extends SimpleFloatTensor
                     val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
                 }
             }
+            else if(F_SPECIES.vectorBitSize() == 512)
+            {
+                // a block is 2 vectors of 16 floats, the low nibbles and the high ones
+                var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 0));
+                var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                val = sum0.add(sum1).fma(wScale, val);
+            }
             else
             {
                 throw new UnsupportedOperationException(F_SPECIES.toString());
@@ -91,6 +100,145 @@ public final class Q4_0SimpleFloatTensor extends SimpleFloatTensor
     }
 
 
+    /**
+     * Dot product with a vector quantized to Q8_0, on integers. The products of the quants of a block are summed in
+     * integer lanes and scaled once by the product of the scales of the two blocks, as llama.cpp does.
+     */
+    private static float integerDot(Q4_0SimpleFloatTensor thiz, int thisOffset, Q8_0ArraySimpleFloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(I_F_SPECIES);
+        long blockOffset = (long)thisOffset / GGUFType.Q4_0.getBlockSize() * GGUFType.Q4_0.getTypeSize();
+        for(int j = 0; j < size; j += GGUFType.Q4_0.getBlockSize(), blockOffset += GGUFType.Q4_0.getTypeSize())
+        {
+            IntVector blockSum = IntVector.zero(I_SPECIES);
+            // the low nibbles are the first half of a block and the high nibbles the second half
+            for(int i = 0; i < GGUFType.Q4_0.getBlockSize() / 2; i += S_SPECIES.length())
+            {
+                var wBytes = ByteVector.fromMemorySegment(B_HALF_SPECIES, thiz.memorySegment, blockOffset + Float16.BYTES + i, ByteOrder.LITTLE_ENDIAN);
+                var wLo = (ShortVector)wBytes.and((byte)0xF).sub((byte)8).castShape(S_SPECIES, 0);
+                var wHi = (ShortVector)wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte)8).castShape(S_SPECIES, 0);
+                var xLo = (ShortVector)ByteVector.fromArray(B_HALF_SPECIES, that.quants, thatOffset + j + i).castShape(S_SPECIES, 0);
+                var xHi = (ShortVector)ByteVector.fromArray(B_HALF_SPECIES, that.quants, thatOffset + j + GGUFType.Q4_0.getBlockSize() / 2 + i).castShape(S_SPECIES, 0);
+                // |w * x| <= 8 * 127, so the sum of two products still fits in 16 bits
+                var products = wLo.mul(xLo).add(wHi.mul(xHi));
+                // adjacent 16-bit sums are added into 32-bit lanes
+                var pairs = products.reinterpretAsInts();
+                blockSum = blockSum.add(pairs.lanewise(VectorOperators.ASHR, 16)).add(pairs.lanewise(VectorOperators.LSHL, 16).lanewise(VectorOperators.ASHR, 16));
+            }
+            float scale = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)) * Float.float16ToFloat(that.scales[(thatOffset + j) / GGUFType.Q4_0.getBlockSize()]);
+            val = ((FloatVector)blockSum.convertShape(VectorOperators.I2F, I_F_SPECIES, 0)).fma(FloatVector.broadcast(I_F_SPECIES, scale), val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
+
+    /**
+     * Dot products of {@link #ROW_BLOCK_SIZE} consecutive rows with the same vector. Every part of the vector is loaded
+     * once for all the rows, each row has its own accumulator and is summed in the same order as {@link #vectorDot}.
+     * The rows are spelled out rather than looped over, so that the accumulators stay in registers.
+     */
+    private static void vectorDotRows(Q4_0SimpleFloatTensor thiz, int row, FloatTensor that, int dim1, float[] out)
+    {
+        long rowSize = (long)dim1 / GGUFType.Q4_0.getBlockSize() * GGUFType.Q4_0.getTypeSize();
+        long blockOffset = row * rowSize;
+        FloatVector val0 = FloatVector.zero(F_SPECIES);
+        FloatVector val1 = FloatVector.zero(F_SPECIES);
+        FloatVector val2 = FloatVector.zero(F_SPECIES);
+        FloatVector val3 = FloatVector.zero(F_SPECIES);
+        // x0 and x1 hold a block with 512-bit vectors, x0 ... x3 with 256-bit vectors, its first half with 128-bit vectors
+        FloatVector x2 = null, x3 = null, x4 = null, x5 = null, x6 = null, x7 = null;
+        for(int j = 0; j < dim1; j += GGUFType.Q4_0.getBlockSize(), blockOffset += GGUFType.Q4_0.getTypeSize())
+        {
+            var x0 = that.getFloatVector(F_SPECIES, j + 0 * F_SPECIES.length());
+            var x1 = that.getFloatVector(F_SPECIES, j + 1 * F_SPECIES.length());
+            if(F_SPECIES.vectorBitSize() != 512)
+            {
+                x2 = that.getFloatVector(F_SPECIES, j + 2 * F_SPECIES.length());
+                x3 = that.getFloatVector(F_SPECIES, j + 3 * F_SPECIES.length());
+            }
+            if(F_SPECIES.vectorBitSize() == 128)
+            {
+                x4 = that.getFloatVector(F_SPECIES, j + 4 * F_SPECIES.length());
+                x5 = that.getFloatVector(F_SPECIES, j + 5 * F_SPECIES.length());
+                x6 = that.getFloatVector(F_SPECIES, j + 6 * F_SPECIES.length());
+                x7 = that.getFloatVector(F_SPECIES, j + 7 * F_SPECIES.length());
+            }
+            var w0 = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            var lo0 = w0.and((byte)0xF).sub((byte)8);
+            var hi0 = w0.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+            var s0 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)));
+            if(F_SPECIES.vectorBitSize() == 256)
+            {
+                val0 = x0.mul(lo0.castShape(F_SPECIES, 0)).add(x1.mul(lo0.castShape(F_SPECIES, 1))).add(x2.mul(hi0.castShape(F_SPECIES, 0))).add(x3.mul(hi0.castShape(F_SPECIES, 1))).fma(s0, val0);
+            }
+            else if(F_SPECIES.vectorBitSize() == 512)
+            {
+                val0 = x0.mul(lo0.castShape(F_SPECIES, 0)).add(x1.mul(hi0.castShape(F_SPECIES, 0))).fma(s0, val0);
+            }
+            else
+            {
+                val0 = x0.mul(lo0.castShape(F_SPECIES, 0)).add(x1.mul(lo0.castShape(F_SPECIES, 1))).add(x2.mul(lo0.castShape(F_SPECIES, 2))).add(x3.mul(lo0.castShape(F_SPECIES, 3))).fma(s0, val0);
+                val0 = x4.mul(hi0.castShape(F_SPECIES, 0)).add(x5.mul(hi0.castShape(F_SPECIES, 1))).add(x6.mul(hi0.castShape(F_SPECIES, 2))).add(x7.mul(hi0.castShape(F_SPECIES, 3))).fma(s0, val0);
+            }
+            var w1 = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + rowSize + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            var lo1 = w1.and((byte)0xF).sub((byte)8);
+            var hi1 = w1.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+            var s1 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + rowSize)));
+            if(F_SPECIES.vectorBitSize() == 256)
+            {
+                val1 = x0.mul(lo1.castShape(F_SPECIES, 0)).add(x1.mul(lo1.castShape(F_SPECIES, 1))).add(x2.mul(hi1.castShape(F_SPECIES, 0))).add(x3.mul(hi1.castShape(F_SPECIES, 1))).fma(s1, val1);
+            }
+            else if(F_SPECIES.vectorBitSize() == 512)
+            {
+                val1 = x0.mul(lo1.castShape(F_SPECIES, 0)).add(x1.mul(hi1.castShape(F_SPECIES, 0))).fma(s1, val1);
+            }
+            else
+            {
+                val1 = x0.mul(lo1.castShape(F_SPECIES, 0)).add(x1.mul(lo1.castShape(F_SPECIES, 1))).add(x2.mul(lo1.castShape(F_SPECIES, 2))).add(x3.mul(lo1.castShape(F_SPECIES, 3))).fma(s1, val1);
+                val1 = x4.mul(hi1.castShape(F_SPECIES, 0)).add(x5.mul(hi1.castShape(F_SPECIES, 1))).add(x6.mul(hi1.castShape(F_SPECIES, 2))).add(x7.mul(hi1.castShape(F_SPECIES, 3))).fma(s1, val1);
+            }
+            var w2 = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + 2 * rowSize + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            var lo2 = w2.and((byte)0xF).sub((byte)8);
+            var hi2 = w2.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+            var s2 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + 2 * rowSize)));
+            if(F_SPECIES.vectorBitSize() == 256)
+            {
+                val2 = x0.mul(lo2.castShape(F_SPECIES, 0)).add(x1.mul(lo2.castShape(F_SPECIES, 1))).add(x2.mul(hi2.castShape(F_SPECIES, 0))).add(x3.mul(hi2.castShape(F_SPECIES, 1))).fma(s2, val2);
+            }
+            else if(F_SPECIES.vectorBitSize() == 512)
+            {
+                val2 = x0.mul(lo2.castShape(F_SPECIES, 0)).add(x1.mul(hi2.castShape(F_SPECIES, 0))).fma(s2, val2);
+            }
+            else
+            {
+                val2 = x0.mul(lo2.castShape(F_SPECIES, 0)).add(x1.mul(lo2.castShape(F_SPECIES, 1))).add(x2.mul(lo2.castShape(F_SPECIES, 2))).add(x3.mul(lo2.castShape(F_SPECIES, 3))).fma(s2, val2);
+                val2 = x4.mul(hi2.castShape(F_SPECIES, 0)).add(x5.mul(hi2.castShape(F_SPECIES, 1))).add(x6.mul(hi2.castShape(F_SPECIES, 2))).add(x7.mul(hi2.castShape(F_SPECIES, 3))).fma(s2, val2);
+            }
+            var w3 = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + 3 * rowSize + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            var lo3 = w3.and((byte)0xF).sub((byte)8);
+            var hi3 = w3.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+            var s3 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + 3 * rowSize)));
+            if(F_SPECIES.vectorBitSize() == 256)
+            {
+                val3 = x0.mul(lo3.castShape(F_SPECIES, 0)).add(x1.mul(lo3.castShape(F_SPECIES, 1))).add(x2.mul(hi3.castShape(F_SPECIES, 0))).add(x3.mul(hi3.castShape(F_SPECIES, 1))).fma(s3, val3);
+            }
+            else if(F_SPECIES.vectorBitSize() == 512)
+            {
+                val3 = x0.mul(lo3.castShape(F_SPECIES, 0)).add(x1.mul(hi3.castShape(F_SPECIES, 0))).fma(s3, val3);
+            }
+            else
+            {
+                val3 = x0.mul(lo3.castShape(F_SPECIES, 0)).add(x1.mul(lo3.castShape(F_SPECIES, 1))).add(x2.mul(lo3.castShape(F_SPECIES, 2))).add(x3.mul(lo3.castShape(F_SPECIES, 3))).fma(s3, val3);
+                val3 = x4.mul(hi3.castShape(F_SPECIES, 0)).add(x5.mul(hi3.castShape(F_SPECIES, 1))).add(x6.mul(hi3.castShape(F_SPECIES, 2))).add(x7.mul(hi3.castShape(F_SPECIES, 3))).fma(s3, val3);
+            }
+        }
+        out[0] = 0f + val0.reduceLanes(VectorOperators.ADD);
+        out[1] = 0f + val1.reduceLanes(VectorOperators.ADD);
+        out[2] = 0f + val2.reduceLanes(VectorOperators.ADD);
+        out[3] = 0f + val3.reduceLanes(VectorOperators.ADD);
+    }
+
+
     @Override
     public int size()
     {
@@ -144,7 +292,15 @@ public final class Q4_0SimpleFloatTensor extends SimpleFloatTensor
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
     {
-        if(SimpleFloatTensor.USE_VECTOR_API)
+        if(SimpleFloatTensor.USE_VECTOR_API && that instanceof Q8_0ArraySimpleFloatTensor thatQ8_0)
+        {
+            if(isBlockAligned(thisOffset, thatOffset, size))
+            {
+                return integerDot(this, thisOffset, thatQ8_0, thatOffset, size);
+            }
+            return that.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+        else if(SimpleFloatTensor.USE_VECTOR_API)
         {
             return vectorDot(this, thisOffset, that, thatOffset, size);
         }
@@ -153,4 +309,24 @@ public final class Q4_0SimpleFloatTensor extends SimpleFloatTensor
             return that.scalarDot(this, thisOffset, that, thatOffset, size);
         }
     }
+
+
+    @Override
+    void dotRows(int row, int numberOfRows, FloatTensor that, int dim1, float[] out)
+    {
+        if(SimpleFloatTensor.USE_VECTOR_API && that instanceof ArraySimpleFloatTensor && numberOfRows == ROW_BLOCK_SIZE && dim1 % GGUFType.Q4_0.getBlockSize() == 0)
+        {
+            vectorDotRows(this, row, that, dim1, out);
+        }
+        else
+        {
+            super.dotRows(row, numberOfRows, that, dim1, out);
+        }
+    }
+
+
+    private static boolean isBlockAligned(int thisOffset, int thatOffset, int size)
+    {
+        return thisOffset % GGUFType.Q4_0.getBlockSize() == 0 && thatOffset % GGUFType.Q8_0.getBlockSize() == 0 && size % GGUFType.Q4_0.getBlockSize() == 0;
+    }
 }
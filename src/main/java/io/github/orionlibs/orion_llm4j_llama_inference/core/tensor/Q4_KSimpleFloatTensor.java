@@ -0,0 +1,182 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link SimpleFloatTensor} quantized in the {@link GGUFType#Q4_K} format.
+ * <p>
+ * A super-block of 256 values is a half-precision scale and minimum, 8 pairs of 6-bit scales and minimums of its
+ * sub-blocks of 32 values, and 4-bit quants. A value is {@code d * scale * q - dmin * min}.
+ * Every 32 bytes of quants hold 2 sub-blocks, the first one in the low nibbles and the second one in the high nibbles.
+ * <p>
+ * This tensor implementation is not compatible with {@link SimpleFloatTensor}, but
+ * {@link #dot(int, FloatTensor, int, int)} has a vectorized implementation that is used when
+ * the second argument implements {@link SimpleFloatTensor}.
+ */
+public final class Q4_KSimpleFloatTensor extends SimpleFloatTensor
+{
+    static final int SCALES_OFFSET = 2 * Float16.BYTES;
+    private static final int QUANTS_OFFSET = SCALES_OFFSET + 12;
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public Q4_KSimpleFloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    /**
+     * 6-bit scale of the sub-block {@code j} of the super-block at {@code blockOffset}, also used by {@link GGUFType#Q5_K}.
+     */
+    static int scale(MemorySegment memorySegment, long blockOffset, int j)
+    {
+        long scalesOffset = blockOffset + SCALES_OFFSET;
+        if(j < 4)
+        {
+            return memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + j) & 63;
+        }
+        return (memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + j + 4) & 0xF) | ((memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + j - 4) & 0xFF) >> 6 << 4);
+    }
+
+
+    /**
+     * 6-bit minimum of the sub-block {@code j} of the super-block at {@code blockOffset}, also used by {@link GGUFType#Q5_K}.
+     */
+    static int min(MemorySegment memorySegment, long blockOffset, int j)
+    {
+        long scalesOffset = blockOffset + SCALES_OFFSET;
+        if(j < 4)
+        {
+            return memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + j + 4) & 63;
+        }
+        return ((memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + j + 4) & 0xFF) >> 4) | ((memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + j) & 0xFF) >> 6 << 4);
+    }
+
+
+    private static float vectorDot(Q4_KSimpleFloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        float result = 0f;
+        int j = 0;
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGUFType.Q4_K.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGUFType.Q4_K.getBlockSize() - 1));
+        if(alignmentBound > 0)
+        {
+            result += that.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % GGUFType.Q4_K.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)(thisOffset + j) / GGUFType.Q4_K.getBlockSize() * GGUFType.Q4_K.getTypeSize();
+        int upperBound = j + (size - j) / GGUFType.Q4_K.getBlockSize() * GGUFType.Q4_K.getBlockSize();
+        for(; j < upperBound; j += GGUFType.Q4_K.getBlockSize(), blockOffset += GGUFType.Q4_K.getTypeSize())
+        {
+            float d = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset));
+            float dMin = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + Float16.BYTES));
+            // 64 values per step, the sub-blocks 2 * c and 2 * c + 1
+            for(int c = 0; c < 4; c++)
+            {
+                FloatVector loDot = FloatVector.zero(F_SPECIES);
+                FloatVector hiDot = FloatVector.zero(F_SPECIES);
+                FloatVector loSum = FloatVector.zero(F_SPECIES);
+                FloatVector hiSum = FloatVector.zero(F_SPECIES);
+                for(int l = 0; l < 32; l += K_QUANT_B_SPECIES.length())
+                {
+                    var wBytes = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, blockOffset + QUANTS_OFFSET + c * 32 + l, ByteOrder.LITTLE_ENDIAN);
+                    var loBytes = wBytes.and((byte)0xF);
+                    var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4);
+                    for(int part = 0; part < K_QUANT_B_SPECIES.length() / F_SPECIES.length(); part++)
+                    {
+                        int index = thatOffset + j + c * 64 + l + part * F_SPECIES.length();
+                        var xLo = that.getFloatVector(F_SPECIES, index);
+                        var xHi = that.getFloatVector(F_SPECIES, index + 32);
+                        loDot = xLo.fma(loBytes.castShape(F_SPECIES, part), loDot);
+                        hiDot = xHi.fma(hiBytes.castShape(F_SPECIES, part), hiDot);
+                        loSum = loSum.add(xLo);
+                        hiSum = hiSum.add(xHi);
+                    }
+                }
+                val = loDot.fma(FloatVector.broadcast(F_SPECIES, d * scale(thiz.memorySegment, blockOffset, 2 * c)), val);
+                val = hiDot.fma(FloatVector.broadcast(F_SPECIES, d * scale(thiz.memorySegment, blockOffset, 2 * c + 1)), val);
+                val = loSum.fma(FloatVector.broadcast(F_SPECIES, -dMin * min(thiz.memorySegment, blockOffset, 2 * c)), val);
+                val = hiSum.fma(FloatVector.broadcast(F_SPECIES, -dMin * min(thiz.memorySegment, blockOffset, 2 * c + 1)), val);
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += that.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q4_K;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        long blockOffset = (long)(index / GGUFType.Q4_K.getBlockSize()) * GGUFType.Q4_K.getTypeSize();
+        int modIndex = index % GGUFType.Q4_K.getBlockSize();
+        int subBlock = modIndex / 32;
+        byte quants = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + QUANTS_OFFSET + subBlock / 2 * 32 + modIndex % 32);
+        int quant = subBlock % 2 == 0 ? quants & 0xF : (quants >> 4) & 0xF;
+        float d = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset));
+        float dMin = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset + Float16.BYTES));
+        return d * scale(memorySegment, blockOffset, subBlock) * quant - dMin * min(memorySegment, blockOffset, subBlock);
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(SimpleFloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return that.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link SimpleFloatTensor} quantized in the {@link GGUFType#Q6_K} format.
+ * <p>
+ * A super-block of 256 values is the low 4 bits of its quants, their high 2 bits, the 8-bit signed scales of its
+ * sub-blocks of 16 values and a half-precision scale. A value is {@code d * scale * (q - 32)}.
+ * Each half of 128 values takes 64 bytes of low bits, the first and third 32 values in the low and high nibbles of
+ * the first 32 bytes, the second and fourth 32 values in those of the last 32 bytes, and 32 bytes of high bits,
+ * 2 bits for each of the 4 groups of 32 values.
+ * <p>
+ * This tensor implementation is not compatible with {@link SimpleFloatTensor}, but
+ * {@link #dot(int, FloatTensor, int, int)} has a vectorized implementation that is used when
+ * the second argument implements {@link SimpleFloatTensor}.
+ */
+public final class Q6_KSimpleFloatTensor extends SimpleFloatTensor
+{
+    private static final int HIGH_BITS_OFFSET = 128;
+    private static final int SCALES_OFFSET = HIGH_BITS_OFFSET + 64;
+    private static final int D_OFFSET = SCALES_OFFSET + 16;
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public Q6_KSimpleFloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    private static float vectorDot(Q6_KSimpleFloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        float result = 0f;
+        int j = 0;
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGUFType.Q6_K.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGUFType.Q6_K.getBlockSize() - 1));
+        if(alignmentBound > 0)
+        {
+            result += that.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % GGUFType.Q6_K.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)(thisOffset + j) / GGUFType.Q6_K.getBlockSize() * GGUFType.Q6_K.getTypeSize();
+        int upperBound = j + (size - j) / GGUFType.Q6_K.getBlockSize() * GGUFType.Q6_K.getBlockSize();
+        for(; j < upperBound; j += GGUFType.Q6_K.getBlockSize(), blockOffset += GGUFType.Q6_K.getTypeSize())
+        {
+            float d = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + D_OFFSET));
+            for(int half = 0; half < 2; half++)
+            {
+                long lowBitsOffset = blockOffset + half * 64;
+                long highBitsOffset = blockOffset + HIGH_BITS_OFFSET + half * 32;
+                long scalesOffset = blockOffset + SCALES_OFFSET + half * 8;
+                for(int l = 0; l < 32; l += K_QUANT_B_SPECIES.length())
+                {
+                    var lowBits0 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, lowBitsOffset + l, ByteOrder.LITTLE_ENDIAN);
+                    var lowBits1 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, lowBitsOffset + 32 + l, ByteOrder.LITTLE_ENDIAN);
+                    var highBits = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, highBitsOffset + l, ByteOrder.LITTLE_ENDIAN);
+                    var q0 = lowBits0.and((byte)0xF).or(highBits.and((byte)3).lanewise(VectorOperators.LSHL, 4)).sub((byte)32);
+                    var q1 = lowBits1.and((byte)0xF).or(highBits.lanewise(VectorOperators.LSHR, 2).and((byte)3).lanewise(VectorOperators.LSHL, 4)).sub((byte)32);
+                    var q2 = lowBits0.lanewise(VectorOperators.LSHR, 4).or(highBits.lanewise(VectorOperators.LSHR, 4).and((byte)3).lanewise(VectorOperators.LSHL, 4)).sub((byte)32);
+                    var q3 = lowBits1.lanewise(VectorOperators.LSHR, 4).or(highBits.lanewise(VectorOperators.LSHR, 6).lanewise(VectorOperators.LSHL, 4)).sub((byte)32);
+                    FloatVector dot0 = FloatVector.zero(F_SPECIES);
+                    FloatVector dot1 = FloatVector.zero(F_SPECIES);
+                    FloatVector dot2 = FloatVector.zero(F_SPECIES);
+                    FloatVector dot3 = FloatVector.zero(F_SPECIES);
+                    for(int part = 0; part < K_QUANT_B_SPECIES.length() / F_SPECIES.length(); part++)
+                    {
+                        int index = thatOffset + j + half * 128 + l + part * F_SPECIES.length();
+                        dot0 = that.getFloatVector(F_SPECIES, index).fma(q0.castShape(F_SPECIES, part), dot0);
+                        dot1 = that.getFloatVector(F_SPECIES, index + 32).fma(q1.castShape(F_SPECIES, part), dot1);
+                        dot2 = that.getFloatVector(F_SPECIES, index + 64).fma(q2.castShape(F_SPECIES, part), dot2);
+                        dot3 = that.getFloatVector(F_SPECIES, index + 96).fma(q3.castShape(F_SPECIES, part), dot3);
+                    }
+                    // the loaded bytes are within a sub-block of 16 values, whose scales are 2 apart in every group of 32 values
+                    int subBlock = l / 16;
+                    val = dot0.fma(FloatVector.broadcast(F_SPECIES, d * thiz.memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + subBlock)), val);
+                    val = dot1.fma(FloatVector.broadcast(F_SPECIES, d * thiz.memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + subBlock + 2)), val);
+                    val = dot2.fma(FloatVector.broadcast(F_SPECIES, d * thiz.memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + subBlock + 4)), val);
+                    val = dot3.fma(FloatVector.broadcast(F_SPECIES, d * thiz.memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + subBlock + 6)), val);
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += that.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q6_K;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        long blockOffset = (long)(index / GGUFType.Q6_K.getBlockSize()) * GGUFType.Q6_K.getTypeSize();
+        int modIndex = index % GGUFType.Q6_K.getBlockSize();
+        int half = modIndex / 128;
+        int group = modIndex % 128 / 32;
+        int l = modIndex % 32;
+        byte lowBits = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + half * 64 + group % 2 * 32 + l);
+        byte highBits = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + HIGH_BITS_OFFSET + half * 32 + l);
+        int quant = ((group < 2 ? lowBits & 0xF : (lowBits >> 4) & 0xF) | (((highBits >> (2 * group)) & 3) << 4)) - 32;
+        byte scale = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + SCALES_OFFSET + half * 8 + l / 16 + 2 * group);
+        return Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset + D_OFFSET)) * scale * quant;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(SimpleFloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return that.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+}
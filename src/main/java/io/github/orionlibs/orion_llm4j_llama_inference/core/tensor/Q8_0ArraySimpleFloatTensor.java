@@ -0,0 +1,348 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.MapFunction;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.MapWithIndexFunction;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Writable, heap-backed, tensor quantized in blocks of 32 values that share a half-precision scale, like {@link GGUFType#Q8_0}
+ * e.g. a key/value cache at a little over a quarter of the memory of an F32 one.
+ * <p>
+ * Writes re-quantize every block they touch, so they are meant to cover whole blocks,
+ * which is the case when a timestep of a key/value cache is written.
+ */
+public final class Q8_0ArraySimpleFloatTensor extends SimpleFloatTensor
+{
+    private static final int BLOCK_SIZE = GGUFType.Q8_0.getBlockSize();
+    // bytes loaded at once, their widening to floats fills the float species exactly 4 times,
+    // or once with 512bit vectors, as 4 of them would be longer than a block
+    private static final VectorSpecies<Byte> B_SPECIES = F_SPECIES.vectorBitSize() == 256 ? ByteVector.SPECIES_256 : ByteVector.SPECIES_128;
+    private static final int NUMBER_OF_PARTS = B_SPECIES.length() / F_SPECIES.length();
+    // bytes that a float vector is quantized to, at least 64bit, so 128bit float vectors fill half of them
+    private static final VectorSpecies<Byte> Q_B_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, F_SPECIES.vectorBitSize() / 4)));
+    private static final VectorMask<Byte> Q_B_MASK = Q_B_SPECIES.indexInRange(0, F_SPECIES.length());
+    // values of the block that mapWithIndexInPlace re-quantizes, per thread since every write goes through it
+    private static final ThreadLocal<float[]> BLOCK_VALUES = ThreadLocal.withInitial(() -> new float[BLOCK_SIZE]);
+    final byte[] quants;
+    final short[] scales;
+
+
+    Q8_0ArraySimpleFloatTensor(byte[] quants, short[] scales)
+    {
+        this.quants = quants;
+        this.scales = scales;
+    }
+
+
+    public static SimpleFloatTensor allocate(int... dims)
+    {
+        int numberOfElements = FloatTensor.numberOfElements(dims);
+        if(numberOfElements % BLOCK_SIZE != 0)
+        {
+            throw new IllegalArgumentException("number of elements " + numberOfElements + " is not a multiple of the block size " + BLOCK_SIZE);
+        }
+        return new Q8_0ArraySimpleFloatTensor(new byte[numberOfElements], new short[numberOfElements / BLOCK_SIZE]);
+    }
+
+
+    /**
+     * Quantizes the first {@code size} values of a vector at once, with the scales of {@link #mapWithIndexInPlace}
+     * e.g. the input of a matmul whose dot products then run on integers.
+     *
+     * @param that vector to quantize
+     * @param size number of values, a multiple of the block size
+     * @return a new tensor of {@code size} values
+     */
+    static Q8_0ArraySimpleFloatTensor quantize(FloatTensor that, int size)
+    {
+        Q8_0ArraySimpleFloatTensor quantized = (Q8_0ArraySimpleFloatTensor)allocate(size);
+        quantized.quantizeFrom(that, size);
+        return quantized;
+    }
+
+
+    /**
+     * Like {@link #quantize(FloatTensor, int)}, into the first {@code size} values of this tensor, so that a tensor is
+     * reused for the inputs of every matmul.
+     */
+    void quantizeFrom(FloatTensor that, int size)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor thatArray)
+        {
+            vectorQuantize(thatArray.values, size);
+            return;
+        }
+        for(int blockStart = 0; blockStart < size; blockStart += BLOCK_SIZE)
+        {
+            float absoluteMaximum = 0f;
+            for(int i = 0; i < BLOCK_SIZE; i++)
+            {
+                absoluteMaximum = Math.max(absoluteMaximum, Math.abs(that.getFloat(blockStart + i)));
+            }
+            short scale = Float.floatToFloat16(absoluteMaximum / 127f);
+            float inverseScale = scale != 0 ? 1f / Float.float16ToFloat(scale) : 0f;
+            for(int i = 0; i < BLOCK_SIZE; i++)
+            {
+                quants[blockStart + i] = (byte)Math.clamp(Math.round(that.getFloat(blockStart + i) * inverseScale), -127, 127);
+            }
+            scales[blockStart / BLOCK_SIZE] = scale;
+        }
+    }
+
+
+    private void vectorQuantize(float[] values, int size)
+    {
+        for(int blockStart = 0; blockStart < size; blockStart += BLOCK_SIZE)
+        {
+            FloatVector maximum = FloatVector.zero(F_SPECIES);
+            for(int i = 0; i < BLOCK_SIZE; i += F_SPECIES.length())
+            {
+                maximum = maximum.max(FloatVector.fromArray(F_SPECIES, values, blockStart + i).abs());
+            }
+            short scale = Float.floatToFloat16(maximum.reduceLanes(VectorOperators.MAX) / 127f);
+            float inverseScale = scale != 0 ? 1f / Float.float16ToFloat(scale) : 0f;
+            for(int i = 0; i < BLOCK_SIZE; i += F_SPECIES.length())
+            {
+                var scaled = FloatVector.fromArray(F_SPECIES, values, blockStart + i).mul(inverseScale);
+                // Math.round: the truncated value, moved away from zero when the fraction is over a half, or exactly a half and positive
+                var truncated = (IntVector)scaled.convert(VectorOperators.F2I, 0);
+                var fraction = scaled.sub((FloatVector)truncated.convert(VectorOperators.I2F, 0));
+                var rounded = truncated.add(1, fraction.compare(VectorOperators.GE, 0.5f).cast(H_I_SPECIES))
+                                .sub(1, fraction.compare(VectorOperators.LT, -0.5f).cast(H_I_SPECIES))
+                                .max(-127).min(127);
+                var bytes = (ByteVector)rounded.convertShape(VectorOperators.I2B, Q_B_SPECIES, 0);
+                if(Q_B_SPECIES.length() == F_SPECIES.length())
+                {
+                    bytes.intoArray(quants, blockStart + i);
+                }
+                else
+                {
+                    bytes.intoArray(quants, blockStart + i, Q_B_MASK);
+                }
+            }
+            scales[blockStart / BLOCK_SIZE] = scale;
+        }
+    }
+
+
+    private static float vectorDot(Q8_0ArraySimpleFloatTensor thiz, int thisOffset, ArraySimpleFloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int j = 0;
+        for(; j < size; j += BLOCK_SIZE)
+        {
+            int index = thisOffset + j;
+            FloatVector blockVal = FloatVector.zero(F_SPECIES);
+            for(int i = 0; i < BLOCK_SIZE; i += B_SPECIES.length())
+            {
+                var wBytes = ByteVector.fromArray(B_SPECIES, thiz.quants, index + i);
+                int thatIndex = thatOffset + j + i;
+                if(NUMBER_OF_PARTS == 1)
+                {
+                    blockVal = blockVal.add(FloatVector.fromArray(F_SPECIES, that.values, thatIndex).mul(wBytes.castShape(F_SPECIES, 0)));
+                    continue;
+                }
+                var sum0 = FloatVector.fromArray(F_SPECIES, that.values, thatIndex + 0 * F_SPECIES.length()).mul(wBytes.castShape(F_SPECIES, 0));
+                var sum1 = FloatVector.fromArray(F_SPECIES, that.values, thatIndex + 1 * F_SPECIES.length()).mul(wBytes.castShape(F_SPECIES, 1));
+                var sum2 = FloatVector.fromArray(F_SPECIES, that.values, thatIndex + 2 * F_SPECIES.length()).mul(wBytes.castShape(F_SPECIES, 2));
+                var sum3 = FloatVector.fromArray(F_SPECIES, that.values, thatIndex + 3 * F_SPECIES.length()).mul(wBytes.castShape(F_SPECIES, 3));
+                blockVal = blockVal.add(sum0.add(sum1).add(sum2).add(sum3));
+            }
+            val = blockVal.fma(FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.scales[index / BLOCK_SIZE])), val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
+
+    private static void vectorSaxpy(Q8_0ArraySimpleFloatTensor thiz, int thisOffset, ArraySimpleFloatTensor out, int outOffset, int size, float a)
+    {
+        for(int j = 0; j < size; j += BLOCK_SIZE)
+        {
+            int index = thisOffset + j;
+            var aScale = FloatVector.broadcast(F_SPECIES, a * Float.float16ToFloat(thiz.scales[index / BLOCK_SIZE]));
+            for(int i = 0; i < BLOCK_SIZE; i += B_SPECIES.length())
+            {
+                var wBytes = ByteVector.fromArray(B_SPECIES, thiz.quants, index + i);
+                for(int part = 0; part < NUMBER_OF_PARTS; part++)
+                {
+                    int outIndex = outOffset + j + i + part * F_SPECIES.length();
+                    var y = FloatVector.fromArray(F_SPECIES, out.values, outIndex);
+                    ((FloatVector)wBytes.castShape(F_SPECIES, part)).fma(aScale, y).intoArray(out.values, outIndex);
+                }
+            }
+        }
+    }
+
+
+    private boolean isBlockAligned(int offset, int size)
+    {
+        return offset % BLOCK_SIZE == 0 && size % BLOCK_SIZE == 0;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return quants.length;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        return quants[index] * Float.float16ToFloat(scales[index / BLOCK_SIZE]);
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        mapWithIndexInPlace(index, 1, (unused, i) -> value);
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q8_0;
+    }
+
+
+    /**
+     * Every block that the range touches is dequantized, updated and quantized again with the absolute maximum of
+     * its values as the scale.
+     */
+    @Override
+    public SimpleFloatTensor mapWithIndexInPlace(int thisOffset, int size, MapWithIndexFunction mapWithIndexFunction)
+    {
+        float[] block = BLOCK_VALUES.get();
+        int endOffset = thisOffset + size;
+        for(int blockStart = thisOffset - thisOffset % BLOCK_SIZE; blockStart < endOffset; blockStart += BLOCK_SIZE)
+        {
+            float scale = Float.float16ToFloat(scales[blockStart / BLOCK_SIZE]);
+            float absoluteMaximum = 0f;
+            for(int i = 0; i < BLOCK_SIZE; i++)
+            {
+                int index = blockStart + i;
+                float value = quants[index] * scale;
+                if(index >= thisOffset && index < endOffset)
+                {
+                    value = mapWithIndexFunction.apply(value, index);
+                }
+                block[i] = value;
+                absoluteMaximum = Math.max(absoluteMaximum, Math.abs(value));
+            }
+            short newScale = Float.floatToFloat16(absoluteMaximum / 127f);
+            float inverseScale = newScale != 0 ? 1f / Float.float16ToFloat(newScale) : 0f;
+            for(int i = 0; i < BLOCK_SIZE; i++)
+            {
+                // the scale is rounded to half-precision, which can push the largest value a little over 127
+                quants[blockStart + i] = (byte)Math.clamp(Math.round(block[i] * inverseScale), -127, 127);
+            }
+            scales[blockStart / BLOCK_SIZE] = newScale;
+        }
+        return this;
+    }
+
+
+    @Override
+    public SimpleFloatTensor mapInPlace(int thisOffset, int size, MapFunction mapFunction)
+    {
+        return mapWithIndexInPlace(thisOffset, size, (value, index) -> mapFunction.apply(value));
+    }
+
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(that instanceof Q8_0ArraySimpleFloatTensor thatArray && isBlockAligned(thisOffset, size) && thatOffset % BLOCK_SIZE == 0)
+        {
+            // whole blocks are copied as they are, without quantizing them again
+            System.arraycopy(quants, thisOffset, thatArray.quants, thatOffset, size);
+            System.arraycopy(scales, thisOffset / BLOCK_SIZE, thatArray.scales, thatOffset / BLOCK_SIZE, size / BLOCK_SIZE);
+        }
+        else
+        {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor thatArray && isBlockAligned(thisOffset, size))
+        {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        }
+        else
+        {
+            return super.dot(thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    public void saxpyTo(int thisOffset, SimpleFloatTensor out, int outOffset, int size, float a)
+    {
+        if(USE_VECTOR_API && out instanceof ArraySimpleFloatTensor outArray && isBlockAligned(thisOffset, size))
+        {
+            vectorSaxpy(this, thisOffset, outArray, outOffset, size, a);
+        }
+        else
+        {
+            super.saxpyTo(thisOffset, out, outOffset, size, a);
+        }
+    }
+
+
+    /**
+     * Whole blocks only, every block is written as its scale followed by its quants, like in a GGUF file.
+     */
+    @Override
+    public void writeTo(int thisOffset, int size, MemorySegment segment, long segmentOffset)
+    {
+        if(!isBlockAligned(thisOffset, size))
+        {
+            throw new IllegalArgumentException("range " + thisOffset + " + " + size + " does not cover whole blocks");
+        }
+        for(int j = 0; j < size; j += BLOCK_SIZE, segmentOffset += GGUFType.Q8_0.getTypeSize())
+        {
+            segment.set(JAVA_SHORT_LE, segmentOffset, scales[(thisOffset + j) / BLOCK_SIZE]);
+            MemorySegment.copy(quants, thisOffset + j, segment, ValueLayout.JAVA_BYTE, segmentOffset + Float16.BYTES, BLOCK_SIZE);
+        }
+    }
+
+
+    @Override
+    public void readFrom(MemorySegment segment, long segmentOffset, int thisOffset, int size)
+    {
+        if(!isBlockAligned(thisOffset, size))
+        {
+            throw new IllegalArgumentException("range " + thisOffset + " + " + size + " does not cover whole blocks");
+        }
+        for(int j = 0; j < size; j += BLOCK_SIZE, segmentOffset += GGUFType.Q8_0.getTypeSize())
+        {
+            scales[(thisOffset + j) / BLOCK_SIZE] = segment.get(JAVA_SHORT_LE, segmentOffset);
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, segmentOffset + Float16.BYTES, quants, thisOffset + j, BLOCK_SIZE);
+        }
+    }
+}
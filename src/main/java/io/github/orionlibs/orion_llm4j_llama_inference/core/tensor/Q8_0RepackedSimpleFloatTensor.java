@@ -0,0 +1,190 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link GGUFType#Q8_0} matrix repacked once, at load time, into the layout of its matmul kernel.
+ * <p>
+ * The rows are interleaved by groups of {@link #ROW_BLOCK_SIZE}: a block of a group is the single-precision scales of
+ * its rows followed by the 32 quants of every row, so that the kernel reads one contiguous stream for all the rows it
+ * multiplies at once, without converting half-precision scales. The last group is padded with rows of zeros.
+ */
+public final class Q8_0RepackedSimpleFloatTensor extends SimpleFloatTensor
+{
+    private static final int QUANTS_OFFSET = ROW_BLOCK_SIZE * Float.BYTES;
+    private static final int QUANTS_SIZE = GGUFType.Q8_0.getBlockSize();
+    private static final int BLOCK_SIZE = QUANTS_OFFSET + ROW_BLOCK_SIZE * QUANTS_SIZE;
+    final int rows;
+    final int dim1;
+    final MemorySegment memorySegment;
+
+
+    /**
+     * @param rows          number of rows
+     * @param dim1          number of columns, a multiple of the block size
+     * @param memorySegment values that {@link #repack} has written
+     */
+    public Q8_0RepackedSimpleFloatTensor(int rows, int dim1, MemorySegment memorySegment)
+    {
+        this.rows = rows;
+        this.dim1 = dim1;
+        this.memorySegment = memorySegment;
+    }
+
+
+    /**
+     * @return number of bytes of a repacked matrix of {@code rows} rows and {@code dim1} columns
+     */
+    public static long byteSizeFor(int rows, int dim1)
+    {
+        return (long)(rows + ROW_BLOCK_SIZE - 1) / ROW_BLOCK_SIZE * (dim1 / GGUFType.Q8_0.getBlockSize()) * BLOCK_SIZE;
+    }
+
+
+    /**
+     * Writes the repacked layout of a matrix in the {@link GGUFType#Q8_0} format.
+     *
+     * @param source matrix in the GGUF layout
+     * @param rows   number of rows
+     * @param dim1   number of columns, a multiple of the block size
+     * @param target where {@link #byteSizeFor(int, int)} bytes are written
+     */
+    public static void repack(MemorySegment source, int rows, int dim1, MemorySegment target)
+    {
+        if(dim1 % GGUFType.Q8_0.getBlockSize() != 0)
+        {
+            throw new IllegalArgumentException("number of columns must be a multiple of " + GGUFType.Q8_0.getBlockSize() + ", but got " + dim1);
+        }
+        int blocksPerRow = dim1 / GGUFType.Q8_0.getBlockSize();
+        target.asSlice(0, byteSizeFor(rows, dim1)).fill((byte)0);
+        for(int row = 0; row < rows; row++)
+        {
+            int r = row % ROW_BLOCK_SIZE;
+            for(int b = 0; b < blocksPerRow; b++)
+            {
+                long sourceOffset = ((long)row * blocksPerRow + b) * GGUFType.Q8_0.getTypeSize();
+                long targetOffset = ((long)(row / ROW_BLOCK_SIZE) * blocksPerRow + b) * BLOCK_SIZE;
+                target.set(JAVA_FLOAT_LE, targetOffset + r * Float.BYTES, Float.float16ToFloat(source.get(JAVA_SHORT_LE, sourceOffset)));
+                MemorySegment.copy(source, sourceOffset + Float16.BYTES, target, targetOffset + QUANTS_OFFSET + r * QUANTS_SIZE, QUANTS_SIZE);
+            }
+        }
+    }
+
+
+    /**
+     * Dot products of the rows of the group {@code group} with the same vector, the row {@code r} of the group is
+     * written at {@code out[r]} if {@code r < numberOfRows}.
+     * The rows are spelled out rather than looped over, so that the accumulators stay in registers.
+     */
+    private static void vectorDotRows(Q8_0RepackedSimpleFloatTensor thiz, int group, int numberOfRows, ArraySimpleFloatTensor that, float[] out)
+    {
+        FloatVector val0 = FloatVector.zero(F_SPECIES);
+        FloatVector val1 = FloatVector.zero(F_SPECIES);
+        FloatVector val2 = FloatVector.zero(F_SPECIES);
+        FloatVector val3 = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)group * (thiz.dim1 / GGUFType.Q8_0.getBlockSize()) * BLOCK_SIZE;
+        for(int j = 0; j < thiz.dim1; j += GGUFType.Q8_0.getBlockSize(), blockOffset += BLOCK_SIZE)
+        {
+            FloatVector sum0 = FloatVector.zero(F_SPECIES);
+            FloatVector sum1 = FloatVector.zero(F_SPECIES);
+            FloatVector sum2 = FloatVector.zero(F_SPECIES);
+            FloatVector sum3 = FloatVector.zero(F_SPECIES);
+            for(int i = 0; i < QUANTS_SIZE; i += K_QUANT_B_SPECIES.length())
+            {
+                long quantsOffset = blockOffset + QUANTS_OFFSET + i;
+                var w0 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset, ByteOrder.LITTLE_ENDIAN);
+                var w1 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset + QUANTS_SIZE, ByteOrder.LITTLE_ENDIAN);
+                var w2 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset + 2 * QUANTS_SIZE, ByteOrder.LITTLE_ENDIAN);
+                var w3 = ByteVector.fromMemorySegment(K_QUANT_B_SPECIES, thiz.memorySegment, quantsOffset + 3 * QUANTS_SIZE, ByteOrder.LITTLE_ENDIAN);
+                for(int part = 0; part < K_QUANT_B_SPECIES.length() / F_SPECIES.length(); part++)
+                {
+                    var x = FloatVector.fromArray(F_SPECIES, that.values, j + i + part * F_SPECIES.length());
+                    sum0 = x.fma(((FloatVector)w0.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum0);
+                    sum1 = x.fma(((FloatVector)w1.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum1);
+                    sum2 = x.fma(((FloatVector)w2.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum2);
+                    sum3 = x.fma(((FloatVector)w3.convertShape(VectorOperators.B2F, F_SPECIES, part)), sum3);
+                }
+            }
+            val0 = sum0.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset)), val0);
+            val1 = sum1.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset + Float.BYTES)), val1);
+            val2 = sum2.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset + 2 * Float.BYTES)), val2);
+            val3 = sum3.fma(FloatVector.broadcast(F_SPECIES, thiz.memorySegment.get(JAVA_FLOAT_LE, blockOffset + 3 * Float.BYTES)), val3);
+        }
+        out[0] = val0.reduceLanes(VectorOperators.ADD);
+        if(numberOfRows > 1)
+        {
+            out[1] = val1.reduceLanes(VectorOperators.ADD);
+        }
+        if(numberOfRows > 2)
+        {
+            out[2] = val2.reduceLanes(VectorOperators.ADD);
+        }
+        if(numberOfRows > 3)
+        {
+            out[3] = val3.reduceLanes(VectorOperators.ADD);
+        }
+    }
+
+
+    @Override
+    void dotRows(int row, int numberOfRows, FloatTensor that, int dim1, float[] out)
+    {
+        if(USE_VECTOR_API && that instanceof ArraySimpleFloatTensor thatArray && row % ROW_BLOCK_SIZE == 0 && dim1 == this.dim1)
+        {
+            vectorDotRows(this, row / ROW_BLOCK_SIZE, numberOfRows, thatArray, out);
+        }
+        else
+        {
+            super.dotRows(row, numberOfRows, that, dim1, out);
+        }
+    }
+
+
+    @Override
+    public int size()
+    {
+        return rows * dim1;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size();
+        int row = index / dim1;
+        int column = index % dim1;
+        long blockOffset = ((long)(row / ROW_BLOCK_SIZE) * (dim1 / GGUFType.Q8_0.getBlockSize()) + column / GGUFType.Q8_0.getBlockSize()) * BLOCK_SIZE;
+        byte quant = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + QUANTS_OFFSET + row % ROW_BLOCK_SIZE * QUANTS_SIZE + column % GGUFType.Q8_0.getBlockSize());
+        return memorySegment.get(JAVA_FLOAT_LE, blockOffset + row % ROW_BLOCK_SIZE * Float.BYTES) * quant;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q8_0;
+    }
+}
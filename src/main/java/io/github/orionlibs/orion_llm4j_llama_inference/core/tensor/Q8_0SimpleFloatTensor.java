@@ -8,6 +8,8 @@ import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
@@ -37,10 +39,10 @@ public final class Q8_0SimpleFloatTensor extends SimpleFloatTensor
             result += that.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
             j += alignmentBound;
         }
-        assert (thisOffset + j) % GGUFType.Q8_0.getBlockSize() == 0;
+        assert j == size || (thisOffset + j) % GGUFType.Q8_0.getBlockSize() == 0;
         FloatVector val = FloatVector.zero(F_SPECIES);
         int blockOffset = (thisOffset + j) / GGUFType.Q8_0.getBlockSize() * GGUFType.Q8_0.getTypeSize();
-        int upperBound = size / GGUFType.Q8_0.getBlockSize() * GGUFType.Q8_0.getBlockSize();
+        int upperBound = j + (size - j) / GGUFType.Q8_0.getBlockSize() * GGUFType.Q8_0.getBlockSize();
         for(; j < upperBound; j += GGUFType.Q8_0.getBlockSize(), blockOffset += GGUFType.Q8_0.getTypeSize())
         {
             float wScaleValue = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset));
@@ -68,6 +70,16 @@ public final class Q8_0SimpleFloatTensor extends SimpleFloatTensor
                     val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
                 }
             }
+            else if(F_SPECIES.vectorBitSize() == 512)
+            {
+                // a block is 2 vectors of 16 floats, each widened from its own 128-bit load rather than from a part of a 256-bit one
+                VectorSpecies<Byte> B_128 = ByteVector.SPECIES_128;
+                var wBytes0 = ByteVector.fromMemorySegment(B_128, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+                var wBytes1 = ByteVector.fromMemorySegment(B_128, thiz.memorySegment, blockOffset + Float16.BYTES + B_128.vectorByteSize(), ByteOrder.LITTLE_ENDIAN);
+                var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length()).mul(wBytes0.castShape(F_SPECIES, 0));
+                var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length()).mul(wBytes1.castShape(F_SPECIES, 0));
+                val = sum0.add(sum1).fma(wScale, val);
+            }
             else
             {
                 throw new UnsupportedOperationException(F_SPECIES.toString());
@@ -83,6 +95,107 @@ public final class Q8_0SimpleFloatTensor extends SimpleFloatTensor
     }
 
 
+    /**
+     * Dot product with a vector quantized to Q8_0, on integers. The products of the quants of a block are summed in
+     * integer lanes and scaled once by the product of the scales of the two blocks, as llama.cpp does.
+     */
+    private static float integerDot(Q8_0SimpleFloatTensor thiz, int thisOffset, Q8_0ArraySimpleFloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(I_F_SPECIES);
+        long blockOffset = (long)thisOffset / GGUFType.Q8_0.getBlockSize() * GGUFType.Q8_0.getTypeSize();
+        for(int j = 0; j < size; j += GGUFType.Q8_0.getBlockSize(), blockOffset += GGUFType.Q8_0.getTypeSize())
+        {
+            IntVector blockSum = IntVector.zero(I_SPECIES);
+            for(int i = 0; i < GGUFType.Q8_0.getBlockSize(); i += 2 * S_SPECIES.length())
+            {
+                long quantsOffset = blockOffset + Float16.BYTES + i;
+                var w0 = (ShortVector)ByteVector.fromMemorySegment(B_HALF_SPECIES, thiz.memorySegment, quantsOffset, ByteOrder.LITTLE_ENDIAN).castShape(S_SPECIES, 0);
+                var w1 = (ShortVector)ByteVector.fromMemorySegment(B_HALF_SPECIES, thiz.memorySegment, quantsOffset + S_SPECIES.length(), ByteOrder.LITTLE_ENDIAN).castShape(S_SPECIES, 0);
+                var x0 = (ShortVector)ByteVector.fromArray(B_HALF_SPECIES, that.quants, thatOffset + j + i).castShape(S_SPECIES, 0);
+                var x1 = (ShortVector)ByteVector.fromArray(B_HALF_SPECIES, that.quants, thatOffset + j + i + S_SPECIES.length()).castShape(S_SPECIES, 0);
+                // |w * x| <= 127 * 127, so the sum of two products still fits in 16 bits
+                var products = w0.mul(x0).add(w1.mul(x1));
+                // adjacent 16-bit sums are added into 32-bit lanes
+                var pairs = products.reinterpretAsInts();
+                blockSum = blockSum.add(pairs.lanewise(VectorOperators.ASHR, 16)).add(pairs.lanewise(VectorOperators.LSHL, 16).lanewise(VectorOperators.ASHR, 16));
+            }
+            float scale = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)) * Float.float16ToFloat(that.scales[(thatOffset + j) / GGUFType.Q8_0.getBlockSize()]);
+            val = ((FloatVector)blockSum.convertShape(VectorOperators.I2F, I_F_SPECIES, 0)).fma(FloatVector.broadcast(I_F_SPECIES, scale), val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
+
+    /**
+     * Dot products of {@link #ROW_BLOCK_SIZE} consecutive rows with the same vector. Every part of the vector is loaded
+     * once for all the rows, each row has its own accumulator and is summed in the same order as {@link #vectorDot}.
+     * The rows are spelled out rather than looped over, so that the accumulators stay in registers.
+     */
+    private static void vectorDotRows(Q8_0SimpleFloatTensor thiz, int row, FloatTensor that, int dim1, float[] out)
+    {
+        // 32 quants are 1 256-bit vector of bytes or 2 128-bit vectors, the 512-bit kernel widens each 128-bit vector at once
+        VectorSpecies<Byte> B_SPECIES = F_SPECIES.vectorBitSize() == 256 ? ByteVector.SPECIES_256 : ByteVector.SPECIES_128;
+        int numberOfParts = GGUFType.Q8_0.getBlockSize() / B_SPECIES.length();
+        long rowSize = (long)dim1 / GGUFType.Q8_0.getBlockSize() * GGUFType.Q8_0.getTypeSize();
+        long blockOffset = row * rowSize;
+        FloatVector val0 = FloatVector.zero(F_SPECIES);
+        FloatVector val1 = FloatVector.zero(F_SPECIES);
+        FloatVector val2 = FloatVector.zero(F_SPECIES);
+        FloatVector val3 = FloatVector.zero(F_SPECIES);
+        for(int j = 0; j < dim1; j += GGUFType.Q8_0.getBlockSize(), blockOffset += GGUFType.Q8_0.getTypeSize())
+        {
+            if(F_SPECIES.vectorBitSize() == 512)
+            {
+                // a block is 2 vectors of 16 floats, each widened from its own 128-bit load
+                long quantsOffset = blockOffset + Float16.BYTES;
+                var x0 = that.getFloatVector(F_SPECIES, j);
+                var x1 = that.getFloatVector(F_SPECIES, j + F_SPECIES.length());
+                var w0 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset, ByteOrder.LITTLE_ENDIAN);
+                var v0 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + B_SPECIES.vectorByteSize(), ByteOrder.LITTLE_ENDIAN);
+                var s0 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)));
+                val0 = x0.mul(w0.castShape(F_SPECIES, 0)).add(x1.mul(v0.castShape(F_SPECIES, 0))).fma(s0, val0);
+                var w1 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + rowSize, ByteOrder.LITTLE_ENDIAN);
+                var v1 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + rowSize + B_SPECIES.vectorByteSize(), ByteOrder.LITTLE_ENDIAN);
+                var s1 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + rowSize)));
+                val1 = x0.mul(w1.castShape(F_SPECIES, 0)).add(x1.mul(v1.castShape(F_SPECIES, 0))).fma(s1, val1);
+                var w2 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + 2 * rowSize, ByteOrder.LITTLE_ENDIAN);
+                var v2 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + 2 * rowSize + B_SPECIES.vectorByteSize(), ByteOrder.LITTLE_ENDIAN);
+                var s2 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + 2 * rowSize)));
+                val2 = x0.mul(w2.castShape(F_SPECIES, 0)).add(x1.mul(v2.castShape(F_SPECIES, 0))).fma(s2, val2);
+                var w3 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + 3 * rowSize, ByteOrder.LITTLE_ENDIAN);
+                var v3 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + 3 * rowSize + B_SPECIES.vectorByteSize(), ByteOrder.LITTLE_ENDIAN);
+                var s3 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + 3 * rowSize)));
+                val3 = x0.mul(w3.castShape(F_SPECIES, 0)).add(x1.mul(v3.castShape(F_SPECIES, 0))).fma(s3, val3);
+                continue;
+            }
+            for(int i = 0; i < numberOfParts; i++)
+            {
+                long quantsOffset = blockOffset + Float16.BYTES + i * B_SPECIES.vectorByteSize();
+                var x0 = that.getFloatVector(F_SPECIES, j + i * B_SPECIES.length() + 0 * F_SPECIES.length());
+                var x1 = that.getFloatVector(F_SPECIES, j + i * B_SPECIES.length() + 1 * F_SPECIES.length());
+                var x2 = that.getFloatVector(F_SPECIES, j + i * B_SPECIES.length() + 2 * F_SPECIES.length());
+                var x3 = that.getFloatVector(F_SPECIES, j + i * B_SPECIES.length() + 3 * F_SPECIES.length());
+                var w0 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset, ByteOrder.LITTLE_ENDIAN);
+                var s0 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)));
+                val0 = x0.mul(w0.castShape(F_SPECIES, 0)).add(x1.mul(w0.castShape(F_SPECIES, 1))).add(x2.mul(w0.castShape(F_SPECIES, 2))).add(x3.mul(w0.castShape(F_SPECIES, 3))).fma(s0, val0);
+                var w1 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + rowSize, ByteOrder.LITTLE_ENDIAN);
+                var s1 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + rowSize)));
+                val1 = x0.mul(w1.castShape(F_SPECIES, 0)).add(x1.mul(w1.castShape(F_SPECIES, 1))).add(x2.mul(w1.castShape(F_SPECIES, 2))).add(x3.mul(w1.castShape(F_SPECIES, 3))).fma(s1, val1);
+                var w2 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + 2 * rowSize, ByteOrder.LITTLE_ENDIAN);
+                var s2 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + 2 * rowSize)));
+                val2 = x0.mul(w2.castShape(F_SPECIES, 0)).add(x1.mul(w2.castShape(F_SPECIES, 1))).add(x2.mul(w2.castShape(F_SPECIES, 2))).add(x3.mul(w2.castShape(F_SPECIES, 3))).fma(s2, val2);
+                var w3 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, quantsOffset + 3 * rowSize, ByteOrder.LITTLE_ENDIAN);
+                var s3 = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + 3 * rowSize)));
+                val3 = x0.mul(w3.castShape(F_SPECIES, 0)).add(x1.mul(w3.castShape(F_SPECIES, 1))).add(x2.mul(w3.castShape(F_SPECIES, 2))).add(x3.mul(w3.castShape(F_SPECIES, 3))).fma(s3, val3);
+            }
+        }
+        out[0] = 0f + val0.reduceLanes(VectorOperators.ADD);
+        out[1] = 0f + val1.reduceLanes(VectorOperators.ADD);
+        out[2] = 0f + val2.reduceLanes(VectorOperators.ADD);
+        out[3] = 0f + val3.reduceLanes(VectorOperators.ADD);
+    }
+
+
     @Override
     public int size()
     {
@@ -127,7 +240,15 @@ public final class Q8_0SimpleFloatTensor extends SimpleFloatTensor
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
     {
-        if(SimpleFloatTensor.USE_VECTOR_API)
+        if(SimpleFloatTensor.USE_VECTOR_API && that instanceof Q8_0ArraySimpleFloatTensor thatQ8_0)
+        {
+            if(isBlockAligned(thisOffset, thatOffset, size))
+            {
+                return integerDot(this, thisOffset, thatQ8_0, thatOffset, size);
+            }
+            return that.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+        else if(SimpleFloatTensor.USE_VECTOR_API)
         {
             return vectorDot(this, thisOffset, that, thatOffset, size);
         }
@@ -136,4 +257,24 @@ public final class Q8_0SimpleFloatTensor extends SimpleFloatTensor
             return that.scalarDot(this, thisOffset, that, thatOffset, size);
         }
     }
+
+
+    @Override
+    void dotRows(int row, int numberOfRows, FloatTensor that, int dim1, float[] out)
+    {
+        if(SimpleFloatTensor.USE_VECTOR_API && that instanceof ArraySimpleFloatTensor && numberOfRows == ROW_BLOCK_SIZE && dim1 % GGUFType.Q8_0.getBlockSize() == 0)
+        {
+            vectorDotRows(this, row, that, dim1, out);
+        }
+        else
+        {
+            super.dotRows(row, numberOfRows, that, dim1, out);
+        }
+    }
+
+
+    private static boolean isBlockAligned(int thisOffset, int thatOffset, int size)
+    {
+        return thisOffset % GGUFType.Q8_0.getBlockSize() == 0 && thatOffset % GGUFType.Q8_0.getBlockSize() == 0 && size % GGUFType.Q8_0.getBlockSize() == 0;
+    }
 }
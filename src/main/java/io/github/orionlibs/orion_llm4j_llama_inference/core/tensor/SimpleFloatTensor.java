@@ -6,9 +6,17 @@ import io.github.orionlibs.orion_llm4j_inference.core.utils.AggregateFunction;
 import io.github.orionlibs.orion_llm4j_inference.core.utils.MapFunction;
 import io.github.orionlibs.orion_llm4j_inference.core.utils.MapWithIndexFunction;
 import io.github.orionlibs.orion_llm4j_inference.core.utils.Parallel;
+import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 
 /**
@@ -23,8 +31,53 @@ public abstract class SimpleFloatTensor implements FloatTensor
     static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT.withOrder(ByteOrder.LITTLE_ENDIAN);
     static final boolean USE_VECTOR_API = Boolean.parseBoolean(System.getProperty("llama.VectorAPI", "true"));
     // Preferred vector size for the fast multiplication routines.
-    // (Apple Silicon) NEON only supports up-to 128bit vectors.
-    static final VectorSpecies<Float> F_SPECIES = FloatVector.SPECIES_PREFERRED.vectorBitSize() == 128 ? FloatVector.SPECIES_128 : FloatVector.SPECIES_256;
+    // (Apple Silicon) NEON only supports up-to 128bit vectors, AVX-512 goes up to 512bit ones.
+    // -Dllama.VectorBitSize=256 keeps 256bit vectors e.g. on CPUs that lower their clock for 512bit ones.
+    static final VectorSpecies<Float> F_SPECIES = switch(Integer.parseInt(System.getProperty("llama.VectorBitSize", String.valueOf(FloatVector.SPECIES_PREFERRED.vectorBitSize()))))
+    {
+        case 128 -> FloatVector.SPECIES_128;
+        case 512 -> FloatVector.SPECIES_512;
+        default -> FloatVector.SPECIES_256;
+    };
+    // Number of rows that the matmul kernels multiply with the same loads of the input vector.
+    static final int ROW_BLOCK_SIZE = 4;
+    // dot products of a block of rows, per worker thread since the row ranges of a matmul run on the pool threads
+    private static final ThreadLocal<float[][]> ROW_BLOCK_VALUES = ThreadLocal.withInitial(() -> new float[2][ROW_BLOCK_SIZE]);
+    // A few tasks per core balance the load of a matmul, while every task still owns a long, contiguous, range of rows.
+    static final int MATMUL_TASKS_PER_CORE = Integer.parseInt(System.getProperty("llama.MatmulTasksPerCore", "4"));
+    // Quantizes the inputs of the matmuls of Q4_0 and Q8_0 weights to Q8_0, so that their dot products run on integers.
+    static final boolean USE_Q8_0_ACTIVATIONS = Boolean.parseBoolean(System.getProperty("llama.Q8_0Activations", "false"));
+    // quantized inputs of a matmul, per thread since a matmul quantizes its inputs on the thread that calls it
+    private static final ThreadLocal<Q8_0ArraySimpleFloatTensor[]> QUANTIZED_INPUTS = ThreadLocal.withInitial(() -> new Q8_0ArraySimpleFloatTensor[0]);
+    // Lanes of the integer dot products, of the width of the float species but at most 256bit: the kernels add the
+    // products of 2 halves of a block in 16-bit lanes, and a 512bit vector holds a whole block.
+    // Bytes are loaded by halves of that width, so that they widen to 16 bits without shuffles.
+    static final VectorSpecies<Float> I_F_SPECIES = F_SPECIES.vectorBitSize() == 128 ? FloatVector.SPECIES_128 : FloatVector.SPECIES_256;
+    static final VectorSpecies<Byte> B_HALF_SPECIES = I_F_SPECIES.vectorBitSize() == 128 ? ByteVector.SPECIES_64 : ByteVector.SPECIES_128;
+    static final VectorSpecies<Short> S_SPECIES = I_F_SPECIES.vectorBitSize() == 128 ? ShortVector.SPECIES_128 : ShortVector.SPECIES_256;
+    static final VectorSpecies<Integer> I_SPECIES = I_F_SPECIES.vectorBitSize() == 128 ? IntVector.SPECIES_128 : IntVector.SPECIES_256;
+    // Bytes loaded at once by the K-quant and repacked kernels, they widen to 1 float vector, or to 2 with 128bit vectors.
+    static final VectorSpecies<Byte> K_QUANT_B_SPECIES = F_SPECIES.vectorBitSize() == 512 ? ByteVector.SPECIES_128 : ByteVector.SPECIES_64;
+    // Half-precision floats loaded at once, as many lanes as F_SPECIES, and the integer lanes they are decoded in.
+    static final VectorSpecies<Short> H_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(F_SPECIES.vectorBitSize() / 2));
+    static final VectorSpecies<Integer> H_I_SPECIES = F_SPECIES.withLanes(int.class);
+
+
+    /**
+     * @param type type of the tensor, one of F32, F16 or Q8_0
+     * @param dims dimensions of the tensor
+     * @return a writable, heap-backed, tensor of the given type
+     */
+    public static SimpleFloatTensor allocate(GGUFType type, int... dims)
+    {
+        return switch(type)
+        {
+            case F32 -> ArraySimpleFloatTensor.allocate(dims);
+            case F16 -> F16ArraySimpleFloatTensor.allocate(dims);
+            case Q8_0 -> Q8_0ArraySimpleFloatTensor.allocate(dims);
+            default -> throw new UnsupportedOperationException("writable tensor of type " + type);
+        };
+    }
 
 
     public abstract int size();
@@ -64,7 +117,237 @@ public abstract class SimpleFloatTensor implements FloatTensor
     @Override
     public void matmul(FloatTensor that, FloatTensor out, int dim0, int dim1)
     {
-        Parallel.parallelFor(0, dim0, i -> out.setFloat(i, dot(i * dim1, that, 0, dim1)));
+        matmul(1, new FloatTensor[] {that}, new FloatTensor[] {out}, dim0, dim1);
+    }
+
+
+    /**
+     * Multiplies this matrix with a batch of vectors.
+     * <p>
+     * Every block of rows of this matrix is multiplied with all the vectors of the batch while it is still in cache,
+     * so the weights are streamed from memory once per batch instead of once per vector.
+     *
+     * @param batchSize number of vectors in the batch, the first {@code batchSize} entries of {@code that} and {@code out} are used
+     * @param that      input vectors (dim1,)
+     * @param out       output vectors (dim0,)
+     * @param dim0      number of rows of this matrix
+     * @param dim1      number of columns of this matrix
+     */
+    public void matmul(int batchSize, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1)
+    {
+        FloatTensor[] inputs = quantizeInputs(batchSize, that, dim1, this);
+        parallelForRowRanges(dim0, (fromRow, toRow) -> matmulRows(batchSize, inputs, this, out, fromRow, toRow, dim1, ROW_BLOCK_VALUES.get()[0]));
+    }
+
+
+    /**
+     * Multiplies three matrices with the same batch of vectors in a single parallel region
+     * e.g. the query, key and value projections of an attention layer.
+     *
+     * @param batchSize number of vectors in the batch
+     * @param that      input vectors (dim,)
+     * @param w0        first matrix (dim0, dim)
+     * @param out0      output vectors of the first matrix (dim0,)
+     * @param dim0      number of rows of the first matrix
+     * @param w1        second matrix (dim1, dim)
+     * @param out1      output vectors of the second matrix (dim1,)
+     * @param dim1      number of rows of the second matrix
+     * @param w2        third matrix (dim2, dim)
+     * @param out2      output vectors of the third matrix (dim2,)
+     * @param dim2      number of rows of the third matrix
+     * @param dim       number of columns of all three matrices
+     */
+    public static void matmul3(int batchSize, FloatTensor[] that,
+                    FloatTensor w0, FloatTensor[] out0, int dim0,
+                    FloatTensor w1, FloatTensor[] out1, int dim1,
+                    FloatTensor w2, FloatTensor[] out2, int dim2,
+                    int dim)
+    {
+        FloatTensor[] inputs = quantizeInputs(batchSize, that, dim, w0, w1, w2);
+        parallelForRowRanges(dim0 + dim1 + dim2, (fromRow, toRow) -> {
+            float[] values = ROW_BLOCK_VALUES.get()[0];
+            // the range of a task can span two or three of the matrices
+            matmulRows(batchSize, inputs, w0, out0, Math.clamp(fromRow, 0, dim0), Math.clamp(toRow, 0, dim0), dim, values);
+            matmulRows(batchSize, inputs, w1, out1, Math.clamp(fromRow - dim0, 0, dim1), Math.clamp(toRow - dim0, 0, dim1), dim, values);
+            matmulRows(batchSize, inputs, w2, out2, Math.clamp(fromRow - dim0 - dim1, 0, dim2), Math.clamp(toRow - dim0 - dim1, 0, dim2), dim, values);
+        });
+    }
+
+
+    /**
+     * Computes the SwiGLU feed-forward activation {@code silu(gate x) * (up x)} of a batch of vectors in a single pass,
+     * without materialising the gate and up projections.
+     *
+     * @param batchSize number of vectors in the batch
+     * @param gate      gate matrix (dim0, dim1)
+     * @param up        up matrix (dim0, dim1)
+     * @param that      input vectors (dim1,)
+     * @param out       output vectors (dim0,)
+     * @param dim0      number of rows of both matrices
+     * @param dim1      number of columns of both matrices
+     */
+    public static void matmulSwiGLU(int batchSize, FloatTensor gate, FloatTensor up, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1)
+    {
+        FloatTensor[] inputs = quantizeInputs(batchSize, that, dim1, gate, up);
+        parallelForRowRanges(dim0, (fromRow, toRow) -> {
+            float[][] blockValues = ROW_BLOCK_VALUES.get();
+            float[] gateValues = blockValues[0];
+            float[] upValues = blockValues[1];
+            for(int i = fromRow; i < toRow; i += ROW_BLOCK_SIZE)
+            {
+                int numberOfRows = Math.min(ROW_BLOCK_SIZE, toRow - i);
+                for(int b = 0; b < batchSize; b++)
+                {
+                    dotRows(gate, i, numberOfRows, inputs[b], dim1, gateValues);
+                    dotRows(up, i, numberOfRows, inputs[b], dim1, upValues);
+                    for(int r = 0; r < numberOfRows; r++)
+                    {
+                        float value = gateValues[r];
+                        // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
+                        float silu = value / (float)(1.0 + Math.exp(-value));
+                        out[b].setFloat(i + r, silu * upValues[r]);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Dot products of the rows {@code row ... row + numberOfRows - 1} of this matrix with the same vector, with at most
+     * {@link #ROW_BLOCK_SIZE} rows. The quantized tensors override it with kernels that load every part of the vector
+     * once for all the rows rather than once per row.
+     *
+     * @param row          first row
+     * @param numberOfRows number of rows
+     * @param that         vector (dim1,)
+     * @param dim1         number of columns of this matrix
+     * @param out          where the dot product of row {@code row + r} is written at index {@code r}
+     */
+    void dotRows(int row, int numberOfRows, FloatTensor that, int dim1, float[] out)
+    {
+        for(int r = 0; r < numberOfRows; r++)
+        {
+            out[r] = dot((row + r) * dim1, that, 0, dim1);
+        }
+    }
+
+
+    private static void dotRows(FloatTensor w, int row, int numberOfRows, FloatTensor that, int dim1, float[] out)
+    {
+        if(w instanceof SimpleFloatTensor simpleFloatTensor)
+        {
+            simpleFloatTensor.dotRows(row, numberOfRows, that, dim1, out);
+        }
+        else
+        {
+            for(int r = 0; r < numberOfRows; r++)
+            {
+                out[r] = w.dot((row + r) * dim1, that, 0, dim1);
+            }
+        }
+    }
+
+
+    /**
+     * Multiplies the rows {@code fromRow ... toRow - 1} of a matrix with a batch of vectors, block of rows by block of rows.
+     */
+    private static void matmulRows(int batchSize, FloatTensor[] that, FloatTensor w, FloatTensor[] out, int fromRow, int toRow, int dim1, float[] values)
+    {
+        for(int i = fromRow; i < toRow; i += ROW_BLOCK_SIZE)
+        {
+            int numberOfRows = Math.min(ROW_BLOCK_SIZE, toRow - i);
+            for(int b = 0; b < batchSize; b++)
+            {
+                dotRows(w, i, numberOfRows, that[b], dim1, values);
+                for(int r = 0; r < numberOfRows; r++)
+                {
+                    out[b].setFloat(i + r, values[r]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Decodes half-precision floats to float lanes with integer operations, with the results of
+     * {@link Float#float16ToFloat(short)}, subnormals and infinities included. NaNs keep their sign and payload.
+     *
+     * @param halves {@link #H_SPECIES} lanes of half-precision floats
+     * @return {@link #F_SPECIES} lanes of floats
+     */
+    static FloatVector float16ToFloat(ShortVector halves)
+    {
+        var bits = (IntVector)halves.castShape(H_I_SPECIES, 0);
+        var magnitude = bits.and(0x7FFF).lanewise(VectorOperators.LSHL, 13);
+        // normal and subnormal values are rescaled by the difference of the exponent biases, 2^(127 - 15)
+        var finite = magnitude.reinterpretAsFloats().mul(0x1p112f).reinterpretAsInts();
+        // infinities and NaNs keep their mantissa under the largest exponent
+        var decoded = finite.blend(magnitude.or(0x7F800000), magnitude.compare(VectorOperators.GE, 0x7C00 << 13))
+                        .or(bits.and(0x8000).lanewise(VectorOperators.LSHL, 16));
+        return decoded.reinterpretAsFloats();
+    }
+
+
+    /**
+     * Quantizes the input vectors of a matmul to Q8_0 once, rather than once per row, when {@code llama.Q8_0Activations}
+     * is on and all the weights of the matmul have integer dot products with them. Otherwise returns the vectors as they are.
+     * The quantized vectors are reused by the next matmul of the thread, they may be longer than {@code dim}.
+     */
+    private static FloatTensor[] quantizeInputs(int batchSize, FloatTensor[] that, int dim, FloatTensor... weights)
+    {
+        if(!USE_VECTOR_API || !USE_Q8_0_ACTIVATIONS || dim % GGUFType.Q8_0.getBlockSize() != 0)
+        {
+            return that;
+        }
+        for(FloatTensor w : weights)
+        {
+            if(!(w instanceof Q4_0SimpleFloatTensor) && !(w instanceof Q8_0SimpleFloatTensor))
+            {
+                return that;
+            }
+        }
+        Q8_0ArraySimpleFloatTensor[] quantized = QUANTIZED_INPUTS.get();
+        if(quantized.length < batchSize)
+        {
+            quantized = Arrays.copyOf(quantized, batchSize);
+            QUANTIZED_INPUTS.set(quantized);
+        }
+        for(int b = 0; b < batchSize; b++)
+        {
+            if(quantized[b] == null || quantized[b].size() < dim)
+            {
+                quantized[b] = (Q8_0ArraySimpleFloatTensor)Q8_0ArraySimpleFloatTensor.allocate(dim);
+            }
+            quantized[b].quantizeFrom(that[b], dim);
+        }
+        return quantized;
+    }
+
+
+    /**
+     * Splits the rows {@code 0 ... numberOfRows - 1} into contiguous ranges and runs a task per range in parallel.
+     * The number of ranges follows the number of cores rather than the number of rows, every range but the last one
+     * is a multiple of {@link #ROW_BLOCK_SIZE} rows.
+     */
+    static void parallelForRowRanges(int numberOfRows, RowRangeTask task)
+    {
+        if(numberOfRows <= 0)
+        {
+            return;
+        }
+        int numberOfTasks = Math.max(1, Runtime.getRuntime().availableProcessors() * MATMUL_TASKS_PER_CORE);
+        int rowsPerTask = (numberOfRows + numberOfTasks - 1) / numberOfTasks;
+        int rowsPerRange = (rowsPerTask + ROW_BLOCK_SIZE - 1) / ROW_BLOCK_SIZE * ROW_BLOCK_SIZE;
+        Parallel.parallelFor(0, (numberOfRows + rowsPerRange - 1) / rowsPerRange,
+                        t -> task.run(t * rowsPerRange, Math.min(numberOfRows, (t + 1) * rowsPerRange)));
+    }
+
+
+    @FunctionalInterface
+    interface RowRangeTask
+    {
+        void run(int fromRow, int toRow);
     }
 
 
@@ -94,9 +377,36 @@ public abstract class SimpleFloatTensor implements FloatTensor
     }
 
 
+    /**
+     * RMS normalisation of the first {@code size} values of this tensor, scaled by the given weights.
+     *
+     * @param out        where the normalised values are written, can be this tensor
+     * @param weight     normalisation weights (size,)
+     * @param size       number of values to normalise
+     * @param rmsNormEps epsilon added to the mean of the squares
+     */
+    public void rmsnorm(SimpleFloatTensor out, FloatBuffer weight, int size, float rmsNormEps)
+    {
+        // calculate sum of squares
+        float ss = reduce(0, size, 0f, (acc, xi) -> acc + xi * xi);
+        ss /= size;
+        ss += rmsNormEps;
+        ss = (float)(1.0 / Math.sqrt(ss));
+        // normalize and scale
+        final float finalss = ss; // for the lambda
+        out.mapWithIndexInPlace(0, size, (value, index) -> weight.get(index) * (finalss * getFloat(index)));
+    }
+
+
     @Override
     public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size)
     {
+        if(that instanceof PagedSimpleFloatTensor thatPaged)
+        {
+            // page by page, so that the copy between this tensor and every page can take its fast path
+            thatPaged.copyFrom(this, thisOffset, thatOffset, size);
+            return;
+        }
         that.mapWithIndexInPlace(thatOffset, size, (value, index) -> this.getFloat(index - thatOffset + thisOffset));
     }
 
@@ -194,6 +504,12 @@ public abstract class SimpleFloatTensor implements FloatTensor
     }
 
 
+    public SimpleFloatTensor scaleInPlace(int thisOffset, int size, float value)
+    {
+        return mapInPlace(thisOffset, size, f -> f * value);
+    }
+
+
     @Override
     public SimpleFloatTensor fillInPlace(int thisOffset, int size, float value)
     {
@@ -224,4 +540,48 @@ public abstract class SimpleFloatTensor implements FloatTensor
         }
         return this;
     }
+
+
+    /**
+     * Adds the values of this tensor, multiplied by {@code a}, to {@code out}, the reverse of {@link #saxpyInPlace},
+     * so that the values are read by the kernel of this tensor e.g. a quantized value cache.
+     *
+     * @param thisOffset offset of the first value of this tensor
+     * @param out        where the values are added to
+     * @param outOffset  offset of the first value of {@code out}
+     * @param size       number of values
+     * @param a          multiplier of the values of this tensor
+     */
+    public void saxpyTo(int thisOffset, SimpleFloatTensor out, int outOffset, int size, float a)
+    {
+        out.saxpyInPlace(outOffset, this, thisOffset, size, a);
+    }
+
+
+    /**
+     * Writes values of this tensor to a memory segment, in the layout of its {@link #type() type} e.g. to save them to a file.
+     *
+     * @param thisOffset    offset of the first value
+     * @param size          number of values, {@code type().byteSizeFor(size)} bytes are written
+     * @param segment       where the values are written
+     * @param segmentOffset offset in bytes of the first value in the segment
+     */
+    public void writeTo(int thisOffset, int size, MemorySegment segment, long segmentOffset)
+    {
+        throw new UnsupportedOperationException("writeTo");
+    }
+
+
+    /**
+     * Reads values of this tensor from a memory segment that {@link #writeTo} has written.
+     *
+     * @param segment       where the values are read from
+     * @param segmentOffset offset in bytes of the first value in the segment
+     * @param thisOffset    offset of the first value
+     * @param size          number of values
+     */
+    public void readFrom(MemorySegment segment, long segmentOffset, int thisOffset, int size)
+    {
+        throw new UnsupportedOperationException("readFrom");
+    }
 }
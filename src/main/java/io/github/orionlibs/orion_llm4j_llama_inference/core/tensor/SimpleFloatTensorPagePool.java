@@ -0,0 +1,107 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of equally sized, writable, tensors that {@link PagedSimpleFloatTensor paged tensors} are made of.
+ * <p>
+ * Pages are created on demand, up to a maximum number, and the released ones are handed out again,
+ * so memory follows the pages in use rather than the capacity of every paged tensor.
+ * At most {@code maximumNumberOfFreePages} released pages are kept, the others are left to the garbage collector,
+ * so the pool shrinks back after a peak of load.
+ * <p>
+ * A bounded pool that runs out of pages throws an {@link IllegalStateException} from {@link #allocate()}, e.g. in the
+ * middle of a forward pass that writes a new position of a key/value cache. The pages can be taken ahead with
+ * {@link PagedSimpleFloatTensor#reservePages(int)} so that running out fails a single sequence before it's forwarded.
+ * The pool is thread-safe and it can be shared by the paged tensors of many sequences.
+ */
+public final class SimpleFloatTensorPagePool
+{
+    private final GGUFType type;
+    private final int pageSize;
+    private final int maximumNumberOfPages;
+    private final int maximumNumberOfFreePages;
+    private final ArrayDeque<SimpleFloatTensor> freePages;
+    private int numberOfPages;
+
+
+    /**
+     * @param type                 type of the pages, one of F32, F16 or Q8_0
+     * @param pageSize             number of values of a page
+     * @param maximumNumberOfPages     maximum number of pages, in use or free, that the pool creates
+     * @param maximumNumberOfFreePages maximum number of released pages that are kept for reuse
+     */
+    public SimpleFloatTensorPagePool(GGUFType type, int pageSize, int maximumNumberOfPages, int maximumNumberOfFreePages)
+    {
+        if(pageSize < 1 || maximumNumberOfPages < 1)
+        {
+            throw new IllegalArgumentException("invalid page size " + pageSize + " or maximum number of pages " + maximumNumberOfPages);
+        }
+        if(maximumNumberOfFreePages < 0)
+        {
+            throw new IllegalArgumentException("maximum number of free pages must not be negative, but got " + maximumNumberOfFreePages);
+        }
+        this.type = type;
+        this.pageSize = pageSize;
+        this.maximumNumberOfPages = maximumNumberOfPages;
+        this.maximumNumberOfFreePages = maximumNumberOfFreePages;
+        this.freePages = new ArrayDeque<>();
+    }
+
+
+    /**
+     * @return a free page, its values are undefined
+     * @throws IllegalStateException if all the pages are in use and the pool cannot create more
+     */
+    public synchronized SimpleFloatTensor allocate()
+    {
+        if(!freePages.isEmpty())
+        {
+            return freePages.pop();
+        }
+        if(numberOfPages == maximumNumberOfPages)
+        {
+            throw new IllegalStateException("all " + maximumNumberOfPages + " pages are in use");
+        }
+        numberOfPages++;
+        return SimpleFloatTensor.allocate(type, pageSize);
+    }
+
+
+    public synchronized void release(SimpleFloatTensor page)
+    {
+        if(freePages.size() < maximumNumberOfFreePages)
+        {
+            freePages.push(page);
+        }
+        else
+        {
+            numberOfPages--;
+        }
+    }
+
+
+    public GGUFType getType()
+    {
+        return type;
+    }
+
+
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+
+    public synchronized int getNumberOfPagesInUse()
+    {
+        return numberOfPages - freePages.size();
+    }
+
+
+    public synchronized int getNumberOfFreePages()
+    {
+        return freePages.size();
+    }
+}
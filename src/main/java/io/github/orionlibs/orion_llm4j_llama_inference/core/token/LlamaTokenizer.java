@@ -25,7 +25,7 @@ public class LlamaTokenizer implements Tokenizer
 {
     private final Pattern compiledPattern;
     private final Vocabulary vocabulary;
-    private final Map<Pair<Integer, Integer>, Integer> merges;
+    private final MergeTable merges;
     private final Map<String, Integer> specialTokens;
 
 
@@ -55,20 +55,42 @@ public class LlamaTokenizer implements Tokenizer
 
     public LlamaTokenizer(Vocabulary vocabulary, List<Pair<Integer, Integer>> merges, String regexPattern, Map<String, Integer> specialTokens)
     {
-        this.vocabulary = vocabulary;
-        this.compiledPattern = regexPattern != null ? Pattern.compile(regexPattern) : null;
-        this.specialTokens = new HashMap<>(specialTokens);
-        this.merges = new HashMap<>();
+        this(vocabulary, MergeTable.withExpectedSize(merges.size()), regexPattern, specialTokens);
         for(Pair<Integer, Integer> pair : merges)
         {
             int firstIndex = pair.first();
             int secondIndex = pair.second();
             int mergeIndex = vocabulary.getIndex(vocabulary.get(firstIndex) + vocabulary.get(secondIndex)).orElseThrow();
-            this.merges.put(pair, mergeIndex);
+            this.merges.put(firstIndex, secondIndex, mergeIndex);
         }
     }
 
 
+    /**
+     * @param merges merges already resolved to the indexes of the merged tokens e.g. mapped from a tokenizer image
+     */
+    public LlamaTokenizer(Vocabulary vocabulary, MergeTable merges, String regexPattern, Map<String, Integer> specialTokens)
+    {
+        this.vocabulary = vocabulary;
+        this.compiledPattern = regexPattern != null ? Pattern.compile(regexPattern) : null;
+        this.specialTokens = new HashMap<>(specialTokens);
+        this.merges = merges;
+    }
+
+
+    public MergeTable getMerges()
+    {
+        return merges;
+    }
+
+
+    private int mergeRank(Pair<Integer, Integer> pair)
+    {
+        int mergeIndex = merges.get(pair.first(), pair.second());
+        return mergeIndex >= 0 ? mergeIndex : Integer.MAX_VALUE;
+    }
+
+
     private int[] encodeImpl(String text)
     {
         return encodeSpecialTokens(text, Set.of()).stream().mapToInt(i -> i).toArray();
@@ -169,17 +191,17 @@ public class LlamaTokenizer implements Tokenizer
         {
             // find the pair with the lowest merge index
             Map<Pair<Integer, Integer>, Integer> stats = getStats(ids);
-            Pair<Integer, Integer> pair = stats.keySet().stream().min(Comparator.comparingInt(key -> this.merges.getOrDefault(key, Integer.MAX_VALUE))).orElseThrow();
+            Pair<Integer, Integer> pair = stats.keySet().stream().min(Comparator.comparingInt(this::mergeRank)).orElseThrow();
             // subtle: if there are no more merges available, the key will
             // result in an inf for every single pair, and the min will be
             // just the first pair in the list, arbitrarily
             // we can detect this terminating case by a membership check
-            if(!this.merges.containsKey(pair))
+            int idx = this.merges.get(pair.first(), pair.second());
+            if(idx < 0)
             {
                 break; // nothing else can be merged anymore
             }
             // otherwise let's merge the best pair (lowest merge index)
-            int idx = this.merges.get(pair);
             ids = mergeTokens(ids, pair, idx);
         }
         return ids;
@@ -0,0 +1,117 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.token;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Merges of a byte pair encoding, from a pair of token indexes to the index of the merged token, which is also the
+ * rank of the merge.
+ * <p>
+ * The merges are an open-addressing hash table in a single memory segment: the capacity keys, the two indexes of a
+ * pair in a long, followed by the capacity values. The segment is in the same layout in memory and in a file, so that
+ * a table written once can be mapped and used as it is.
+ */
+public final class MergeTable
+{
+    private static final ValueLayout.OfLong JAVA_LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt JAVA_INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    // token indexes are never negative, so no pair has this key
+    private static final long EMPTY = -1L;
+    private final int capacity;
+    private final MemorySegment memorySegment;
+
+
+    /**
+     * @param capacity      number of slots, a power of two
+     * @param memorySegment slots that {@link #put(int, int, int)} has filled, {@link #byteSizeFor(int)} bytes
+     */
+    public MergeTable(int capacity, MemorySegment memorySegment)
+    {
+        if(Integer.bitCount(capacity) != 1 || memorySegment.byteSize() != byteSizeFor(capacity))
+        {
+            throw new IllegalArgumentException("capacity must be a power of two of " + memorySegment.byteSize() + " bytes, but got " + capacity);
+        }
+        this.capacity = capacity;
+        this.memorySegment = memorySegment;
+    }
+
+
+    /**
+     * @return an empty table with room for {@code numberOfMerges} merges, at most half full
+     */
+    public static MergeTable withExpectedSize(int numberOfMerges)
+    {
+        int capacity = Integer.highestOneBit(Math.max(numberOfMerges, 1)) << 2;
+        MemorySegment memorySegment = MemorySegment.ofArray(new long[(int)(byteSizeFor(capacity) / Long.BYTES)]);
+        memorySegment.asSlice(0, (long)capacity * Long.BYTES).fill((byte)0xFF);
+        return new MergeTable(capacity, memorySegment);
+    }
+
+
+    public static long byteSizeFor(int capacity)
+    {
+        return (long)capacity * (Long.BYTES + Integer.BYTES);
+    }
+
+
+    private static long key(int first, int second)
+    {
+        return (long)first << 32 | second;
+    }
+
+
+    private int slot(long key)
+    {
+        return (int)((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(capacity)));
+    }
+
+
+    public void put(int first, int second, int mergeIndex)
+    {
+        long key = key(first, second);
+        for(int slot = slot(key); ; slot = (slot + 1) & (capacity - 1))
+        {
+            long current = memorySegment.getAtIndex(JAVA_LONG_LE, slot);
+            if(current == EMPTY || current == key)
+            {
+                memorySegment.setAtIndex(JAVA_LONG_LE, slot, key);
+                memorySegment.set(JAVA_INT_LE, (long)capacity * Long.BYTES + (long)slot * Integer.BYTES, mergeIndex);
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return the index of the token that merges {@code first} and {@code second}, or -1 if they don't merge
+     */
+    public int get(int first, int second)
+    {
+        long key = key(first, second);
+        for(int slot = slot(key); ; slot = (slot + 1) & (capacity - 1))
+        {
+            long current = memorySegment.getAtIndex(JAVA_LONG_LE, slot);
+            if(current == key)
+            {
+                return memorySegment.get(JAVA_INT_LE, (long)capacity * Long.BYTES + (long)slot * Integer.BYTES);
+            }
+            else if(current == EMPTY)
+            {
+                return -1;
+            }
+        }
+    }
+
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+
+    public MemorySegment getMemorySegment()
+    {
+        return memorySegment;
+    }
+}
@@ -9,10 +9,13 @@ import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaLLMIn
 import io.github.orionlibs.orion_llm4j_llama_inference.core.RotaryPositionEmbeddings;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.token.LlamaTokenizer;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.gguf.GGUFModel;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
 import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -21,6 +24,7 @@ import java.util.stream.IntStream;
 public class LlamaModelLoader extends AbstractModelLoader
 {
     private static final String TOKENIZER_LLAMA_3_MODEL = "gpt2";
+    private static final List<String> MATMUL_WEIGHTS = List.of("attn_q", "attn_k", "attn_v", "attn_output", "ffn_gate", "ffn_down", "ffn_up");
     private static final String LLAMA_3_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
 
 
@@ -36,7 +40,9 @@ public class LlamaModelLoader extends AbstractModelLoader
         GGUFModel gguf = GGUFModel.loadModel(ggufPath);
         Map<String, Object> metadata = gguf.getMetadata();
         Vocabulary vocabulary = loadVocabulary(metadata);
-        LlamaTokenizer tokenizer = createTokenizer(metadata, vocabulary);
+        LlamaTokenizer tokenizer = TokenizerImage.USE_TOKENIZER_IMAGE
+                        ? TokenizerImage.loadOrCreate(ggufPath, gguf.getHeader(), vocabulary, PATTERN, () -> createTokenizer(metadata, vocabulary))
+                        : createTokenizer(metadata, vocabulary);
         int modelContextLength = (int)metadata.get("llama.context_length");
         if(contextLength < 0 || modelContextLength < contextLength)
         {
@@ -66,26 +72,66 @@ public class LlamaModelLoader extends AbstractModelLoader
         float[] ropeFreqsReal = ropeFreqs.first();
         float[] ropeFreqsImag = ropeFreqs.second();
         Map<String, GGUFTensorEntry> tensorEntries = gguf.getTensorEntries();
+        Map<String, SimpleFloatTensor> matmulWeights = loadMatmulWeights(ggufPath, tensorEntries, config.numberOfLayers);
         Weights qw = new Weights(
                         QuantisationLoader.loadQuantized(tensorEntries.get("token_embd.weight")),
                         QuantisationLoader.loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_norm.weight")),
-                        QuantisationLoader.loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_q.weight")),
-                        QuantisationLoader.loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_k.weight")),
-                        QuantisationLoader.loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_v.weight")),
-                        QuantisationLoader.loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_output.weight")),
+                        layerWeights(matmulWeights, config.numberOfLayers, "attn_q"),
+                        layerWeights(matmulWeights, config.numberOfLayers, "attn_k"),
+                        layerWeights(matmulWeights, config.numberOfLayers, "attn_v"),
+                        layerWeights(matmulWeights, config.numberOfLayers, "attn_output"),
                         QuantisationLoader.loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_norm.weight")),
-                        QuantisationLoader.loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_gate.weight")), // w1
-                        QuantisationLoader.loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
-                        QuantisationLoader.loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
+                        layerWeights(matmulWeights, config.numberOfLayers, "ffn_gate"), // w1
+                        layerWeights(matmulWeights, config.numberOfLayers, "ffn_down"), // w2
+                        layerWeights(matmulWeights, config.numberOfLayers, "ffn_up"), // w3
                         QuantisationLoader.toFloatBuffer(tensorEntries.get("output_norm.weight")),
                         FloatBuffer.wrap(ropeFreqsReal),
                         FloatBuffer.wrap(ropeFreqsImag),
-                        QuantisationLoader.loadQuantized(tensorEntries.get("output.weight"))
+                        matmulWeights.get("output.weight")
         );
         return new LlamaLLMInferencer(config, tokenizer, qw);
     }
 
 
+    /**
+     * Loads the weights of the matmuls of the model, repacked into the layouts of their kernels if
+     * {@code -Dllama.RepackWeights=true}.
+     */
+    private static Map<String, SimpleFloatTensor> loadMatmulWeights(Path ggufPath, Map<String, GGUFTensorEntry> tensorEntries, int numberOfLayers) throws IOException
+    {
+        List<String> names = new ArrayList<>();
+        for(int i = 0; i < numberOfLayers; i++)
+        {
+            for(String weight : MATMUL_WEIGHTS)
+            {
+                names.add("blk." + i + "." + weight + ".weight");
+            }
+        }
+        names.add("output.weight");
+        if(WeightRepacker.REPACK_WEIGHTS)
+        {
+            return WeightRepacker.repack(ggufPath, tensorEntries, names);
+        }
+        Map<String, SimpleFloatTensor> weights = HashMap.newHashMap(names.size());
+        for(String name : names)
+        {
+            weights.put(name, QuantisationLoader.loadQuantized(tensorEntries.get(name)));
+        }
+        return weights;
+    }
+
+
+    private static SimpleFloatTensor[] layerWeights(Map<String, SimpleFloatTensor> matmulWeights, int numberOfLayers, String weight)
+    {
+        SimpleFloatTensor[] array = new SimpleFloatTensor[numberOfLayers];
+        for(int i = 0; i < numberOfLayers; i++)
+        {
+            array[i] = matmulWeights.get("blk." + i + "." + weight + ".weight");
+        }
+        return array;
+    }
+
+
     @Override
     protected LlamaTokenizer createTokenizer(Map<String, Object> metadata, Vocabulary vocabulary)
     {
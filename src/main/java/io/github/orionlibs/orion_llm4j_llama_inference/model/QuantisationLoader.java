@@ -3,23 +3,36 @@ package io.github.orionlibs.orion_llm4j_llama_inference.model;
 import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFTensorEntry;
 import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
 import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.F16SimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.F32SimpleFloatTensor;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.Q4_0SimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.Q4_KSimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.Q5_KSimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.Q6_KSimpleFloatTensor;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.Q8_0SimpleFloatTensor;
 import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.function.IntFunction;
 
 public class QuantisationLoader
 {
+    private static final ValueLayout.OfFloat JAVA_FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+
     public static SimpleFloatTensor loadQuantized(GGUFTensorEntry entry)
     {
         GGUFType ggmlType = entry.ggmlType();
         return switch(ggmlType)
         {
-            //case F32 -> new F32FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case F32 -> new F32SimpleFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case F16 -> new F16SimpleFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q8_0 -> new Q8_0SimpleFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q4_0 -> new Q4_0SimpleFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q4_K -> new Q4_KSimpleFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_K -> new Q5_KSimpleFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q6_K -> new Q6_KSimpleFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             default -> throw new UnsupportedOperationException("Quantization format " + ggmlType);
         };
     }
@@ -52,7 +65,8 @@ public class QuantisationLoader
         GGUFType ggmlType = tensorEntry.ggmlType();
         return switch(ggmlType)
         {
-            case F32 -> tensorEntry.memorySegment().asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            // copied to the heap, so that the vectorized kernels can read it as an array
+            case F32 -> FloatBuffer.wrap(tensorEntry.memorySegment().toArray(JAVA_FLOAT_LE));
             default -> throw new UnsupportedOperationException("Conversion to " + ggmlType);
         };
     }
@@ -0,0 +1,138 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.model;
+
+import io.github.orionlibs.orion_llm4j_inference.core.model.Vocabulary;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.token.LlamaTokenizer;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.token.MergeTable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Precompiled image of the tokenizer of a model, written once to a sidecar file next to the model,
+ * {@code <model>.tokenizer}, with {@code -Dllama.TokenizerImage=true}. Later loads map the image rather than split
+ * the merges of the model, look their tokens up and concatenate them again.
+ * <p>
+ * The image holds the indexes of the special tokens and the {@link MergeTable} of the tokenizer, in the layout the
+ * tokenizer uses, so that the mapped table is used as it is. The image records a hash of the header of the model,
+ * where the vocabulary and the merges are, and is written again if the header has changed.
+ */
+public final class TokenizerImage
+{
+    // Caches the tokenizer to a file next to the model.
+    public static final boolean USE_TOKENIZER_IMAGE = Boolean.parseBoolean(System.getProperty("llama.TokenizerImage", "false"));
+    private static final String SIDECAR_SUFFIX = ".tokenizer";
+    private static final int MAGIC = 0x4B4F5454; // "TTOK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final ValueLayout.OfInt JAVA_INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong JAVA_LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+
+    /**
+     * @param ggufPath         path of the model
+     * @param modelHeader      bytes of the model before its tensor data
+     * @param vocabulary       vocabulary of the model
+     * @param regexPattern     pattern that splits the text before its byte pair encoding
+     * @param tokenizerFactory builds the tokenizer from the metadata of the model, if the image is missing or stale
+     * @return the tokenizer of the model
+     */
+    public static LlamaTokenizer loadOrCreate(Path ggufPath, MemorySegment modelHeader, Vocabulary vocabulary, String regexPattern, Supplier<LlamaTokenizer> tokenizerFactory) throws IOException
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(modelHeader.asByteBuffer());
+        MemorySegment header = MemorySegment.ofArray(new byte[HEADER_SIZE]);
+        header.set(JAVA_INT_LE, 0, MAGIC);
+        header.set(JAVA_INT_LE, 4, VERSION);
+        header.set(JAVA_INT_LE, 8, vocabulary.size());
+        header.set(JAVA_LONG_LE, 16, modelHeader.byteSize());
+        header.set(JAVA_LONG_LE, 24, crc.getValue());
+        Path sidecarPath = ggufPath.resolveSibling(ggufPath.getFileName() + SIDECAR_SUFFIX);
+        LlamaTokenizer tokenizer = mapSidecar(sidecarPath, header, vocabulary, regexPattern);
+        if(tokenizer == null)
+        {
+            tokenizer = tokenizerFactory.get();
+            writeSidecar(sidecarPath, header, tokenizer);
+        }
+        return tokenizer;
+    }
+
+
+    private static long tableOffset(int numberOfSpecialTokens)
+    {
+        return (HEADER_SIZE + (long)numberOfSpecialTokens * Integer.BYTES + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+    }
+
+
+    /**
+     * @return the tokenizer of the mapped image, or null if there is none or it doesn't match the model
+     */
+    private static LlamaTokenizer mapSidecar(Path sidecarPath, MemorySegment header, Vocabulary vocabulary, String regexPattern) throws IOException
+    {
+        if(!Files.isRegularFile(sidecarPath) || Files.size(sidecarPath) < HEADER_SIZE)
+        {
+            return null;
+        }
+        MemorySegment sidecar;
+        try(FileChannel fileChannel = FileChannel.open(sidecarPath, StandardOpenOption.READ))
+        {
+            sidecar = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), Arena.ofAuto());
+        }
+        // the counts at 12 and 32 describe the image rather than the model
+        if(sidecar.asSlice(0, 12).mismatch(header.asSlice(0, 12)) != -1 || sidecar.asSlice(16, 16).mismatch(header.asSlice(16, 16)) != -1)
+        {
+            return null;
+        }
+        int numberOfSpecialTokens = sidecar.get(JAVA_INT_LE, 12);
+        int capacity = sidecar.get(JAVA_INT_LE, 32);
+        long tableOffset = tableOffset(numberOfSpecialTokens);
+        if(sidecar.byteSize() != tableOffset + MergeTable.byteSizeFor(capacity))
+        {
+            return null;
+        }
+        Map<String, Integer> specialTokens = HashMap.newHashMap(numberOfSpecialTokens);
+        for(int i = 0; i < numberOfSpecialTokens; i++)
+        {
+            int tokenIndex = sidecar.get(JAVA_INT_LE, HEADER_SIZE + (long)i * Integer.BYTES);
+            specialTokens.put(vocabulary.get(tokenIndex), tokenIndex);
+        }
+        MergeTable merges = new MergeTable(capacity, sidecar.asSlice(tableOffset, MergeTable.byteSizeFor(capacity)));
+        return new LlamaTokenizer(vocabulary, merges, regexPattern, specialTokens);
+    }
+
+
+    /**
+     * Writes the image into a temporary file that replaces the sidecar once it's complete, so that an interrupted load
+     * never leaves a partial image behind.
+     */
+    private static void writeSidecar(Path sidecarPath, MemorySegment header, LlamaTokenizer tokenizer) throws IOException
+    {
+        int[] specialTokenIndexes = tokenizer.getSpecialTokens().values().stream().mapToInt(Integer::intValue).sorted().toArray();
+        MergeTable merges = tokenizer.getMerges();
+        long tableOffset = tableOffset(specialTokenIndexes.length);
+        long size = tableOffset + MergeTable.byteSizeFor(merges.getCapacity());
+        header.set(JAVA_INT_LE, 12, specialTokenIndexes.length);
+        header.set(JAVA_INT_LE, 32, merges.getCapacity());
+        Path temporaryPath = sidecarPath.resolveSibling(sidecarPath.getFileName() + ".tmp");
+        try(FileChannel fileChannel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            MemorySegment sidecar = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size, Arena.ofAuto());
+            MemorySegment.copy(specialTokenIndexes, 0, sidecar, JAVA_INT_LE, HEADER_SIZE, specialTokenIndexes.length);
+            sidecar.asSlice(tableOffset).copyFrom(merges.getMemorySegment());
+            // the header goes last, an image is valid only once all of it is written
+            sidecar.asSlice(0, HEADER_SIZE).copyFrom(header);
+            sidecar.force();
+        }
+        Files.move(temporaryPath, sidecarPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,189 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.model;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFTensorEntry;
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.tensor.FloatTensor;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Parallel;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.Q4_0RepackedSimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.Q8_0RepackedSimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repacks the {@link GGUFType#Q4_0} and {@link GGUFType#Q8_0} matmul weights of a model once, at load time, into the
+ * layouts of their kernels, see {@link Q4_0RepackedSimpleFloatTensor} and {@link Q8_0RepackedSimpleFloatTensor}.
+ * The other weights are loaded as they are.
+ * <p>
+ * The repacked weights are kept off-heap, in place of the pages of the model file that they replace. With
+ * {@code -Dllama.RepackedWeightsSidecar=true} they are written to a sidecar file next to the model,
+ * {@code <model>.repacked}, that later loads map rather than repack again. The sidecar records the size and the
+ * modification time of the model and the layout of the weights, and is written again if any of them has changed.
+ * The repacked weights use the float kernels, they are not combined with {@code -Dllama.Q8_0Activations}.
+ */
+public final class WeightRepacker
+{
+    // Repacks the matmul weights into the layouts of their kernels.
+    public static final boolean REPACK_WEIGHTS = Boolean.parseBoolean(System.getProperty("llama.RepackWeights", "false"));
+    // Caches the repacked weights to a file next to the model.
+    static final boolean USE_SIDECAR = Boolean.parseBoolean(System.getProperty("llama.RepackedWeightsSidecar", "false"));
+    private static final String SIDECAR_SUFFIX = ".repacked";
+    private static final int MAGIC = 0x4B505251; // "QRPK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int ALIGNMENT = 64;
+    private static final ValueLayout.OfInt JAVA_INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong JAVA_LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+
+    /**
+     * @param ggufPath      path of the model
+     * @param tensorEntries tensors of the model
+     * @param names         names of the matmul weights, in the order of their layout in the sidecar
+     * @return the weights by name, repacked if their format has a repacked layout
+     */
+    public static Map<String, SimpleFloatTensor> repack(Path ggufPath, Map<String, GGUFTensorEntry> tensorEntries, List<String> names) throws IOException
+    {
+        Map<String, SimpleFloatTensor> weights = HashMap.newHashMap(names.size());
+        List<String> repackedNames = names.stream().filter(name -> isRepackable(tensorEntries.get(name))).toList();
+        long[] offsets = new long[repackedNames.size()];
+        long size = HEADER_SIZE;
+        for(int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = size;
+            size = alignUp(offsets[i] + byteSizeFor(tensorEntries.get(repackedNames.get(i))));
+        }
+        MemorySegment header = MemorySegment.ofArray(new byte[HEADER_SIZE]);
+        header.set(JAVA_INT_LE, 0, MAGIC);
+        header.set(JAVA_INT_LE, 4, VERSION);
+        header.set(JAVA_INT_LE, 8, Q4_0RepackedSimpleFloatTensor.nibbleOrderWidth());
+        header.set(JAVA_INT_LE, 12, repackedNames.size());
+        header.set(JAVA_LONG_LE, 16, Files.size(ggufPath));
+        header.set(JAVA_LONG_LE, 24, Files.getLastModifiedTime(ggufPath).toMillis());
+        header.set(JAVA_LONG_LE, 32, size);
+        MemorySegment repacked;
+        if(!USE_SIDECAR)
+        {
+            repacked = Arena.ofAuto().allocate(size, ALIGNMENT);
+            repackAll(tensorEntries, repackedNames, offsets, repacked);
+        }
+        else
+        {
+            Path sidecarPath = ggufPath.resolveSibling(ggufPath.getFileName() + SIDECAR_SUFFIX);
+            repacked = mapSidecar(sidecarPath, header, size);
+            if(repacked == null)
+            {
+                repacked = writeSidecar(sidecarPath, header, size, tensorEntries, repackedNames, offsets);
+            }
+        }
+        for(int i = 0; i < offsets.length; i++)
+        {
+            GGUFTensorEntry entry = tensorEntries.get(repackedNames.get(i));
+            int dim1 = entry.shape()[0];
+            int rows = FloatTensor.numberOfElements(entry.shape()) / dim1;
+            MemorySegment segment = repacked.asSlice(offsets[i], byteSizeFor(entry));
+            weights.put(repackedNames.get(i), entry.ggmlType() == GGUFType.Q4_0
+                            ? new Q4_0RepackedSimpleFloatTensor(rows, dim1, segment)
+                            : new Q8_0RepackedSimpleFloatTensor(rows, dim1, segment));
+        }
+        for(String name : names)
+        {
+            if(!weights.containsKey(name))
+            {
+                weights.put(name, QuantisationLoader.loadQuantized(tensorEntries.get(name)));
+            }
+        }
+        return weights;
+    }
+
+
+    private static boolean isRepackable(GGUFTensorEntry entry)
+    {
+        return (entry.ggmlType() == GGUFType.Q4_0 || entry.ggmlType() == GGUFType.Q8_0)
+                        && entry.shape()[0] % entry.ggmlType().getBlockSize() == 0;
+    }
+
+
+    private static long byteSizeFor(GGUFTensorEntry entry)
+    {
+        int dim1 = entry.shape()[0];
+        int rows = FloatTensor.numberOfElements(entry.shape()) / dim1;
+        return entry.ggmlType() == GGUFType.Q4_0
+                        ? Q4_0RepackedSimpleFloatTensor.byteSizeFor(rows, dim1)
+                        : Q8_0RepackedSimpleFloatTensor.byteSizeFor(rows, dim1);
+    }
+
+
+    private static long alignUp(long offset)
+    {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+
+    private static void repackAll(Map<String, GGUFTensorEntry> tensorEntries, List<String> names, long[] offsets, MemorySegment repacked)
+    {
+        Parallel.parallelFor(0, names.size(), i -> {
+            GGUFTensorEntry entry = tensorEntries.get(names.get(i));
+            int dim1 = entry.shape()[0];
+            int rows = FloatTensor.numberOfElements(entry.shape()) / dim1;
+            MemorySegment target = repacked.asSlice(offsets[i], byteSizeFor(entry));
+            if(entry.ggmlType() == GGUFType.Q4_0)
+            {
+                Q4_0RepackedSimpleFloatTensor.repack(entry.memorySegment(), rows, dim1, target);
+            }
+            else
+            {
+                Q8_0RepackedSimpleFloatTensor.repack(entry.memorySegment(), rows, dim1, target);
+            }
+        });
+    }
+
+
+    /**
+     * @return the mapped sidecar, or null if there is none or it doesn't match the model
+     */
+    private static MemorySegment mapSidecar(Path sidecarPath, MemorySegment header, long size) throws IOException
+    {
+        if(!Files.isRegularFile(sidecarPath) || Files.size(sidecarPath) != size)
+        {
+            return null;
+        }
+        try(FileChannel fileChannel = FileChannel.open(sidecarPath, StandardOpenOption.READ))
+        {
+            MemorySegment sidecar = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size, Arena.ofAuto());
+            return sidecar.asSlice(0, HEADER_SIZE).mismatch(header) == -1 ? sidecar : null;
+        }
+    }
+
+
+    /**
+     * Repacks the weights into a temporary file that replaces the sidecar once it's complete, so that an interrupted
+     * load never leaves a partial sidecar behind.
+     */
+    private static MemorySegment writeSidecar(Path sidecarPath, MemorySegment header, long size, Map<String, GGUFTensorEntry> tensorEntries, List<String> names, long[] offsets) throws IOException
+    {
+        Path temporaryPath = sidecarPath.resolveSibling(sidecarPath.getFileName() + ".tmp");
+        MemorySegment sidecar;
+        try(FileChannel fileChannel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            sidecar = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size, Arena.ofAuto());
+            repackAll(tensorEntries, names, offsets, sidecar);
+            // the header goes last, a sidecar is valid only once all of its weights are written
+            sidecar.asSlice(0, HEADER_SIZE).copyFrom(header);
+            sidecar.force();
+        }
+        Files.move(temporaryPath, sidecarPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return sidecar;
+    }
+}
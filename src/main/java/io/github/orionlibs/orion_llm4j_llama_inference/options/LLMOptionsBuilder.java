@@ -13,6 +13,16 @@ public final class LLMOptionsBuilder
         options.add("maximumTokensToProduce", ConfigurationService.getIntegerProp("orion-llm4j-llama-inference.maximum.tokens.to.produce"));
         options.add("interactiveChat", ConfigurationService.getBooleanProp("orion-llm4j-llama-inference.interactive.chat"));
         options.add("asynchronousInference", ConfigurationService.getBooleanProp("orion-llm4j-llama-inference.asynchronous.inference"));
+        options.add("continuousBatching", ConfigurationService.getBooleanProp("orion-llm4j-llama-inference.continuous.batching"));
+        options.add("maximumConcurrentSequences", ConfigurationService.getIntegerProp("orion-llm4j-llama-inference.maximum.concurrent.sequences"));
+        options.add("prefixCache", ConfigurationService.getBooleanProp("orion-llm4j-llama-inference.prefix.cache"));
+        options.add("prefixCacheMaximumMegabytes", ConfigurationService.getIntegerProp("orion-llm4j-llama-inference.prefix.cache.maximum.megabytes"));
+        options.add("contextShift", ConfigurationService.getBooleanProp("orion-llm4j-llama-inference.context.shift"));
+        options.add("contextShiftSinkTokens", ConfigurationService.getIntegerProp("orion-llm4j-llama-inference.context.shift.sink.tokens"));
+        options.add("draftModelPath", ConfigurationService.getProp("orion-llm4j-llama-inference.draft.model.path"));
+        options.add("speculativeDraftTokens", ConfigurationService.getIntegerProp("orion-llm4j-llama-inference.speculative.draft.tokens"));
+        options.add("promptLookup", ConfigurationService.getBooleanProp("orion-llm4j-llama-inference.prompt.lookup"));
+        options.add("promptLookupNgramSize", ConfigurationService.getIntegerProp("orion-llm4j-llama-inference.prompt.lookup.ngram.size"));
         options.add("llmModelPath", ConfigurationService.getProp("orion-llm4j-llama-inference.llm.model.path"));
         return options;
     }
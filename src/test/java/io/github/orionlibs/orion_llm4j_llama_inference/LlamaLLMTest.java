@@ -42,6 +42,20 @@ public class LlamaLLMTest
     }
 
 
+    @Test
+    void test_chatSession() throws IOException
+    {
+        try(LlamaChatSession session = llm.startChatSession("Answer in no more than 12 words."))
+        {
+            session.chat("My name is Orion.", 512);
+            LLMResponse response = session.chat("What is my name?", 512);
+            String capturedOutput = response.getContent();
+            System.out.println(capturedOutput);
+            assertTrue(capturedOutput.contains("Orion"));
+        }
+    }
+
+
     @Test
     @Disabled
     void test_book() throws IOException
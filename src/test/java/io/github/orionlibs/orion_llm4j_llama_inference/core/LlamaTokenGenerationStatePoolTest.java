@@ -0,0 +1,127 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_inference.core.inference.LLMConfiguration;
+import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaLLMInferencer;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.inference.LlamaTestModels;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensorPagePool;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class LlamaTokenGenerationStatePoolTest
+{
+    private final Random random = new Random(42);
+    private final LlamaLLMInferencer model = LlamaTestModels.createModel(random, 64);
+    private final LLMConfiguration config = model.getConfiguration();
+    private final SimpleFloatTensorPagePool kvCachePagePool = LlamaTokenGenerationState.createKVCachePagePool(config, GGUFType.F32, Integer.MAX_VALUE);
+
+
+    @Test
+    void test_closeReturnsThePagesAndTheState()
+    {
+        LlamaTokenGenerationStatePool pool = new LlamaTokenGenerationStatePool(config, 4, kvCachePagePool, 2);
+        LlamaTokenGenerationState state = pool.acquire();
+        state.reserveKVCachePages(config.contextLength);
+        int pagesPerCache = (config.contextLength + LlamaTokenGenerationState.DEFAULT_KV_CACHE_PAGE_SIZE - 1) / LlamaTokenGenerationState.DEFAULT_KV_CACHE_PAGE_SIZE;
+        assertEquals(2 * config.numberOfLayers * pagesPerCache, kvCachePagePool.getNumberOfPagesInUse());
+        state.close();
+        assertEquals(0, kvCachePagePool.getNumberOfPagesInUse());
+        for(int l = 0; l < config.numberOfLayers; l++)
+        {
+            assertEquals(0, state.keyCache[l].getNumberOfPages());
+            assertEquals(0, state.valueCache[l].getNumberOfPages());
+        }
+        assertEquals(1, pool.getNumberOfFreeStates());
+    }
+
+
+    @Test
+    void test_acquireResetsAClosedState()
+    {
+        LlamaTokenGenerationStatePool pool = new LlamaTokenGenerationStatePool(config, 4, kvCachePagePool, 2);
+        LlamaTokenGenerationState state = pool.acquire();
+        state.reserveKVCachePages(10);
+        state.numberOfSinkPositions = 4;
+        state.numberOfDiscardedPositions = 30;
+        state.close();
+        LlamaTokenGenerationState reused = pool.acquire();
+        assertSame(state, reused);
+        assertFalse(reused.isReleased);
+        assertEquals(0, pool.getNumberOfFreeStates());
+        assertEquals(-1, reused.numberOfSinkPositions);
+        assertEquals(0, reused.numberOfDiscardedPositions);
+        assertEquals(0, reused.keyCache[0].getNumberOfPages());
+        // a reused state takes pages again and goes back to the pool when it's closed again
+        reused.reserveKVCachePages(1);
+        assertEquals(2 * config.numberOfLayers, kvCachePagePool.getNumberOfPagesInUse());
+        reused.close();
+        assertEquals(0, kvCachePagePool.getNumberOfPagesInUse());
+        assertEquals(1, pool.getNumberOfFreeStates());
+    }
+
+
+    @Test
+    void test_createNewStateSetsTheLatestTokenOfAReusedState()
+    {
+        int beginOfText = model.getTokenizer().getSpecialTokens().get("<|begin_of_text|>");
+        LlamaTokenGenerationState state = model.createNewState();
+        assertEquals(beginOfText, state.latestToken);
+        model.generateTokens(state, 0, List.of(beginOfText, 5, 6, 7), Set.of(), 8, Sampler.ARGMAX, null);
+        state.close();
+        LlamaTokenGenerationState reused = model.createNewState();
+        assertSame(state, reused);
+        assertEquals(beginOfText, reused.latestToken);
+        reused.close();
+    }
+
+
+    @Test
+    void test_secondCloseIsANoOp()
+    {
+        LlamaTokenGenerationStatePool pool = new LlamaTokenGenerationStatePool(config, 4, kvCachePagePool, 2);
+        LlamaTokenGenerationState state = pool.acquire();
+        state.reserveKVCachePages(10);
+        state.close();
+        state.close();
+        assertEquals(0, kvCachePagePool.getNumberOfPagesInUse());
+        assertEquals(1, pool.getNumberOfFreeStates());
+        // the state was pooled once, so two acquires give two different states
+        LlamaTokenGenerationState first = pool.acquire();
+        LlamaTokenGenerationState second = pool.acquire();
+        assertSame(state, first);
+        assertNotSame(first, second);
+        first.close();
+        second.close();
+    }
+
+
+    @Test
+    void test_poolKeepsAtMostMaximumNumberOfFreeStates()
+    {
+        LlamaTokenGenerationStatePool pool = new LlamaTokenGenerationStatePool(config, 4, kvCachePagePool, 2);
+        LlamaTokenGenerationState[] states = new LlamaTokenGenerationState[5];
+        for(int i = 0; i < states.length; i++)
+        {
+            states[i] = pool.acquire();
+            states[i].reserveKVCachePages(1);
+        }
+        for(int i = 0; i < states.length; i++)
+        {
+            states[i].close();
+            assertEquals(Math.min(i + 1, 2), pool.getNumberOfFreeStates());
+        }
+        // the states that were not kept still returned their pages
+        assertEquals(0, kvCachePagePool.getNumberOfPagesInUse());
+        LlamaTokenGenerationStatePool noFreeStates = new LlamaTokenGenerationStatePool(config, 4, kvCachePagePool, 0);
+        noFreeStates.acquire().close();
+        assertEquals(0, noFreeStates.getNumberOfFreeStates());
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.gguf;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFTensorEntry;
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import java.io.ByteArrayOutputStream;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Parses small model files written by the test, with the layout of the GGUF specification.
+ */
+public class GGUFModelTest
+{
+    private static final int ALIGNMENT = 32;
+    @TempDir
+    Path directory;
+
+
+    @Test
+    void test_metadataAndTensorsAtEveryPadding() throws Exception
+    {
+        // a key of every length ends the tensor infos at every position modulo the alignment, aligned too
+        boolean[] endings = new boolean[ALIGNMENT];
+        for(int length = 1; length <= ALIGNMENT; length++)
+        {
+            String paddingKey = "p".repeat(length);
+            Path path = directory.resolve("model" + length + ".gguf");
+            int headerSize = writeModel(path, paddingKey, 0x46554747);
+            endings[headerSize % ALIGNMENT] = true;
+            GGUFModel gguf = GGUFModel.loadModel(path);
+            Map<String, Object> metadata = gguf.getMetadata();
+            assertEquals("tést ✓", metadata.get("general.name"));
+            assertEquals((byte)7, metadata.get("a.u8"));
+            assertEquals((short)-2, metadata.get("a.i16"));
+            assertEquals(123456, metadata.get("a.u32"));
+            assertEquals(1.5f, metadata.get("a.f32"));
+            assertEquals(1L << 40, metadata.get("a.u64"));
+            assertEquals(2.25, metadata.get("a.f64"));
+            assertEquals(true, metadata.get("a.bool"));
+            assertArrayEquals(new String[] {"a", "é", ""}, (String[])metadata.get("tokenizer.ggml.tokens"));
+            assertArrayEquals(new float[] {0.5f, -1f}, (float[])metadata.get("tokenizer.ggml.scores"));
+            Object[] arrays = (Object[])metadata.get(paddingKey);
+            assertArrayEquals(new int[] {1, 2, 3}, (int[])arrays[0]);
+            assertArrayEquals(new boolean[] {false, true}, (boolean[])arrays[1]);
+            // the tensor data starts at the next multiple of the alignment, or right away if the header ends on one
+            long tensorDataOffset = (headerSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+            assertEquals(tensorDataOffset, gguf.getHeader().byteSize());
+            assertEquals(2, gguf.getTensorEntries().size());
+            GGUFTensorEntry matrix = gguf.getTensorEntries().get("matrix");
+            assertEquals(GGUFType.F32, matrix.ggmlType());
+            assertArrayEquals(new int[] {32, 2}, matrix.shape());
+            assertEquals(64 * Float.BYTES, matrix.memorySegment().byteSize());
+            for(int i = 0; i < 64; i++)
+            {
+                assertEquals(i, matrix.memorySegment().get(ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), (long)i * Float.BYTES));
+            }
+            GGUFTensorEntry vector = gguf.getTensorEntries().get("vector");
+            assertEquals(8 * Float.BYTES, vector.memorySegment().byteSize());
+            assertEquals(100f, vector.memorySegment().get(ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), 0));
+            assertEquals(107f, vector.memorySegment().get(ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), 7 * Float.BYTES));
+        }
+        for(int i = 0; i < ALIGNMENT; i++)
+        {
+            assertEquals(true, endings[i], "no header ends at " + i + " modulo the alignment");
+        }
+    }
+
+
+    @Test
+    void test_wrongMagic() throws Exception
+    {
+        Path path = directory.resolve("model.gguf");
+        writeModel(path, "p", 0x46554748);
+        assertThrows(IllegalArgumentException.class, () -> GGUFModel.loadModel(path));
+    }
+
+
+    /**
+     * @return the size of the header, the metadata and the tensor infos, before the padding
+     */
+    private static int writeModel(Path path, String paddingKey, int magic) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, magic);
+        writeInt(out, 3);
+        writeLong(out, 2);
+        writeLong(out, 11);
+        writeKey(out, "general.name", 8);
+        writeString(out, "tést ✓");
+        writeKey(out, "a.u8", 0);
+        out.write(7);
+        writeKey(out, "a.i16", 3);
+        out.write(0xFE);
+        out.write(0xFF);
+        writeKey(out, "a.u32", 4);
+        writeInt(out, 123456);
+        writeKey(out, "a.f32", 6);
+        writeInt(out, Float.floatToIntBits(1.5f));
+        writeKey(out, "a.u64", 10);
+        writeLong(out, 1L << 40);
+        writeKey(out, "a.f64", 12);
+        writeLong(out, Double.doubleToLongBits(2.25));
+        writeKey(out, "a.bool", 7);
+        out.write(1);
+        writeKey(out, "tokenizer.ggml.tokens", 9);
+        writeInt(out, 8);
+        writeLong(out, 3);
+        writeString(out, "a");
+        writeString(out, "é");
+        writeString(out, "");
+        writeKey(out, "tokenizer.ggml.scores", 9);
+        writeInt(out, 6);
+        writeLong(out, 2);
+        writeInt(out, Float.floatToIntBits(0.5f));
+        writeInt(out, Float.floatToIntBits(-1f));
+        // an array of arrays
+        writeKey(out, paddingKey, 9);
+        writeInt(out, 9);
+        writeLong(out, 2);
+        writeInt(out, 5);
+        writeLong(out, 3);
+        writeInt(out, 1);
+        writeInt(out, 2);
+        writeInt(out, 3);
+        writeInt(out, 7);
+        writeLong(out, 2);
+        out.write(0);
+        out.write(1);
+        // the tensor infos: name, dimensions, type and offset in the tensor data
+        writeString(out, "matrix");
+        writeInt(out, 2);
+        writeLong(out, 32);
+        writeLong(out, 2);
+        writeInt(out, 0);
+        writeLong(out, 0);
+        writeString(out, "vector");
+        writeInt(out, 1);
+        writeLong(out, 8);
+        writeInt(out, 0);
+        writeLong(out, 64 * Float.BYTES);
+        int headerSize = out.size();
+        out.write(new byte[(ALIGNMENT - headerSize % ALIGNMENT) % ALIGNMENT]);
+        for(int i = 0; i < 64; i++)
+        {
+            writeInt(out, Float.floatToIntBits(i));
+        }
+        for(int i = 0; i < 8; i++)
+        {
+            writeInt(out, Float.floatToIntBits(100 + i));
+        }
+        Files.write(path, out.toByteArray());
+        return headerSize;
+    }
+
+
+    private static void writeKey(ByteArrayOutputStream out, String key, int valueType)
+    {
+        writeString(out, key);
+        writeInt(out, valueType);
+    }
+
+
+    private static void writeString(ByteArrayOutputStream out, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeLong(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+
+    private static void writeInt(ByteArrayOutputStream out, int value)
+    {
+        out.writeBytes(ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+    }
+
+
+    private static void writeLong(ByteArrayOutputStream out, long value)
+    {
+        out.writeBytes(ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array());
+    }
+}
@@ -0,0 +1,93 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.orionlibs.orion_llm4j_inference.core.io.LLMResponse;
+import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class LlamaBatchSchedulerTest
+{
+    private static final Sampler ARGMAX = logits -> logits.argmax();
+    private final Random random = new Random(42);
+
+
+    @Test
+    void test_sequencesAreAdmittedAndRetired() throws Exception
+    {
+        LlamaLLMInferencer model = LlamaTestModels.createModel(random, 64);
+        List<List<Integer>> prompts = new ArrayList<>();
+        for(int length : new int[] {5, 23, 0, 11, 17})
+        {
+            List<Integer> prompt = new ArrayList<>();
+            for(int i = 0; i < length; i++)
+            {
+                prompt.add(random.nextInt(LlamaTestModels.VOCABULARY_SIZE));
+            }
+            prompts.add(prompt);
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for(List<Integer> prompt : prompts)
+        {
+            LlamaTokenGenerationState state = model.createNewState();
+            expected.add(model.generateTokens(state, 0, prompt, Set.of(), 40, ARGMAX, null).getResponseTokens());
+            state.close();
+        }
+        // fewer places than requests, so that requests wait for the finished ones to be retired
+        try(LlamaBatchScheduler scheduler = new LlamaBatchScheduler(model, 2, 8))
+        {
+            List<CompletableFuture<LLMResponse>> responses = new ArrayList<>();
+            for(List<Integer> prompt : prompts)
+            {
+                responses.add(scheduler.submit(prompt, Set.of(), 40, ARGMAX, null));
+            }
+            for(int i = 0; i < responses.size(); i++)
+            {
+                assertEquals(expected.get(i), responses.get(i).get(60, TimeUnit.SECONDS).getResponseTokens());
+            }
+        }
+        assertEquals(0, model.getKVCachePagePool().getNumberOfPagesInUse());
+    }
+
+
+    @Test
+    void test_submitDuringClose() throws Exception
+    {
+        LlamaLLMInferencer model = LlamaTestModels.createModel(random, 16);
+        for(int i = 0; i < 50; i++)
+        {
+            LlamaBatchScheduler scheduler = new LlamaBatchScheduler(model, 2, 4);
+            List<CompletableFuture<LLMResponse>> responses = new ArrayList<>();
+            Thread submitter = Thread.ofPlatform().start(() -> {
+                try
+                {
+                    while(true)
+                    {
+                        responses.add(scheduler.submit(List.of(1, 2, 3), Set.of(), 8, ARGMAX, null));
+                    }
+                }
+                catch(IllegalStateException e)
+                {
+                    // closed
+                }
+            });
+            Thread.sleep(1);
+            scheduler.close();
+            submitter.join(TimeUnit.SECONDS.toMillis(10));
+            assertTrue(!submitter.isAlive(), "submit kept accepting requests after close");
+            for(CompletableFuture<LLMResponse> response : responses)
+            {
+                // every request is either served or failed, none is left behind in the queue
+                response.handle((value, cause) -> null).get(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
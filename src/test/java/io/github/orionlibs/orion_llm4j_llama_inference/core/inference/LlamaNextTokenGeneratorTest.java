@@ -0,0 +1,87 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class LlamaNextTokenGeneratorTest
+{
+    private final Random random = new Random(42);
+    private final LlamaLLMInferencer model = LlamaTestModels.createModel(random, 64);
+
+
+    @Test
+    void test_shiftedKeysAreTheKeysOfTheNewPositions()
+    {
+        int numberOfPositions = 50;
+        int numberOfSinkPositions = 4;
+        int numberOfDiscardedPositions = 19;
+        int[] tokens = new int[numberOfPositions];
+        for(int i = 0; i < tokens.length; i++)
+        {
+            tokens[i] = random.nextInt(LlamaTestModels.VOCABULARY_SIZE);
+        }
+        // the tokens that are left, forwarded at their new positions
+        int[] keptTokens = new int[numberOfPositions - numberOfDiscardedPositions];
+        System.arraycopy(tokens, 0, keptTokens, 0, numberOfSinkPositions);
+        System.arraycopy(tokens, numberOfSinkPositions + numberOfDiscardedPositions, keptTokens, numberOfSinkPositions, keptTokens.length - numberOfSinkPositions);
+        int kvDim = model.getConfiguration().dim * model.getConfiguration().numberOfKeyValueHeads / model.getConfiguration().numberOfHeads;
+        try(LlamaTokenGenerationState shifted = model.createNewState(); LlamaTokenGenerationState expected = model.createNewState())
+        {
+            forward(shifted, tokens);
+            int numberOfPositionsLeft = model.getNextTokenGenerator().shiftContext(model, shifted, numberOfSinkPositions, numberOfPositions, numberOfDiscardedPositions);
+            assertEquals(keptTokens.length, numberOfPositionsLeft);
+            forward(expected, keptTokens);
+            // the keys and the values of the first layer only depend on the token and its position
+            for(int i = 0; i < keptTokens.length * kvDim; i++)
+            {
+                assertEquals(expected.keyCache[0].getFloat(i), shifted.keyCache[0].getFloat(i), 1e-5f, "key " + i % kvDim + " of position " + i / kvDim);
+                assertEquals(expected.valueCache[0].getFloat(i), shifted.valueCache[0].getFloat(i), "value " + i % kvDim + " of position " + i / kvDim);
+            }
+        }
+    }
+
+
+    @Test
+    void test_generationGoesPastTheContextLength()
+    {
+        List<Integer> prompt = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+        {
+            prompt.add(random.nextInt(LlamaTestModels.VOCABULARY_SIZE));
+        }
+        List<Integer> expected;
+        try(LlamaTokenGenerationState state = model.createNewState())
+        {
+            expected = model.generateTokens(state, 0, prompt, Set.of(), 64, Sampler.ARGMAX, null).getResponseTokens();
+        }
+        try(LlamaTokenGenerationState state = model.createNewState())
+        {
+            state.numberOfSinkPositions = 4;
+            List<Integer> tokens = model.generateTokens(state, 0, prompt, Set.of(), 200, Sampler.ARGMAX, null).getResponseTokens();
+            // the positions of the maximum are counted as if none had been discarded
+            assertEquals(200 - prompt.size(), tokens.size());
+            assertEquals(expected, tokens.subList(0, expected.size()));
+            assertTrue(state.numberOfDiscardedPositions > 200 - 64, "discarded " + state.numberOfDiscardedPositions + " positions");
+        }
+    }
+
+
+    private void forward(LlamaTokenGenerationState state, int[] tokens)
+    {
+        int[] chunk = new int[state.batchSize];
+        for(int position = 0; position < tokens.length; position += chunk.length)
+        {
+            int numberOfTokens = Math.min(chunk.length, tokens.length - position);
+            System.arraycopy(tokens, position, chunk, 0, numberOfTokens);
+            model.getNextTokenGenerator().forward(model, state, chunk, numberOfTokens, position, false);
+        }
+    }
+}
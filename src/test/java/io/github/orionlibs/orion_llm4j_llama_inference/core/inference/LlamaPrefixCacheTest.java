@@ -0,0 +1,196 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class LlamaPrefixCacheTest
+{
+    private final Random random = new Random(42);
+    private final LlamaLLMInferencer model = LlamaTestModels.createModel(random, 64);
+    private final int kvDim = model.getConfiguration().dim * model.getConfiguration().numberOfKeyValueHeads / model.getConfiguration().numberOfHeads;
+
+
+    @Test
+    void test_restoreOfSplitEdges()
+    {
+        List<Integer> first = randomTokens(0, 20);
+        List<Integer> second = new ArrayList<>(first.subList(0, 12));
+        second.addAll(randomTokens(1, 6));
+        try(LlamaTokenGenerationState firstState = prefilledState(first); LlamaTokenGenerationState secondState = prefilledState(second))
+        {
+            LlamaPrefixCache cache = new LlamaPrefixCache(model.getConfiguration(), firstState.keyCache[0].type(), Long.MAX_VALUE);
+            cache.store(first, firstState);
+            // splits the edge of the first sequence after 12 tokens
+            cache.store(second, secondState);
+            List<Integer> longerSecond = new ArrayList<>(second);
+            longerSecond.add(3);
+            assertRestores(cache, longerSecond, second.size(), secondState);
+            assertRestores(cache, first, first.size() - 1, firstState);
+            // the shared prefix, followed by a token of neither
+            List<Integer> third = new ArrayList<>(first.subList(0, 12));
+            third.add(2);
+            third.add(2);
+            assertRestores(cache, third, 12, firstState);
+            // in the middle of the edge of the shared prefix
+            assertRestores(cache, first.subList(0, 8), 7, firstState);
+            // a prefix of the second sequence is stored again, its edge is split once more
+            cache.store(second.subList(0, 15), secondState);
+            assertRestores(cache, longerSecond, second.size(), secondState);
+            assertRestores(cache, first, first.size() - 1, firstState);
+        }
+    }
+
+
+    @Test
+    void test_restoreLeavesATokenToForward()
+    {
+        List<Integer> tokens = randomTokens(0, 10);
+        try(LlamaTokenGenerationState state = prefilledState(tokens))
+        {
+            LlamaPrefixCache cache = new LlamaPrefixCache(model.getConfiguration(), state.keyCache[0].type(), Long.MAX_VALUE);
+            cache.store(tokens, state);
+            assertRestores(cache, tokens, tokens.size() - 1, state);
+            assertRestores(cache, tokens.subList(0, 1), 0, state);
+            assertRestores(cache, List.of(), 0, state);
+        }
+    }
+
+
+    @Test
+    void test_leastRecentlyUsedSequencesAreEvicted()
+    {
+        List<List<Integer>> sequences = new ArrayList<>();
+        List<LlamaTokenGenerationState> states = new ArrayList<>();
+        for(int i = 0; i < 4; i++)
+        {
+            sequences.add(randomTokens(i, 10));
+            states.add(prefilledState(sequences.get(i)));
+        }
+        GGUFType type = states.getFirst().keyCache[0].type();
+        long sequenceBytes = 2L * model.getConfiguration().numberOfLayers * type.byteSizeFor(10 * kvDim);
+        LlamaPrefixCache cache = new LlamaPrefixCache(model.getConfiguration(), type, 3 * sequenceBytes);
+        for(int i = 0; i < 3; i++)
+        {
+            cache.store(sequences.get(i), states.get(i));
+        }
+        assertEquals(3 * sequenceBytes, cache.getNumberOfBytes());
+        // the first sequence is used again, so the second one is the least recently used
+        try(LlamaTokenGenerationState state = model.createNewState())
+        {
+            assertEquals(9, cache.restore(sequences.get(0), state));
+        }
+        cache.store(sequences.get(3), states.get(3));
+        assertEquals(3 * sequenceBytes, cache.getNumberOfBytes());
+        for(int i = 0; i < 4; i++)
+        {
+            assertRestores(cache, sequences.get(i), i == 1 ? 0 : 9, states.get(i));
+        }
+        // over the budget on its own
+        LlamaPrefixCache smallCache = new LlamaPrefixCache(model.getConfiguration(), type, sequenceBytes - 1);
+        smallCache.store(sequences.get(0), states.get(0));
+        assertEquals(0, smallCache.getNumberOfBytes());
+        states.forEach(LlamaTokenGenerationState::close);
+    }
+
+
+    @Test
+    void test_logitsAfterARestoreMatchAFullPrefill()
+    {
+        List<Integer> cached = randomTokens(0, 20);
+        List<Integer> tokens = new ArrayList<>(cached.subList(0, 16));
+        tokens.addAll(randomTokens(1, 5));
+        try(LlamaTokenGenerationState cachedState = prefilledState(cached);
+                        LlamaTokenGenerationState restoredState = model.createNewState();
+                        LlamaTokenGenerationState fullState = model.createNewState())
+        {
+            LlamaPrefixCache cache = new LlamaPrefixCache(model.getConfiguration(), cachedState.keyCache[0].type(), Long.MAX_VALUE);
+            cache.store(cached, cachedState);
+            int position = cache.restore(tokens, restoredState);
+            assertEquals(16, position);
+            float[] restoredLogits = logits(forward(restoredState, tokens, position, true));
+            float[] expectedLogits = logits(forward(fullState, tokens, 0, true));
+            for(int i = 0; i < expectedLogits.length; i++)
+            {
+                assertEquals(expectedLogits[i], restoredLogits[i], 1e-5f, "logit " + i);
+            }
+        }
+    }
+
+
+    private void assertRestores(LlamaPrefixCache cache, List<Integer> tokens, int expectedLength, LlamaTokenGenerationState expected)
+    {
+        try(LlamaTokenGenerationState state = model.createNewState())
+        {
+            assertEquals(expectedLength, cache.restore(tokens, state), "restored positions of " + tokens);
+            for(int l = 0; l < model.getConfiguration().numberOfLayers; l++)
+            {
+                for(int i = 0; i < expectedLength * kvDim; i++)
+                {
+                    assertEquals(expected.keyCache[l].getFloat(i), state.keyCache[l].getFloat(i));
+                    assertEquals(expected.valueCache[l].getFloat(i), state.valueCache[l].getFloat(i));
+                }
+            }
+        }
+    }
+
+
+    private LlamaTokenGenerationState prefilledState(List<Integer> tokens)
+    {
+        LlamaTokenGenerationState state = model.createNewState();
+        forward(state, tokens, 0, false);
+        return state;
+    }
+
+
+    /**
+     * Forwards the tokens from a position on, at their positions.
+     */
+    private SimpleFloatTensor forward(LlamaTokenGenerationState state, List<Integer> tokens, int position, boolean computeLogits)
+    {
+        int[] chunk = new int[state.batchSize];
+        SimpleFloatTensor logits = null;
+        for(; position < tokens.size(); position += chunk.length)
+        {
+            int numberOfTokens = Math.min(chunk.length, tokens.size() - position);
+            for(int i = 0; i < numberOfTokens; i++)
+            {
+                chunk[i] = tokens.get(position + i);
+            }
+            logits = model.getNextTokenGenerator().forward(model, state, chunk, numberOfTokens, position, computeLogits);
+        }
+        return logits;
+    }
+
+
+    private static float[] logits(SimpleFloatTensor logits)
+    {
+        float[] values = new float[logits.size()];
+        for(int i = 0; i < values.length; i++)
+        {
+            values[i] = logits.getFloat(i);
+        }
+        return values;
+    }
+
+
+    /**
+     * Random tokens after a given first token, so that sequences with different first tokens share no prefix.
+     */
+    private List<Integer> randomTokens(int firstToken, int length)
+    {
+        List<Integer> tokens = new ArrayList<>();
+        tokens.add(firstToken);
+        while(tokens.size() < length)
+        {
+            tokens.add(4 + random.nextInt(LlamaTestModels.VOCABULARY_SIZE - 4));
+        }
+        return tokens;
+    }
+}
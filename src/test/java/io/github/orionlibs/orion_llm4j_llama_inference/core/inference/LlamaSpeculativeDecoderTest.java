@@ -0,0 +1,155 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.orionlibs.orion_llm4j_inference.core.io.LLMResponse;
+import io.github.orionlibs.orion_llm4j_inference.core.sampler.Sampler;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class LlamaSpeculativeDecoderTest
+{
+    private final Random random = new Random(42);
+    private final LlamaLLMInferencer model = LlamaTestModels.createModel(random, 64);
+
+
+    @Test
+    void test_greedyWithAnotherDraftModel()
+    {
+        LlamaLLMInferencer draftModel = LlamaTestModels.createModel(random, 64);
+        List<Integer> prompt = randomPrompt(7);
+        LLMResponse response = generate(new LlamaSpeculativeDecoder(model, draftModel, 4, 0f, 1f, random), prompt, Set.of(), 48);
+        assertEquals(greedy(prompt, Set.of(), 48), response.getResponseTokens());
+        // the draft model disagrees with the model, so draft tokens were rejected
+        assertFalse(response.stats.contains(" 100% of draft tokens accepted"), response.stats);
+    }
+
+
+    @Test
+    void test_greedyWithTheModelAsItsOwnDraft()
+    {
+        List<Integer> prompt = randomPrompt(7);
+        LLMResponse response = generate(new LlamaSpeculativeDecoder(model, model, 4, 0f, 1f, random), prompt, Set.of(), 48);
+        assertEquals(greedy(prompt, Set.of(), 48), response.getResponseTokens());
+        assertTrue(response.stats.contains(" 100% of draft tokens accepted"), response.stats);
+    }
+
+
+    @Test
+    void test_maximumNumberOfTokensInTheMiddleOfAStep()
+    {
+        List<Integer> prompt = randomPrompt(7);
+        // 8 positions ingested, then steps of 5 tokens that don't add up to the maximum
+        for(int maxTokens : new int[] {9, 10, 21, 22, 23})
+        {
+            LLMResponse response = generate(new LlamaSpeculativeDecoder(model, model, 4, 0f, 1f, random), prompt, Set.of(), maxTokens);
+            assertEquals(greedy(prompt, Set.of(), maxTokens), response.getResponseTokens(), "maximum of " + maxTokens + " tokens");
+        }
+    }
+
+
+    @Test
+    void test_stopTokenInTheMiddleOfAStep()
+    {
+        List<Integer> prompt = randomPrompt(7);
+        List<Integer> expected = greedy(prompt, Set.of(), 48);
+        Set<Integer> stopTokens = Set.of(expected.get(expected.size() / 2));
+        LLMResponse response = generate(new LlamaSpeculativeDecoder(model, model, 4, 0f, 1f, random), prompt, stopTokens, 48);
+        assertEquals(greedy(prompt, stopTokens, 48), response.getResponseTokens());
+    }
+
+
+    @Test
+    void test_draftModelWithAShorterContext()
+    {
+        LlamaLLMInferencer draftModel = LlamaTestModels.createModel(random, 16);
+        List<Integer> prompt = randomPrompt(7);
+        LLMResponse response = generate(new LlamaSpeculativeDecoder(model, draftModel, 4, 0f, 1f, random), prompt, Set.of(), 64);
+        assertEquals(greedy(prompt, Set.of(), 64), response.getResponseTokens());
+        // a prompt longer than the context of the draft model
+        prompt = randomPrompt(20);
+        response = generate(new LlamaSpeculativeDecoder(model, draftModel, 4, 0f, 1f, random), prompt, Set.of(), 64);
+        assertEquals(greedy(prompt, Set.of(), 64), response.getResponseTokens());
+    }
+
+
+    @Test
+    void test_promptLookupOnARepeatedSpan()
+    {
+        // the prompt, its continuation and the prompt again, so that the continuation can be copied
+        List<Integer> span = randomPrompt(6);
+        List<Integer> prompt = new ArrayList<>(span);
+        prompt.addAll(greedy(span, Set.of(), 26));
+        prompt.addAll(span);
+        for(int ngramSize : new int[] {1, 3})
+        {
+            LLMResponse response = generate(new LlamaSpeculativeDecoder(model, ngramSize, 4, 0f, 1f, random), prompt, Set.of(), 64);
+            assertEquals(greedy(prompt, Set.of(), 64), response.getResponseTokens(), "n-grams of " + ngramSize);
+            assertFalse(response.stats.contains(", 0% of draft tokens accepted"), response.stats);
+        }
+    }
+
+
+    @Test
+    void test_promptLookupWithoutAMatch()
+    {
+        List<Integer> prompt = List.of(5, 6, 7, 8);
+        LLMResponse response = generate(new LlamaSpeculativeDecoder(model, 2, 4, 0f, 1f, random), prompt, Set.of(), 40);
+        assertEquals(greedy(prompt, Set.of(), 40), response.getResponseTokens());
+        LlamaSpeculativeDecoder.PromptLookupDrafter drafter = new LlamaSpeculativeDecoder.PromptLookupDrafter(2);
+        int[] draftTokens = new int[4];
+        SimpleFloatTensor[] draftProbabilities = new SimpleFloatTensor[4];
+        drafter.ingest(new int[] {5, 6, 7}, 0);
+        // 8 doesn't occur before
+        assertEquals(0, drafter.draft(8, 3, 4, draftTokens, draftProbabilities));
+        drafter.accept(8, 3, draftTokens, 0, 0);
+        // the sequence is 5 6 7 8 5, with 8 once, so 5 is followed by 6 7 8 5
+        assertEquals(4, drafter.draft(5, 4, 4, draftTokens, draftProbabilities));
+        assertArrayEquals(new int[] {6, 7, 8, 5}, draftTokens);
+        drafter.accept(5, 4, draftTokens, 4, 2);
+        // 5 6 7 8 5 6 7 then 9, whose lookup finds nothing
+        assertEquals(0, drafter.draft(9, 7, 4, draftTokens, draftProbabilities));
+        drafter.accept(9, 7, draftTokens, 0, 0);
+        // the latest earlier 7 is followed by 9 once and 7
+        assertEquals(2, drafter.draft(7, 8, 4, draftTokens, draftProbabilities));
+        assertEquals(9, draftTokens[0]);
+        assertEquals(7, draftTokens[1]);
+    }
+
+
+    private List<Integer> greedy(List<Integer> prompt, Set<Integer> stopTokens, int maxTokens)
+    {
+        try(LlamaTokenGenerationState state = model.createNewState())
+        {
+            return model.generateTokens(state, 0, prompt, stopTokens, maxTokens, Sampler.ARGMAX, null).getResponseTokens();
+        }
+    }
+
+
+    private LLMResponse generate(LlamaSpeculativeDecoder decoder, List<Integer> prompt, Set<Integer> stopTokens, int maxTokens)
+    {
+        try(LlamaTokenGenerationState state = model.createNewState())
+        {
+            return decoder.generateTokens(state, 0, prompt, stopTokens, maxTokens, null);
+        }
+    }
+
+
+    private List<Integer> randomPrompt(int length)
+    {
+        List<Integer> prompt = new ArrayList<>();
+        for(int i = 0; i < length; i++)
+        {
+            prompt.add(random.nextInt(LlamaTestModels.VOCABULARY_SIZE));
+        }
+        return prompt;
+    }
+}
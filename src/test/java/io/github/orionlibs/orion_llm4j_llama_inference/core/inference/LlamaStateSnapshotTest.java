@@ -0,0 +1,136 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.LlamaTokenGenerationState;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LlamaStateSnapshotTest
+{
+    private static final int NUMBER_OF_POSITIONS = 21;
+    private final Random random = new Random(42);
+    private final LlamaLLMInferencer model = LlamaTestModels.createModel(random, 64);
+    @TempDir
+    Path directory;
+
+
+    @Test
+    void test_restoredStateGivesTheSameLogits() throws Exception
+    {
+        for(GGUFType type : new GGUFType[] {GGUFType.F32, GGUFType.F16, GGUFType.Q8_0})
+        {
+            Path path = directory.resolve("snapshot-" + type);
+            float[] expected;
+            try(LlamaTokenGenerationState state = prefilledState(type))
+            {
+                LlamaStateSnapshot.save(path, model, state, NUMBER_OF_POSITIONS);
+                expected = nextLogits(state);
+            }
+            assertFalse(Files.exists(directory.resolve("snapshot-" + type + ".tmp")));
+            try(LlamaTokenGenerationState state = new LlamaTokenGenerationState(model.getConfiguration(), 16, type))
+            {
+                assertEquals(NUMBER_OF_POSITIONS, LlamaStateSnapshot.restore(path, model, state));
+                assertEquals(7, state.latestToken);
+                assertArrayEquals(expected, nextLogits(state), type.toString());
+            }
+        }
+    }
+
+
+    @Test
+    void test_restoreRejectsAnotherModel() throws Exception
+    {
+        Path path = directory.resolve("snapshot");
+        try(LlamaTokenGenerationState state = prefilledState(GGUFType.F32))
+        {
+            LlamaStateSnapshot.save(path, model, state, NUMBER_OF_POSITIONS);
+        }
+        // the same shape with other weights
+        LlamaLLMInferencer otherModel = LlamaTestModels.createModel(random, 64);
+        try(LlamaTokenGenerationState state = new LlamaTokenGenerationState(otherModel.getConfiguration(), 16, GGUFType.F32))
+        {
+            assertThrows(IllegalArgumentException.class, () -> LlamaStateSnapshot.restore(path, otherModel, state));
+        }
+    }
+
+
+    @Test
+    void test_restoreRejectsAnotherCacheType() throws Exception
+    {
+        Path path = directory.resolve("snapshot");
+        try(LlamaTokenGenerationState state = prefilledState(GGUFType.F32))
+        {
+            LlamaStateSnapshot.save(path, model, state, NUMBER_OF_POSITIONS);
+        }
+        try(LlamaTokenGenerationState state = new LlamaTokenGenerationState(model.getConfiguration(), 16, GGUFType.F16))
+        {
+            assertThrows(IllegalArgumentException.class, () -> LlamaStateSnapshot.restore(path, model, state));
+        }
+    }
+
+
+    @Test
+    void test_restoreRejectsATruncatedFile() throws Exception
+    {
+        Path path = directory.resolve("snapshot");
+        try(LlamaTokenGenerationState state = prefilledState(GGUFType.Q8_0))
+        {
+            LlamaStateSnapshot.save(path, model, state, NUMBER_OF_POSITIONS);
+        }
+        for(long size : new long[] {Files.size(path) - 1, 70, 10})
+        {
+            try(FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.WRITE))
+            {
+                fileChannel.truncate(size);
+            }
+            try(LlamaTokenGenerationState state = new LlamaTokenGenerationState(model.getConfiguration(), 16, GGUFType.Q8_0))
+            {
+                assertThrows(IllegalArgumentException.class, () -> LlamaStateSnapshot.restore(path, model, state), size + " bytes");
+            }
+        }
+    }
+
+
+    /**
+     * @return a state with {@link #NUMBER_OF_POSITIONS} random positions and 7 as its latest token
+     */
+    private LlamaTokenGenerationState prefilledState(GGUFType type)
+    {
+        LlamaTokenGenerationState state = new LlamaTokenGenerationState(model.getConfiguration(), 16, type);
+        int[] tokens = new int[state.batchSize];
+        for(int position = 0; position < NUMBER_OF_POSITIONS; position += tokens.length)
+        {
+            int numberOfTokens = Math.min(tokens.length, NUMBER_OF_POSITIONS - position);
+            for(int i = 0; i < numberOfTokens; i++)
+            {
+                tokens[i] = random.nextInt(LlamaTestModels.VOCABULARY_SIZE);
+            }
+            model.getNextTokenGenerator().forward(model, state, tokens, numberOfTokens, position, false);
+        }
+        state.latestToken = 7;
+        return state;
+    }
+
+
+    private float[] nextLogits(LlamaTokenGenerationState state)
+    {
+        SimpleFloatTensor logits = model.getNextTokenGenerator().generate(model, state, state.latestToken, NUMBER_OF_POSITIONS);
+        float[] values = new float[logits.size()];
+        for(int i = 0; i < values.length; i++)
+        {
+            values[i] = logits.getFloat(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.inference;
+
+import io.github.orionlibs.orion_llm4j_inference.core.inference.LLMConfiguration;
+import io.github.orionlibs.orion_llm4j_inference.core.model.Vocabulary;
+import io.github.orionlibs.orion_llm4j_inference.core.model.Weights;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Pair;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.RotaryPositionEmbeddings;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.ArraySimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.tensor.SimpleFloatTensor;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.token.LlamaTokenizer;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tiny models with random weights, for the tests that run the forward pass without a model file.
+ */
+public final class LlamaTestModels
+{
+    public static final int VOCABULARY_SIZE = 64;
+
+
+    private LlamaTestModels()
+    {
+    }
+
+
+    /**
+     * @return a model of 2 layers, 4 heads and 2 key/value heads of 8 dimensions, with tokens "t0" to "t63"
+     */
+    public static LlamaLLMInferencer createModel(Random random, int contextLength)
+    {
+        int dim = 32;
+        int hiddenDim = 64;
+        int numberOfLayers = 2;
+        int numberOfHeads = 4;
+        int numberOfKeyValueHeads = 2;
+        LLMConfiguration config = new LLMConfiguration(dim, hiddenDim, numberOfLayers, numberOfHeads, numberOfKeyValueHeads, VOCABULARY_SIZE, contextLength, false, 1e-5f, 10000f);
+        int kvDim = dim * numberOfKeyValueHeads / numberOfHeads;
+        FloatBuffer[] rmsAttWeight = new FloatBuffer[numberOfLayers];
+        FloatBuffer[] rmsFfnWeight = new FloatBuffer[numberOfLayers];
+        SimpleFloatTensor[] wq = new SimpleFloatTensor[numberOfLayers];
+        SimpleFloatTensor[] wk = new SimpleFloatTensor[numberOfLayers];
+        SimpleFloatTensor[] wv = new SimpleFloatTensor[numberOfLayers];
+        SimpleFloatTensor[] wo = new SimpleFloatTensor[numberOfLayers];
+        SimpleFloatTensor[] w1 = new SimpleFloatTensor[numberOfLayers];
+        SimpleFloatTensor[] w2 = new SimpleFloatTensor[numberOfLayers];
+        SimpleFloatTensor[] w3 = new SimpleFloatTensor[numberOfLayers];
+        for(int l = 0; l < numberOfLayers; l++)
+        {
+            rmsAttWeight[l] = randomNorm(random, dim);
+            rmsFfnWeight[l] = randomNorm(random, dim);
+            wq[l] = randomTensor(random, dim, dim);
+            wk[l] = randomTensor(random, kvDim, dim);
+            wv[l] = randomTensor(random, kvDim, dim);
+            wo[l] = randomTensor(random, dim, dim);
+            w1[l] = randomTensor(random, hiddenDim, dim);
+            w2[l] = randomTensor(random, dim, hiddenDim);
+            w3[l] = randomTensor(random, hiddenDim, dim);
+        }
+        Pair<float[], float[]> ropeFreqs = RotaryPositionEmbeddings.precomputeFreqsCis(contextLength, config.headSize, config.ropeTheta, false, 8, 1, 3, 8192);
+        Weights weights = new Weights(randomTensor(random, VOCABULARY_SIZE, dim), rmsAttWeight, wq, wk, wv, wo, rmsFfnWeight, w1, w2, w3, randomNorm(random, dim),
+                        FloatBuffer.wrap(ropeFreqs.first()), FloatBuffer.wrap(ropeFreqs.second()), randomTensor(random, VOCABULARY_SIZE, dim));
+        String[] tokens = new String[VOCABULARY_SIZE];
+        for(int i = 0; i < tokens.length; i++)
+        {
+            tokens[i] = "t" + i;
+        }
+        LlamaTokenizer tokenizer = new LlamaTokenizer(new Vocabulary(tokens, null), List.<Pair<Integer, Integer>>of(), null, Map.of("<|begin_of_text|>", 1));
+        return new LlamaLLMInferencer(config, tokenizer, weights);
+    }
+
+
+    private static SimpleFloatTensor randomTensor(Random random, int rows, int columns)
+    {
+        SimpleFloatTensor tensor = ArraySimpleFloatTensor.allocate(rows, columns);
+        for(int i = 0; i < tensor.size(); i++)
+        {
+            tensor.setFloat(i, (random.nextFloat() - 0.5f) * 0.5f);
+        }
+        return tensor;
+    }
+
+
+    private static FloatBuffer randomNorm(Random random, int size)
+    {
+        float[] values = new float[size];
+        for(int i = 0; i < size; i++)
+        {
+            values[i] = 0.5f + random.nextFloat();
+        }
+        return FloatBuffer.wrap(values);
+    }
+}
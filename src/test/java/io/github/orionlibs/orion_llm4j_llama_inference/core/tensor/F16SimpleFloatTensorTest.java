@@ -0,0 +1,74 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Random;
+import jdk.incubator.vector.ShortVector;
+import org.junit.jupiter.api.Test;
+
+public class F16SimpleFloatTensorTest
+{
+    private static final int QUIET_NAN_BIT = 0x0040_0000;
+    private final Random random = new Random(42);
+
+
+    @Test
+    void test_float16ToFloatDecodesEveryHalf()
+    {
+        short[] halves = new short[1 << 16];
+        for(int i = 0; i < halves.length; i++)
+        {
+            halves[i] = (short)i;
+        }
+        float[] decoded = new float[halves.length];
+        for(int i = 0; i < halves.length; i += SimpleFloatTensor.H_SPECIES.length())
+        {
+            SimpleFloatTensor.float16ToFloat(ShortVector.fromArray(SimpleFloatTensor.H_SPECIES, halves, i)).intoArray(decoded, i);
+        }
+        for(int i = 0; i < halves.length; i++)
+        {
+            float expected = Float.float16ToFloat(halves[i]);
+            if(Float.isNaN(expected))
+            {
+                // the intrinsic of Float.float16ToFloat quiets signalling NaNs, the sign and the payload are kept either way
+                assertTrue(Float.isNaN(decoded[i]), "half 0x" + Integer.toHexString(i));
+                assertEquals(Float.floatToRawIntBits(expected) & ~QUIET_NAN_BIT, Float.floatToRawIntBits(decoded[i]) & ~QUIET_NAN_BIT, "half 0x" + Integer.toHexString(i));
+            }
+            else
+            {
+                // subnormals, signed zeros and infinities included
+                assertEquals(Float.floatToRawIntBits(expected), Float.floatToRawIntBits(decoded[i]), "half 0x" + Integer.toHexString(i));
+            }
+        }
+    }
+
+
+    @Test
+    void test_dot()
+    {
+        int size = 1000;
+        MemorySegment segment = Arena.ofAuto().allocate((long)size * Short.BYTES);
+        SimpleFloatTensor that = ArraySimpleFloatTensor.allocate(size);
+        for(int i = 0; i < size; i++)
+        {
+            segment.set(SimpleFloatTensor.JAVA_SHORT_LE, (long)i * Short.BYTES, Float.floatToFloat16((float)random.nextGaussian()));
+            that.setFloat(i, (float)random.nextGaussian());
+        }
+        F16SimpleFloatTensor tensor = new F16SimpleFloatTensor(size, segment);
+        for(int[] range : new int[][] {{0, 0, size}, {3, 0, size - 3}, {5, 17, 500}, {1, 2, 7}})
+        {
+            double dot = 0;
+            double magnitude = 0;
+            for(int i = 0; i < range[2]; i++)
+            {
+                double product = (double)tensor.getFloat(range[0] + i) * that.getFloat(range[1] + i);
+                dot += product;
+                magnitude += Math.abs(product);
+            }
+            assertEquals(dot, tensor.dot(range[0], that, range[1], range[2]), 1e-5 * magnitude);
+        }
+    }
+}
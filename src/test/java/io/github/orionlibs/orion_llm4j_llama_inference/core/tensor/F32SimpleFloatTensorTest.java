@@ -0,0 +1,46 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class F32SimpleFloatTensorTest
+{
+    private final Random random = new Random(42);
+
+
+    @Test
+    void test_dot()
+    {
+        int size = 1000;
+        MemorySegment segment = Arena.ofAuto().allocate((long)size * Float.BYTES);
+        float[] values = new float[size];
+        SimpleFloatTensor that = ArraySimpleFloatTensor.allocate(size);
+        for(int i = 0; i < size; i++)
+        {
+            values[i] = (float)random.nextGaussian();
+            segment.set(SimpleFloatTensor.JAVA_FLOAT_LE, (long)i * Float.BYTES, values[i]);
+            that.setFloat(i, (float)random.nextGaussian());
+        }
+        F32SimpleFloatTensor tensor = new F32SimpleFloatTensor(size, segment);
+        for(int i = 0; i < size; i++)
+        {
+            assertEquals(values[i], tensor.getFloat(i));
+        }
+        for(int[] range : new int[][] {{0, 0, size}, {3, 0, size - 3}, {5, 17, 500}, {1, 2, 7}})
+        {
+            double dot = 0;
+            double magnitude = 0;
+            for(int i = 0; i < range[2]; i++)
+            {
+                double product = (double)values[range[0] + i] * that.getFloat(range[1] + i);
+                dot += product;
+                magnitude += Math.abs(product);
+            }
+            assertEquals(dot, tensor.dot(range[0], that, range[1], range[2]), 1e-5 * magnitude);
+        }
+    }
+}
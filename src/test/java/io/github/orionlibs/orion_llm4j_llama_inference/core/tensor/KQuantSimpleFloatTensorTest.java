@@ -0,0 +1,194 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the K-quant tensors with a scalar dequantization transcribed from the dequantize_row_q*_K functions of ggml.
+ */
+public class KQuantSimpleFloatTensorTest
+{
+    private static final int NUMBER_OF_BLOCKS = 8;
+    private static final int SIZE = NUMBER_OF_BLOCKS * 256;
+    // this offset, that offset and size of the dot products, aligned to the blocks or not
+    private static final int[][] DOT_RANGES = {{0, 0, SIZE}, {256, 0, SIZE - 256}, {0, 0, 1000}, {3, 5, 1500}, {512, 7, 1024}, {37, 11, 64}};
+    private final Random random = new Random(42);
+
+
+    @Test
+    void test_Q4_K()
+    {
+        MemorySegment segment = randomBlocks(GGUFType.Q4_K.getTypeSize(), 0);
+        assertMatchesDequantization(new Q4_KSimpleFloatTensor(SIZE, segment), dequantizeQ4_KOrQ5_K(segment, false));
+    }
+
+
+    @Test
+    void test_Q5_K()
+    {
+        MemorySegment segment = randomBlocks(GGUFType.Q5_K.getTypeSize(), 0);
+        assertMatchesDequantization(new Q5_KSimpleFloatTensor(SIZE, segment), dequantizeQ4_KOrQ5_K(segment, true));
+    }
+
+
+    @Test
+    void test_Q6_K()
+    {
+        MemorySegment segment = randomBlocks(GGUFType.Q6_K.getTypeSize(), 208);
+        assertMatchesDequantization(new Q6_KSimpleFloatTensor(SIZE, segment), dequantizeQ6_K(segment));
+    }
+
+
+    private void assertMatchesDequantization(SimpleFloatTensor tensor, float[] expected)
+    {
+        for(int i = 0; i < SIZE; i++)
+        {
+            assertEquals(expected[i], tensor.getFloat(i), "value " + i);
+        }
+        ArraySimpleFloatTensor that = (ArraySimpleFloatTensor)ArraySimpleFloatTensor.allocate(SIZE);
+        for(int i = 0; i < SIZE; i++)
+        {
+            that.setFloat(i, (float)random.nextGaussian());
+        }
+        for(int[] range : DOT_RANGES)
+        {
+            double dot = 0;
+            double magnitude = 0;
+            for(int i = 0; i < range[2]; i++)
+            {
+                double product = (double)expected[range[0] + i] * that.getFloat(range[1] + i);
+                dot += product;
+                magnitude += Math.abs(product);
+            }
+            assertEquals(dot, tensor.dot(range[0], that, range[1], range[2]), 1e-5 * magnitude, "dot of " + range[2] + " values at " + range[0] + " and " + range[1]);
+        }
+    }
+
+
+    /**
+     * Random quants and small positive scales, so that the values are in the range of the weights of a model.
+     *
+     * @param scalesOffset offset of the half-precision scales of a block, d of Q6_K or d and dmin of Q4_K and Q5_K
+     */
+    private MemorySegment randomBlocks(int typeSize, int scalesOffset)
+    {
+        MemorySegment segment = Arena.ofAuto().allocate((long)NUMBER_OF_BLOCKS * typeSize);
+        for(long i = 0; i < segment.byteSize(); i++)
+        {
+            segment.set(ValueLayout.JAVA_BYTE, i, (byte)random.nextInt());
+        }
+        for(int b = 0; b < NUMBER_OF_BLOCKS; b++)
+        {
+            long blockOffset = (long)b * typeSize;
+            segment.set(SimpleFloatTensor.JAVA_SHORT_LE, blockOffset + scalesOffset, Float.floatToFloat16(random.nextFloat() * 0.01f));
+            if(scalesOffset == 0)
+            {
+                segment.set(SimpleFloatTensor.JAVA_SHORT_LE, blockOffset + 2, Float.floatToFloat16(random.nextFloat() * 0.01f));
+            }
+        }
+        return segment;
+    }
+
+
+    private static float[] dequantizeQ4_KOrQ5_K(MemorySegment segment, boolean isQ5_K)
+    {
+        float[] values = new float[SIZE];
+        int index = 0;
+        for(int b = 0; b < NUMBER_OF_BLOCKS; b++)
+        {
+            long blockOffset = (long)b * (isQ5_K ? GGUFType.Q5_K.getTypeSize() : GGUFType.Q4_K.getTypeSize());
+            float d = half(segment, blockOffset);
+            float min = half(segment, blockOffset + 2);
+            long scales = blockOffset + 4;
+            long qh = blockOffset + 16;
+            long q = blockOffset + (isQ5_K ? 48 : 16);
+            int u1 = 1;
+            int u2 = 2;
+            for(int j = 0, is = 0; j < 256; j += 64, is += 2)
+            {
+                int[] scaleMin1 = scaleMin(segment, scales, is);
+                int[] scaleMin2 = scaleMin(segment, scales, is + 1);
+                for(int l = 0; l < 32; l++)
+                {
+                    int high = isQ5_K && (unsigned(segment, qh + l) & u1) != 0 ? 16 : 0;
+                    values[index++] = d * scaleMin1[0] * ((unsigned(segment, q + l) & 0xF) + high) - min * scaleMin1[1];
+                }
+                for(int l = 0; l < 32; l++)
+                {
+                    int high = isQ5_K && (unsigned(segment, qh + l) & u2) != 0 ? 16 : 0;
+                    values[index++] = d * scaleMin2[0] * ((unsigned(segment, q + l) >> 4) + high) - min * scaleMin2[1];
+                }
+                q += 32;
+                u1 <<= 2;
+                u2 <<= 2;
+            }
+        }
+        return values;
+    }
+
+
+    private static float[] dequantizeQ6_K(MemorySegment segment)
+    {
+        float[] values = new float[SIZE];
+        for(int b = 0; b < NUMBER_OF_BLOCKS; b++)
+        {
+            long blockOffset = (long)b * GGUFType.Q6_K.getTypeSize();
+            float d = half(segment, blockOffset + 208);
+            long ql = blockOffset;
+            long qh = blockOffset + 128;
+            long scales = blockOffset + 192;
+            for(int n = 0; n < 256; n += 128)
+            {
+                for(int l = 0; l < 32; l++)
+                {
+                    int is = l / 16;
+                    int q1 = ((unsigned(segment, ql + l) & 0xF) | ((unsigned(segment, qh + l) & 3) << 4)) - 32;
+                    int q2 = ((unsigned(segment, ql + l + 32) & 0xF) | (((unsigned(segment, qh + l) >> 2) & 3) << 4)) - 32;
+                    int q3 = ((unsigned(segment, ql + l) >> 4) | (((unsigned(segment, qh + l) >> 4) & 3) << 4)) - 32;
+                    int q4 = ((unsigned(segment, ql + l + 32) >> 4) | (((unsigned(segment, qh + l) >> 6) & 3) << 4)) - 32;
+                    int start = b * 256 + n + l;
+                    values[start] = d * segment.get(ValueLayout.JAVA_BYTE, scales + is) * q1;
+                    values[start + 32] = d * segment.get(ValueLayout.JAVA_BYTE, scales + is + 2) * q2;
+                    values[start + 64] = d * segment.get(ValueLayout.JAVA_BYTE, scales + is + 4) * q3;
+                    values[start + 96] = d * segment.get(ValueLayout.JAVA_BYTE, scales + is + 6) * q4;
+                }
+                ql += 64;
+                qh += 32;
+                scales += 8;
+            }
+        }
+        return values;
+    }
+
+
+    /**
+     * get_scale_min_k4 of ggml, the 6-bit scale and min of a sub-block.
+     */
+    private static int[] scaleMin(MemorySegment segment, long scales, int j)
+    {
+        if(j < 4)
+        {
+            return new int[] {unsigned(segment, scales + j) & 63, unsigned(segment, scales + j + 4) & 63};
+        }
+        return new int[] {(unsigned(segment, scales + j + 4) & 0xF) | ((unsigned(segment, scales + j - 4) >> 6) << 4),
+                        (unsigned(segment, scales + j + 4) >> 4) | ((unsigned(segment, scales + j) >> 6) << 4)};
+    }
+
+
+    private static int unsigned(MemorySegment segment, long offset)
+    {
+        return segment.get(ValueLayout.JAVA_BYTE, offset) & 0xFF;
+    }
+
+
+    private static float half(MemorySegment segment, long offset)
+    {
+        return Float.float16ToFloat(segment.get(SimpleFloatTensor.JAVA_SHORT_LE, offset));
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class Q8_0ArraySimpleFloatTensorTest
+{
+    private static final int ROWS = 4;
+    private static final int COLUMNS = 1024;
+    private final Random random = new Random(42);
+
+
+    @Test
+    void test_quantize()
+    {
+        SimpleFloatTensor that = randomVector();
+        Q8_0ArraySimpleFloatTensor quantized = Q8_0ArraySimpleFloatTensor.quantize(that, COLUMNS);
+        for(int b = 0; b < COLUMNS; b += GGUFType.Q8_0.getBlockSize())
+        {
+            float maximum = 0f;
+            for(int i = b; i < b + GGUFType.Q8_0.getBlockSize(); i++)
+            {
+                maximum = Math.max(maximum, Math.abs(that.getFloat(i)));
+            }
+            // half a step of the quants, and the rounding of the scale to half-precision
+            float tolerance = maximum / 127 / 2 + maximum * 1e-3f;
+            for(int i = b; i < b + GGUFType.Q8_0.getBlockSize(); i++)
+            {
+                assertEquals(that.getFloat(i), quantized.getFloat(i), tolerance, "value " + i);
+            }
+        }
+    }
+
+
+    @Test
+    void test_quantizeRoundsLikeMathRound()
+    {
+        SimpleFloatTensor that = randomVector();
+        // a block of zeros, and values at halves of the quants of a block whose maximum is 127
+        for(int i = 0; i < GGUFType.Q8_0.getBlockSize(); i++)
+        {
+            that.setFloat(i, 0f);
+            that.setFloat(GGUFType.Q8_0.getBlockSize() + i, i == 0 ? 127f : (i - 16) + 0.5f);
+        }
+        // a longer tensor than the values, as the reused inputs of the matmuls
+        Q8_0ArraySimpleFloatTensor quantized = (Q8_0ArraySimpleFloatTensor)Q8_0ArraySimpleFloatTensor.allocate(2 * COLUMNS);
+        quantized.quantizeFrom(that, COLUMNS);
+        for(int b = 0; b < COLUMNS; b += GGUFType.Q8_0.getBlockSize())
+        {
+            float maximum = 0f;
+            for(int i = b; i < b + GGUFType.Q8_0.getBlockSize(); i++)
+            {
+                maximum = Math.max(maximum, Math.abs(that.getFloat(i)));
+            }
+            short scale = Float.floatToFloat16(maximum / 127f);
+            float inverseScale = scale != 0 ? 1f / Float.float16ToFloat(scale) : 0f;
+            assertEquals(scale, quantized.scales[b / GGUFType.Q8_0.getBlockSize()], "scale of block " + b / GGUFType.Q8_0.getBlockSize());
+            for(int i = b; i < b + GGUFType.Q8_0.getBlockSize(); i++)
+            {
+                assertEquals((byte)Math.clamp(Math.round(that.getFloat(i) * inverseScale), -127, 127), quantized.quants[i], "quant " + i);
+            }
+        }
+    }
+
+
+    @Test
+    void test_integerDotOfQ4_0()
+    {
+        MemorySegment segment = randomBlocks(GGUFType.Q4_0.getTypeSize());
+        assertIntegerDotMatchesFloatDot(new Q4_0SimpleFloatTensor(ROWS * COLUMNS, segment));
+    }
+
+
+    @Test
+    void test_integerDotOfQ8_0()
+    {
+        MemorySegment segment = randomBlocks(GGUFType.Q8_0.getTypeSize());
+        assertIntegerDotMatchesFloatDot(new Q8_0SimpleFloatTensor(ROWS * COLUMNS, segment));
+    }
+
+
+    private void assertIntegerDotMatchesFloatDot(SimpleFloatTensor weights)
+    {
+        SimpleFloatTensor that = randomVector();
+        Q8_0ArraySimpleFloatTensor quantized = Q8_0ArraySimpleFloatTensor.quantize(that, COLUMNS);
+        // rows, block-aligned ranges that run on integers and an unaligned one that does not
+        for(int[] range : new int[][] {{0, 0, COLUMNS}, {3 * COLUMNS, 0, COLUMNS}, {COLUMNS + 64, 96, 320}, {5, 7, 100}})
+        {
+            double dot = 0;
+            double floatDot = 0;
+            double magnitude = 0;
+            for(int i = 0; i < range[2]; i++)
+            {
+                float weight = weights.getFloat(range[0] + i);
+                dot += (double)weight * quantized.getFloat(range[1] + i);
+                floatDot += (double)weight * that.getFloat(range[1] + i);
+                magnitude += Math.abs(weight * that.getFloat(range[1] + i));
+            }
+            float integerDot = weights.dot(range[0], quantized, range[1], range[2]);
+            // exact up to the rounding of the floats, then up to the quantization of the vector
+            assertEquals(dot, integerDot, 1e-5 * magnitude);
+            assertTrue(Math.abs(floatDot - integerDot) <= 1e-2 * magnitude, "dot " + integerDot + " of the float dot " + floatDot);
+            assertEquals(weights.dot(range[0], that, range[1], range[2]), floatDot, 1e-5 * magnitude);
+        }
+    }
+
+
+    private SimpleFloatTensor randomVector()
+    {
+        SimpleFloatTensor that = ArraySimpleFloatTensor.allocate(COLUMNS);
+        for(int i = 0; i < COLUMNS; i++)
+        {
+            that.setFloat(i, (float)random.nextGaussian());
+        }
+        return that;
+    }
+
+
+    private MemorySegment randomBlocks(int typeSize)
+    {
+        long size = (long)ROWS * COLUMNS / GGUFType.Q8_0.getBlockSize() * typeSize;
+        MemorySegment segment = Arena.ofAuto().allocate(size);
+        for(long i = 0; i < size; i++)
+        {
+            segment.set(ValueLayout.JAVA_BYTE, i, (byte)random.nextInt());
+        }
+        for(long i = 0; i < size; i += typeSize)
+        {
+            segment.set(SimpleFloatTensor.JAVA_SHORT_LE, i, Float.floatToFloat16(random.nextFloat() * 0.1f));
+        }
+        return segment;
+    }
+}
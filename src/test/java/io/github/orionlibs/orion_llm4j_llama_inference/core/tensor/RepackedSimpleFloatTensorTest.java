@@ -0,0 +1,98 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the repacked Q4_0 and Q8_0 tensors with the tensors of the blocks they were repacked from.
+ */
+public class RepackedSimpleFloatTensorTest
+{
+    // the last group of rows is not full
+    private static final int ROWS = 13;
+    private static final int COLUMNS = 96;
+    private final Random random = new Random(42);
+
+
+    @Test
+    void test_Q4_0()
+    {
+        MemorySegment source = randomBlocks(GGUFType.Q4_0.getTypeSize());
+        MemorySegment target = Arena.ofAuto().allocate(Q4_0RepackedSimpleFloatTensor.byteSizeFor(ROWS, COLUMNS), 64);
+        Q4_0RepackedSimpleFloatTensor.repack(source, ROWS, COLUMNS, target);
+        assertMatchesSource(new Q4_0SimpleFloatTensor(ROWS * COLUMNS, source), new Q4_0RepackedSimpleFloatTensor(ROWS, COLUMNS, target));
+    }
+
+
+    @Test
+    void test_Q8_0()
+    {
+        MemorySegment source = randomBlocks(GGUFType.Q8_0.getTypeSize());
+        MemorySegment target = Arena.ofAuto().allocate(Q8_0RepackedSimpleFloatTensor.byteSizeFor(ROWS, COLUMNS), 64);
+        Q8_0RepackedSimpleFloatTensor.repack(source, ROWS, COLUMNS, target);
+        assertMatchesSource(new Q8_0SimpleFloatTensor(ROWS * COLUMNS, source), new Q8_0RepackedSimpleFloatTensor(ROWS, COLUMNS, target));
+    }
+
+
+    private void assertMatchesSource(SimpleFloatTensor source, SimpleFloatTensor repacked)
+    {
+        assertEquals(source.size(), repacked.size());
+        for(int i = 0; i < source.size(); i++)
+        {
+            assertEquals(source.getFloat(i), repacked.getFloat(i), "value " + i);
+        }
+        SimpleFloatTensor that = ArraySimpleFloatTensor.allocate(COLUMNS);
+        for(int i = 0; i < COLUMNS; i++)
+        {
+            that.setFloat(i, (float)random.nextGaussian());
+        }
+        float[] out = new float[SimpleFloatTensor.ROW_BLOCK_SIZE];
+        for(int row = 0; row < ROWS; row += SimpleFloatTensor.ROW_BLOCK_SIZE)
+        {
+            int numberOfRows = Math.min(SimpleFloatTensor.ROW_BLOCK_SIZE, ROWS - row);
+            Arrays.fill(out, Float.NaN);
+            repacked.dotRows(row, numberOfRows, that, COLUMNS, out);
+            for(int r = 0; r < out.length; r++)
+            {
+                if(r < numberOfRows)
+                {
+                    double magnitude = 0;
+                    for(int i = 0; i < COLUMNS; i++)
+                    {
+                        magnitude += Math.abs(source.getFloat((row + r) * COLUMNS + i) * that.getFloat(i));
+                    }
+                    assertEquals(source.dot((row + r) * COLUMNS, that, 0, COLUMNS), out[r], 1e-5 * magnitude, "row " + (row + r));
+                }
+                else
+                {
+                    // the rows past the end are not written
+                    assertTrue(Float.isNaN(out[r]), "row " + (row + r));
+                }
+            }
+        }
+    }
+
+
+    private MemorySegment randomBlocks(int typeSize)
+    {
+        long size = (long)ROWS * COLUMNS / GGUFType.Q8_0.getBlockSize() * typeSize;
+        MemorySegment segment = Arena.ofAuto().allocate(size);
+        for(long i = 0; i < size; i++)
+        {
+            segment.set(ValueLayout.JAVA_BYTE, i, (byte)random.nextInt());
+        }
+        for(long i = 0; i < size; i += typeSize)
+        {
+            segment.set(SimpleFloatTensor.JAVA_SHORT_LE, i, Float.floatToFloat16(random.nextFloat() * 0.1f));
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.orionlibs.orion_llm4j_inference.core.gguf.GGUFType;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class SimpleFloatTensorPagePoolTest
+{
+    @Test
+    void test_releasedPagesAreCapped()
+    {
+        SimpleFloatTensorPagePool pool = new SimpleFloatTensorPagePool(GGUFType.F32, 16, 6, 2);
+        List<SimpleFloatTensor> pages = new ArrayList<>();
+        for(int i = 0; i < 6; i++)
+        {
+            pages.add(pool.allocate());
+        }
+        assertThrows(IllegalStateException.class, pool::allocate);
+        pages.forEach(pool::release);
+        assertEquals(0, pool.getNumberOfPagesInUse());
+        assertEquals(2, pool.getNumberOfFreePages());
+        // the kept pages are handed out first, the dropped ones can be created again
+        assertSame(pages.get(1), pool.allocate());
+        assertSame(pages.get(0), pool.allocate());
+        for(int i = 0; i < 4; i++)
+        {
+            pool.allocate();
+        }
+        assertEquals(6, pool.getNumberOfPagesInUse());
+        assertThrows(IllegalStateException.class, pool::allocate);
+    }
+
+
+    @Test
+    void test_reservationOfAnExhaustedPool()
+    {
+        SimpleFloatTensorPagePool pool = new SimpleFloatTensorPagePool(GGUFType.F32, 16, 3, 3);
+        PagedSimpleFloatTensor tensor = new PagedSimpleFloatTensor(pool, 16 * 5);
+        tensor.reservePages(16 * 2 + 1);
+        assertEquals(3, pool.getNumberOfPagesInUse());
+        assertThrows(IllegalStateException.class, () -> tensor.reservePages(16 * 4));
+        // the reserved pages are written without taking more
+        tensor.setFloat(16 * 3 - 1, 1f);
+        assertEquals(1f, tensor.getFloat(16 * 3 - 1));
+        tensor.releasePages();
+        assertEquals(0, pool.getNumberOfPagesInUse());
+        assertEquals(3, pool.getNumberOfFreePages());
+    }
+}
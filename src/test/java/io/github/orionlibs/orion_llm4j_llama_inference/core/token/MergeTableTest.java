@@ -0,0 +1,69 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.core.token;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class MergeTableTest
+{
+    private final Random random = new Random(42);
+
+
+    @Test
+    void test_copiedTableHasTheSameMerges()
+    {
+        Map<Long, Integer> expected = new HashMap<>();
+        MergeTable table = MergeTable.withExpectedSize(5000);
+        while(expected.size() < 5000)
+        {
+            int first = random.nextInt(100000);
+            int second = random.nextInt(100000);
+            int mergeIndex = random.nextInt(128000);
+            table.put(first, second, mergeIndex);
+            expected.put((long)first << 32 | second, mergeIndex);
+        }
+        // the table as it is mapped from an image, off the heap
+        MemorySegment copy = Arena.ofAuto().allocate(table.getMemorySegment().byteSize(), Long.BYTES);
+        copy.copyFrom(table.getMemorySegment());
+        MergeTable mapped = new MergeTable(table.getCapacity(), copy);
+        expected.forEach((key, mergeIndex) -> {
+            assertEquals(mergeIndex, table.get((int)(key >>> 32), (int)(long)key));
+            assertEquals(mergeIndex, mapped.get((int)(key >>> 32), (int)(long)key));
+        });
+        for(int i = 0; i < 1000; i++)
+        {
+            int first = random.nextInt(100000);
+            int second = random.nextInt(100000);
+            // mostly pairs that don't merge
+            assertEquals(expected.getOrDefault((long)first << 32 | second, -1), mapped.get(first, second));
+        }
+    }
+
+
+    @Test
+    void test_laterMergeOfAPairReplacesTheEarlierOne()
+    {
+        MergeTable table = MergeTable.withExpectedSize(1);
+        table.put(3, 4, 10);
+        table.put(3, 4, 11);
+        table.put(4, 3, 12);
+        assertEquals(11, table.get(3, 4));
+        // the first and the second index of a pair are not interchangeable
+        assertEquals(12, table.get(4, 3));
+        assertEquals(-1, table.get(4, 4));
+    }
+
+
+    @Test
+    void test_capacityMustMatchTheSegment()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new MergeTable(6, MemorySegment.ofArray(new byte[(int)MergeTable.byteSizeFor(6)])));
+        assertThrows(IllegalArgumentException.class, () -> new MergeTable(8, MemorySegment.ofArray(new byte[(int)MergeTable.byteSizeFor(4)])));
+    }
+}
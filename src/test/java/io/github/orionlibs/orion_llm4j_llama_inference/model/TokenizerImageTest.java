@@ -0,0 +1,128 @@
+package io.github.orionlibs.orion_llm4j_llama_inference.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.orionlibs.orion_llm4j_inference.core.model.Vocabulary;
+import io.github.orionlibs.orion_llm4j_inference.core.utils.Pair;
+import io.github.orionlibs.orion_llm4j_llama_inference.core.token.LlamaTokenizer;
+import io.github.orionlibs.orion_string.StringsService;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TokenizerImageTest
+{
+    private static final int NUMBER_OF_MERGES = 3000;
+    private static final int NUMBER_OF_SPECIAL_TOKENS = 16;
+    private static final String PATTERN = new LlamaModelLoader().PATTERN;
+    private final Random random = new Random(42);
+    @TempDir
+    Path directory;
+
+
+    @Test
+    void test_mappedImageEncodesLikeTheRebuiltTokenizer() throws Exception
+    {
+        List<String> tokens = new ArrayList<>();
+        List<Pair<Integer, Integer>> merges = createVocabulary(tokens);
+        Vocabulary vocabulary = new Vocabulary(tokens.toArray(String[]::new), null);
+        Map<String, Integer> specialTokens = new HashMap<>();
+        for(int i = tokens.size() - NUMBER_OF_SPECIAL_TOKENS; i < tokens.size(); i++)
+        {
+            specialTokens.put(tokens.get(i), i);
+        }
+        Supplier<LlamaTokenizer> factory = () -> new LlamaTokenizer(vocabulary, merges, PATTERN, specialTokens);
+        Path ggufPath = directory.resolve("model.gguf");
+        Path sidecarPath = directory.resolve("model.gguf.tokenizer");
+        MemorySegment modelHeader = MemorySegment.ofArray("header".getBytes(StandardCharsets.UTF_8));
+        AtomicInteger numberOfBuilds = new AtomicInteger();
+        LlamaTokenizer rebuilt = TokenizerImage.loadOrCreate(ggufPath, modelHeader, vocabulary, PATTERN, () -> {
+            numberOfBuilds.incrementAndGet();
+            return factory.get();
+        });
+        assertEquals(1, numberOfBuilds.get());
+        assertTrue(Files.isRegularFile(sidecarPath));
+        assertFalse(Files.exists(directory.resolve("model.gguf.tokenizer.tmp")));
+        LlamaTokenizer mapped = TokenizerImage.loadOrCreate(ggufPath, modelHeader, vocabulary, PATTERN, () -> {
+            throw new AssertionError("the image was not used");
+        });
+        assertEquals(specialTokens, mapped.getSpecialTokens());
+        assertEquals(rebuilt.getMerges().getCapacity(), mapped.getMerges().getCapacity());
+        for(int i = 0; i < 20; i++)
+        {
+            String text = randomText();
+            List<Integer> expected = rebuilt.encodeAsList(text);
+            assertEquals(expected, mapped.encodeAsList(text));
+            // some of the merges apply
+            assertTrue(expected.size() < text.getBytes(StandardCharsets.UTF_8).length);
+            assertEquals(text, mapped.decode(expected));
+        }
+        // a changed model invalidates the image
+        MemorySegment otherModelHeader = MemorySegment.ofArray("other header".getBytes(StandardCharsets.UTF_8));
+        TokenizerImage.loadOrCreate(ggufPath, otherModelHeader, vocabulary, PATTERN, () -> {
+            numberOfBuilds.incrementAndGet();
+            return factory.get();
+        });
+        assertEquals(2, numberOfBuilds.get());
+    }
+
+
+    /**
+     * The 256 byte tokens, random merges of the tokens so far and the special tokens last, like the vocabulary of a
+     * model.
+     *
+     * @return the merges, in the order of their tokens
+     */
+    private List<Pair<Integer, Integer>> createVocabulary(List<String> tokens)
+    {
+        Map<Integer, Integer> byteEncoder = StringsService.convertCharactersToUnicode();
+        for(int b = 0; b < 256; b++)
+        {
+            tokens.add(new String(Character.toChars(byteEncoder.get(b))));
+        }
+        Set<String> seen = new HashSet<>(tokens);
+        List<Pair<Integer, Integer>> merges = new ArrayList<>();
+        while(merges.size() < NUMBER_OF_MERGES)
+        {
+            // mostly printable bytes, so that the merges apply to the text
+            int first = random.nextBoolean() ? 33 + random.nextInt(94) : random.nextInt(tokens.size());
+            int second = random.nextBoolean() ? 33 + random.nextInt(94) : random.nextInt(tokens.size());
+            String merged = tokens.get(first) + tokens.get(second);
+            if(merged.length() <= 8 && seen.add(merged))
+            {
+                merges.add(new Pair<>(first, second));
+                tokens.add(merged);
+            }
+        }
+        for(int i = 0; i < NUMBER_OF_SPECIAL_TOKENS; i++)
+        {
+            tokens.add("<|special_" + i + "|>");
+        }
+        return merges;
+    }
+
+
+    private String randomText()
+    {
+        StringBuilder text = new StringBuilder("Hello world, 12345 ünïcödé ✓ ");
+        for(int i = 0; i < 200; i++)
+        {
+            text.append((char)(32 + random.nextInt(95)));
+        }
+        return text.toString();
+    }
+}